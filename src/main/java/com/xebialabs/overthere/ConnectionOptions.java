@@ -119,6 +119,16 @@ public class ConnectionOptions {
      */
     public static final String JUMPSTATION = "jumpstation";
 
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#jumpstationShared">the online documentation</a>
+     */
+    public static final String JUMPSTATION_SHARED = "jumpstationShared";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#jumpstationShared">the online documentation</a>
+     */
+    public static final boolean JUMPSTATION_SHARED_DEFAULT = true;
+
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#fileCopyCommandForUnix">the online documentation</a>
      */
@@ -189,6 +199,56 @@ public class ConnectionOptions {
      */
     public static final int REMOTE_COPY_BUFFER_SIZE_DEFAULT = 64 * 1024; // 64 KB
 
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPool">the online documentation</a>
+     */
+    public static final String CONNECTION_POOL = "connectionPool";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPool">the online documentation</a>
+     */
+    public static final boolean CONNECTION_POOL_DEFAULT = false;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPoolMaxPerKey">the online documentation</a>
+     */
+    public static final String CONNECTION_POOL_MAX_PER_KEY = "connectionPoolMaxPerKey";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPoolMaxPerKey">the online documentation</a>
+     */
+    public static final int CONNECTION_POOL_MAX_PER_KEY_DEFAULT = 8;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPoolIdleTimeoutMillis">the online documentation</a>
+     */
+    public static final String CONNECTION_POOL_IDLE_TIMEOUT_MILLIS = "connectionPoolIdleTimeoutMillis";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPoolIdleTimeoutMillis">the online documentation</a>
+     */
+    public static final int CONNECTION_POOL_IDLE_TIMEOUT_MILLIS_DEFAULT = 300000;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPoolMaxWaitMillis">the online documentation</a>
+     */
+    public static final String CONNECTION_POOL_MAX_WAIT_MILLIS = "connectionPoolMaxWaitMillis";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#connectionPoolMaxWaitMillis">the online documentation</a>
+     */
+    public static final int CONNECTION_POOL_MAX_WAIT_MILLIS_DEFAULT = 120000;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#outputCharset">the online documentation</a>
+     */
+    public static final String OUTPUT_CHARSET = "outputCharset";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#metricsListener">the online documentation</a>
+     */
+    public static final String METRICS_LISTENER = "metricsListener";
+
     private final Map<String, Object> options;
 
     /**
@@ -23,9 +23,14 @@
 package com.xebialabs.overthere;
 
 import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.metrics.OverthereMetrics;
+import com.xebialabs.overthere.metrics.OverthereMetricsListener;
+import com.xebialabs.overthere.pool.JumpstationRegistry;
+import com.xebialabs.overthere.pool.OverthereConnectionPool;
 import com.xebialabs.overthere.spi.AddressPortMapper;
 import com.xebialabs.overthere.spi.OverthereConnectionBuilder;
 import com.xebialabs.overthere.spi.Protocol;
+import com.xebialabs.overthere.spi.ProtocolIndexProcessor;
 import com.xebialabs.overthere.util.DefaultAddressPortMapper;
 import nl.javadude.scannit.Configuration;
 import nl.javadude.scannit.Scannit;
@@ -33,15 +38,27 @@ import nl.javadude.scannit.scanner.TypeAnnotationScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.CONNECTION_POOL;
+import static com.xebialabs.overthere.ConnectionOptions.CONNECTION_POOL_DEFAULT;
 import static com.xebialabs.overthere.ConnectionOptions.JUMPSTATION;
+import static com.xebialabs.overthere.ConnectionOptions.JUMPSTATION_SHARED;
+import static com.xebialabs.overthere.ConnectionOptions.JUMPSTATION_SHARED_DEFAULT;
 import static com.xebialabs.overthere.ConnectionOptions.PROTOCOL;
+import static com.xebialabs.overthere.metrics.OverthereOperation.CONNECT;
+import static com.xebialabs.overthere.spi.ProtocolIndexProcessor.PROTOCOL_INDEX_RESOURCE;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
 import static com.xebialabs.overthere.ssh.SshJumpstationConnectionBuilder.SSH_JUMPSTATION_PROTOCOL;
 import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
@@ -54,11 +71,23 @@ public class Overthere {
     // The "logger" field has to be declared and defined at the top so that the static initializer below can access it
     private static final Logger logger = LoggerFactory.getLogger(Overthere.class);
 
-    private static final AtomicReference<Map<String, Class<? extends OverthereConnectionBuilder>>> protocols = new AtomicReference<Map<String, Class<? extends OverthereConnectionBuilder>>>(
+    /**
+     * System property that, when set to <code>true</code>, makes Overthere scan the classpath for protocols even if a
+     * protocol index is available. Without it, the classpath is only scanned when a protocol is requested that is not in
+     * the index, e.g. because it is provided by a jar that was built without the {@link ProtocolIndexProcessor}.
+     */
+    public static final String SCAN_PROTOCOLS_PROPERTY = "overthere.scanProtocols";
+
+    static final AtomicReference<Map<String, Class<? extends OverthereConnectionBuilder>>> protocols = new AtomicReference<Map<String, Class<? extends OverthereConnectionBuilder>>>(
             new HashMap<String, Class<? extends OverthereConnectionBuilder>>());
 
+    static volatile boolean protocolsScanned;
+
     static {
-        if (Scannit.isBooted()) {
+        Map<String, Class<? extends OverthereConnectionBuilder>> indexed = loadProtocolIndex(Overthere.class.getClassLoader());
+        if (!indexed.isEmpty() && !Boolean.getBoolean(SCAN_PROTOCOLS_PROPERTY)) {
+            protocols.set(indexed);
+        } else if (Scannit.isBooted()) {
             logger.info("Scannit already booted, checking to see whether it has scanned 'com.xebialabs'");
             Set<Class<?>> protocols = Scannit.getInstance().getTypesAnnotatedWith(Protocol.class);
             if (!protocols.isEmpty()) {
@@ -76,35 +105,143 @@ public class Overthere {
     }
 
     private static void boot(Scannit scannit) {
+        Map<String, Class<? extends OverthereConnectionBuilder>> all = new HashMap<String, Class<? extends OverthereConnectionBuilder>>(protocols.get());
+        all.putAll(scanProtocols(scannit));
+        protocols.set(all);
+        protocolsScanned = true;
+    }
+
+    /**
+     * Returns the connection builder of a protocol. If the protocol is unknown and the protocols were read from an index,
+     * the classpath is scanned once to find protocols that are not in the index.
+     */
+    static Class<? extends OverthereConnectionBuilder> findProtocol(String protocol) {
+        Class<? extends OverthereConnectionBuilder> builder = protocols.get().get(protocol);
+        if (builder != null || protocolsScanned) {
+            return builder;
+        }
+        synchronized (protocols) {
+            if (!protocolsScanned) {
+                logger.info("Protocol {} is not in the protocol index, scanning the classpath for protocols", protocol);
+                boot();
+            }
+        }
+        return protocols.get().get(protocol);
+    }
+
+    static Map<String, Class<? extends OverthereConnectionBuilder>> scanProtocols(Scannit scannit) {
+        Map<String, Class<? extends OverthereConnectionBuilder>> found = new HashMap<String, Class<? extends OverthereConnectionBuilder>>();
         final Set<Class<?>> protocolClasses = scannit.getTypesAnnotatedWith(Protocol.class);
         for (Class<?> protocol : protocolClasses) {
             if (OverthereConnectionBuilder.class.isAssignableFrom(protocol)) {
                 final String name = protocol.getAnnotation(Protocol.class).name();
-                Overthere.protocols.get().put(name, (Class<? extends OverthereConnectionBuilder>) protocol);
+                found.put(name, (Class<? extends OverthereConnectionBuilder>) protocol);
             } else {
                 logger.warn("Skipping class {} because it is not a HostConnectionBuilder.", protocol);
             }
         }
+        return found;
+    }
+
+    /**
+     * Reads the protocols from all {@value ProtocolIndexProcessor#PROTOCOL_INDEX_RESOURCE} resources generated by the
+     * {@link ProtocolIndexProcessor}.
+     */
+    static Map<String, Class<? extends OverthereConnectionBuilder>> loadProtocolIndex(ClassLoader classLoader) {
+        Map<String, Class<? extends OverthereConnectionBuilder>> found = new HashMap<String, Class<? extends OverthereConnectionBuilder>>();
+        try {
+            Enumeration<URL> indexes = classLoader.getResources(PROTOCOL_INDEX_RESOURCE);
+            while (indexes.hasMoreElements()) {
+                URL index = indexes.nextElement();
+                logger.debug("Reading protocol index {}", index);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), "UTF-8"));
+                try {
+                    for (String className : ProtocolIndexProcessor.readIndex(reader)) {
+                        registerIndexedProtocol(found, className, classLoader);
+                    }
+                } finally {
+                    closeQuietly(reader);
+                }
+            }
+        } catch (IOException exc) {
+            logger.warn("Cannot read protocol index, falling back to classpath scanning", exc);
+            found.clear();
+        }
+        return found;
     }
 
+    private static void registerIndexedProtocol(Map<String, Class<? extends OverthereConnectionBuilder>> found, String className, ClassLoader classLoader) {
+        Class<?> protocol;
+        try {
+            protocol = Class.forName(className, false, classLoader);
+        } catch (ClassNotFoundException | LinkageError exc) {
+            logger.warn("Skipping class {} from the protocol index because it cannot be loaded.", className);
+            return;
+        }
+        Protocol annotation = protocol.getAnnotation(Protocol.class);
+        if (annotation != null && OverthereConnectionBuilder.class.isAssignableFrom(protocol)) {
+            found.put(annotation.name(), (Class<? extends OverthereConnectionBuilder>) protocol);
+        } else {
+            logger.warn("Skipping class {} because it is not a HostConnectionBuilder.", protocol);
+        }
+    }
+
+    private static final OverthereConnectionPool connectionPool = new OverthereConnectionPool(new OverthereConnectionPool.ConnectionFactory() {
+        @Override
+        public OverthereConnection create(String protocol, ConnectionOptions options) {
+            return createConnection(protocol, options);
+        }
+    });
+
+    private static final JumpstationRegistry jumpstations = new JumpstationRegistry(new JumpstationRegistry.JumpstationFactory() {
+        @Override
+        public AddressPortMapper create(String protocol, ConnectionOptions options) {
+            return (AddressPortMapper) createConnection(protocol, options);
+        }
+    });
+
     private Overthere() {
         // should not instantiate
     }
 
     /**
-     * Creates a connection.
+     * Creates a connection. If the {@link ConnectionOptions#CONNECTION_POOL} connection option is set, the connection is
+     * borrowed from the {@link #getConnectionPool() connection pool} and closing it returns it to that pool.
      *
      * @param protocol The protocol to use, e.g. "local".
      * @param options  A set of options to use for the connection.
      * @return the connection.
      */
     public static OverthereConnection getConnection(String protocol, final ConnectionOptions options) {
-        if (!protocols.get().containsKey(protocol)) {
+        if (findProtocol(protocol) == null) {
             throw new IllegalArgumentException("Unknown connection protocol " + protocol);
         }
 
         logger.trace("Connection for protocol {} requested with the following connection options: {}", protocol, options);
 
+        if (options.getBoolean(CONNECTION_POOL, CONNECTION_POOL_DEFAULT)) {
+            return connectionPool.borrow(protocol, options);
+        }
+
+        return createConnection(protocol, options);
+    }
+
+    /**
+     * @return the pool used for connections that have the {@link ConnectionOptions#CONNECTION_POOL} connection option set.
+     */
+    public static OverthereConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return the registry of the jumpstations that are shared by connections that have the
+     * {@link ConnectionOptions#JUMPSTATION_SHARED} connection option set.
+     */
+    public static JumpstationRegistry getJumpstationRegistry() {
+        return jumpstations;
+    }
+
+    private static OverthereConnection createConnection(String protocol, ConnectionOptions options) {
         ConnectionOptions jumpstationOptions = options.getOptional(JUMPSTATION);
         AddressPortMapper mapper = DefaultAddressPortMapper.INSTANCE;
         if (jumpstationOptions != null) {
@@ -116,7 +253,15 @@ public class Overthere {
                 jumpstationProtocol = SSH_JUMPSTATION_PROTOCOL;
             }
 
-            mapper = (AddressPortMapper) Overthere.getConnection(jumpstationProtocol, jumpstationOptions);
+            if (findProtocol(jumpstationProtocol) == null) {
+                throw new IllegalArgumentException("Unknown connection protocol " + jumpstationProtocol);
+            }
+            // Jumpstations are never pooled themselves, but they can be shared by the connections that use them.
+            if (options.getBoolean(JUMPSTATION_SHARED, JUMPSTATION_SHARED_DEFAULT)) {
+                mapper = jumpstations.acquire(jumpstationProtocol, jumpstationOptions);
+            } else {
+                mapper = (AddressPortMapper) createConnection(jumpstationProtocol, jumpstationOptions);
+            }
         }
 
         try {
@@ -139,10 +284,19 @@ public class Overthere {
                 logger.info("Connecting to {}", connectionBuilder);
             }
 
-            OverthereConnection connection = connectionBuilder.connect();
+            OverthereMetricsListener metrics = OverthereMetrics.getListener(options);
+            long start = System.nanoTime();
+            boolean successful = false;
+            try {
+                OverthereConnection connection = connectionBuilder.connect();
+                successful = true;
 
-            logger.trace("Connected to {}", connection);
-            return connection;
+                logger.trace("Connected to {}", connection);
+                return connection;
+            } finally {
+                String address = options.getOptional(ADDRESS);
+                metrics.operationCompleted(protocol, address != null ? address : "localhost", CONNECT, System.nanoTime() - start, successful);
+            }
         } catch (NoSuchMethodException exc) {
             throw new IllegalStateException(connectionBuilderClass + " does not have a public constructor with the signature (String, ConnectionOptions, AddressPortMapper)", exc);
         } catch (IllegalAccessException| IllegalArgumentException | InstantiationException exc) {
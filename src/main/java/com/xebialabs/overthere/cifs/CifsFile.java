@@ -39,6 +39,8 @@ import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.BaseOverthereFile;
 
+import static com.xebialabs.overthere.metrics.OverthereOperation.LIST;
+import static com.xebialabs.overthere.metrics.OverthereOperation.STAT;
 import static java.lang.String.format;
 
 class CifsFile extends BaseOverthereFile<CifsConnection> {
@@ -83,10 +85,16 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
     public boolean exists() throws RuntimeIOException {
         logger.debug("Checking for existence of {}", smbFile.getUncPath());
 
+        long start = System.nanoTime();
+        boolean successful = false;
         try {
-            return smbFile.exists();
+            boolean exists = smbFile.exists();
+            successful = true;
+            return exists;
         } catch (SmbException exc) {
             throw new RuntimeIOException(format("Cannot determine existence of %s: %s", smbFile.getUncPath(), exc.toString()), exc);
+        } finally {
+            recordOperation(STAT, start, successful);
         }
     }
 
@@ -182,17 +190,22 @@ class CifsFile extends BaseOverthereFile<CifsConnection> {
     public List<OverthereFile> listFiles() throws RuntimeIOException {
         logger.debug("Listing directory {}", smbFile.getUncPath());
 
+        long start = System.nanoTime();
+        boolean successful = false;
         try {
             upgradeToDirectorySmbFile();
             List<OverthereFile> files = new ArrayList<OverthereFile>();
             for (String name : smbFile.list()) {
                 files.add(getFile(name));
             }
+            successful = true;
             return files;
         } catch (MalformedURLException exc) {
             throw new RuntimeIOException(format("Cannot list directory %s: %s", smbFile.getUncPath(), exc.toString()), exc);
         } catch (SmbException exc) {
             throw new RuntimeIOException(format("Cannot list directory %s: %s", smbFile.getUncPath(), exc.toString()), exc);
+        } finally {
+            recordOperation(LIST, start, successful);
         }
     }
 
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.fleet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * A running {@link FleetExecutor#execute(String, List, com.xebialabs.overthere.CmdLine) fleet execution}. Results can
+ * be consumed one by one as the hosts finish with {@link #next()}, or all at once with {@link #awaitAll()}.
+ */
+public class FleetExecution {
+
+    private final int size;
+    private final LinkedBlockingQueue<FleetResult> completed = new LinkedBlockingQueue<FleetResult>();
+    private final List<FleetResult> results;
+    private final CountDownLatch done;
+    private final AtomicInteger taken = new AtomicInteger();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    FleetExecution(int size) {
+        this.size = size;
+        this.results = new ArrayList<FleetResult>(size);
+        this.done = new CountDownLatch(size);
+    }
+
+    void complete(FleetResult result) {
+        synchronized (results) {
+            results.add(result);
+        }
+        done.countDown();
+        completed.add(result);
+    }
+
+    /**
+     * @return the number of hosts in this execution.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Waits for the next host to finish.
+     *
+     * @return the result of the next host to finish, or <code>null</code> if the results of all hosts have already been
+     * returned by this method.
+     */
+    public FleetResult next() {
+        if (taken.getAndIncrement() >= size) {
+            taken.decrementAndGet();
+            return null;
+        }
+        try {
+            return completed.take();
+        } catch (InterruptedException exc) {
+            taken.decrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while waiting for the next fleet result", exc);
+        }
+    }
+
+    /**
+     * Waits for all hosts to finish.
+     *
+     * @return the results of all hosts, in the order in which they finished.
+     */
+    public List<FleetResult> awaitAll() {
+        try {
+            done.await();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while waiting for the fleet execution to finish", exc);
+        }
+        synchronized (results) {
+            return new ArrayList<FleetResult>(results);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if all hosts have finished.
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Cancels the execution. Hosts that have not been connected to yet are skipped and finish with a
+     * {@link java.util.concurrent.CancellationException}. Commands that are already running are not interrupted.
+     */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    boolean isCancelled() {
+        return cancelled.get();
+    }
+
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.fleet;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.Overthere;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
+import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+
+/**
+ * Runs a {@link CmdLine command} on many hosts in parallel.
+ * <p/>
+ * Connecting and executing are done by two separate thread pools, so that the next hosts can be connected to (and
+ * authenticated) while the command is running on the hosts that are already connected. At most
+ * <code>connectParallelism</code> connections are being set up and at most <code>executeParallelism</code> commands
+ * are running at the same time. The number of hosts that are connected but waiting for an execution slot is bounded
+ * by <code>connectParallelism</code> too.
+ * <p/>
+ * The <code>perHostLimit</code> caps the number of concurrent connections to the same host address, for when the same
+ * host occurs more than once in the list of hosts (e.g. with different users). Hosts that have to wait for that limit do
+ * not take up a connect thread; they are queued again when one of the other connections to the same host is released.
+ * <p/>
+ * Connections are created with {@link Overthere#getConnection(String, ConnectionOptions)}, so the
+ * {@link ConnectionOptions#CONNECTION_POOL} connection option can be used to reuse them between executions.
+ */
+public class FleetExecutor implements Closeable {
+
+    private final int connectParallelism;
+    private final int executeParallelism;
+    private final int perHostLimit;
+    private final ExecutorService connectExecutor;
+    private final ExecutorService executeExecutor;
+    private volatile boolean closed;
+
+    /**
+     * Creates a fleet executor that connects to and executes on at most <code>parallelism</code> hosts at the same time.
+     *
+     * @param parallelism  the maximum number of hosts that are connected to at the same time, as well as the maximum
+     *                     number of commands that are running at the same time.
+     * @param perHostLimit the maximum number of concurrent connections to the same host address.
+     */
+    public FleetExecutor(int parallelism, int perHostLimit) {
+        this(parallelism, parallelism, perHostLimit);
+    }
+
+    /**
+     * Creates a fleet executor.
+     *
+     * @param connectParallelism the maximum number of connections that are being set up at the same time.
+     * @param executeParallelism the maximum number of commands that are running at the same time.
+     * @param perHostLimit       the maximum number of concurrent connections to the same host address.
+     */
+    public FleetExecutor(int connectParallelism, int executeParallelism, int perHostLimit) {
+        checkArgument(connectParallelism > 0, "connectParallelism must be greater than 0, but was %s", connectParallelism);
+        checkArgument(executeParallelism > 0, "executeParallelism must be greater than 0, but was %s", executeParallelism);
+        checkArgument(perHostLimit > 0, "perHostLimit must be greater than 0, but was %s", perHostLimit);
+        this.connectParallelism = connectParallelism;
+        this.executeParallelism = executeParallelism;
+        this.perHostLimit = perHostLimit;
+        this.connectExecutor = Executors.newFixedThreadPool(connectParallelism, new FleetThreadFactory("connect"));
+        this.executeExecutor = Executors.newFixedThreadPool(executeParallelism, new FleetThreadFactory("execute"));
+    }
+
+    /**
+     * Runs a command on a fleet of hosts. This method returns immediately; use the returned {@link FleetExecution} to
+     * retrieve the results as the hosts finish.
+     *
+     * @param protocol    the protocol to connect with.
+     * @param hosts       the connection options of each host.
+     * @param commandLine the command to run on each host.
+     * @return the running execution.
+     */
+    public FleetExecution execute(String protocol, List<ConnectionOptions> hosts, CmdLine commandLine) {
+        FleetExecution execution = new FleetExecution(hosts.size());
+        Semaphore inFlight = new Semaphore(connectParallelism + executeParallelism);
+        ConcurrentMap<String, HostSlots> hostSlots = new ConcurrentHashMap<String, HostSlots>();
+        for (ConnectionOptions options : hosts) {
+            submit(new HostRun(execution, protocol, options, commandLine, inFlight, hostSlots));
+        }
+        return execution;
+    }
+
+    private void submit(HostRun run) {
+        try {
+            connectExecutor.execute(run.connectStage);
+        } catch (RejectedExecutionException exc) {
+            run.fail(exc);
+        }
+    }
+
+    /**
+     * Connects to a host. The default implementation uses {@link Overthere#getConnection(String, ConnectionOptions)}.
+     *
+     * @param protocol the protocol to connect with.
+     * @param options  the connection options of the host.
+     * @return the connection.
+     */
+    protected OverthereConnection connect(String protocol, ConnectionOptions options) {
+        return Overthere.getConnection(protocol, options);
+    }
+
+    /**
+     * Returns the key that is used to apply the per-host limit. The default implementation uses the
+     * {@link ConnectionOptions#ADDRESS address} connection option.
+     *
+     * @param protocol the protocol to connect with.
+     * @param options  the connection options of the host.
+     * @return the key of the host.
+     */
+    protected String getHostKey(String protocol, ConnectionOptions options) {
+        String address = options.getOptional(ADDRESS);
+        return address != null ? address : protocol;
+    }
+
+    /**
+     * Stops the threads of this executor. Hosts that have not been connected to yet are not run; their results report a
+     * {@link CancellationException}. Commands that are already running are not interrupted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        connectExecutor.shutdown();
+        executeExecutor.shutdown();
+    }
+
+    private class HostRun {
+        private final FleetExecution execution;
+        private final String protocol;
+        private final ConnectionOptions options;
+        private final CmdLine commandLine;
+        private final Semaphore inFlight;
+        private final HostSlots hostSlots;
+        private final long submittedAt = System.currentTimeMillis();
+        private boolean holdsInFlight;
+        private boolean holdsHostSlot;
+        private OverthereConnection connection;
+        private long queuedMillis;
+        private long connectMillis;
+
+        HostRun(FleetExecution execution, String protocol, ConnectionOptions options, CmdLine commandLine, Semaphore inFlight,
+                ConcurrentMap<String, HostSlots> hostSlots) {
+            this.execution = execution;
+            this.protocol = protocol;
+            this.options = options;
+            this.commandLine = commandLine;
+            this.inFlight = inFlight;
+            String key = getHostKey(protocol, options);
+            HostSlots slots = hostSlots.get(key);
+            if (slots == null) {
+                HostSlots newSlots = new HostSlots();
+                slots = hostSlots.putIfAbsent(key, newSlots);
+                if (slots == null) {
+                    slots = newSlots;
+                }
+            }
+            this.hostSlots = slots;
+        }
+
+        final Runnable connectStage = new Runnable() {
+            @Override
+            public void run() {
+                Exception failure = null;
+                try {
+                    if (checkCancelled()) {
+                        return;
+                    }
+                    if (!hostSlots.tryAcquire(HostRun.this)) {
+                        logger.trace("Host of {} is at its limit of {} connections, queueing it", options, perHostLimit);
+                        return;
+                    }
+                    holdsHostSlot = true;
+                    inFlight.acquire();
+                    holdsInFlight = true;
+                    if (checkCancelled()) {
+                        return;
+                    }
+
+                    long start = System.currentTimeMillis();
+                    queuedMillis = start - submittedAt;
+                    connection = connect(protocol, options);
+                    connectMillis = System.currentTimeMillis() - start;
+
+                    executeExecutor.execute(executeStage);
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    failure = exc;
+                } catch (RuntimeException exc) {
+                    failure = exc;
+                } catch (Error err) {
+                    failure = new ExecutionException(err);
+                    throw err;
+                } finally {
+                    if (failure != null) {
+                        fail(failure);
+                    }
+                }
+            }
+        };
+
+        final Runnable executeStage = new Runnable() {
+            @Override
+            public void run() {
+                CapturingOverthereExecutionOutputHandler stdout = capturingHandler();
+                CapturingOverthereExecutionOutputHandler stderr = capturingHandler();
+                long start = System.currentTimeMillis();
+                int exitCode = -1;
+                Exception exception = null;
+                try {
+                    exitCode = connection.execute(stdout, stderr, commandLine);
+                } catch (RuntimeException exc) {
+                    logger.debug("Cannot execute [{}] on {}", commandLine, connection, exc);
+                    exception = exc;
+                } catch (Error err) {
+                    exception = new ExecutionException(err);
+                    throw err;
+                } finally {
+                    long executeMillis = System.currentTimeMillis() - start;
+                    release();
+                    execution.complete(new FleetResult(options, exitCode, stdout.getOutputLines(), stderr.getOutputLines(), exception,
+                            queuedMillis, connectMillis, executeMillis));
+                }
+            }
+        };
+
+        private boolean checkCancelled() {
+            if (closed) {
+                fail(new CancellationException("Fleet executor was closed"));
+                return true;
+            }
+            if (execution.isCancelled()) {
+                fail(new CancellationException("Fleet execution was cancelled"));
+                return true;
+            }
+            return false;
+        }
+
+        void fail(Exception exc) {
+            release();
+            execution.complete(new FleetResult(options, -1, Collections.<String>emptyList(), Collections.<String>emptyList(), exc,
+                    queuedMillis, connectMillis, 0));
+        }
+
+        private void release() {
+            closeQuietly(connection);
+            connection = null;
+            if (holdsInFlight) {
+                holdsInFlight = false;
+                inFlight.release();
+            }
+            if (holdsHostSlot) {
+                holdsHostSlot = false;
+                HostRun next = hostSlots.release();
+                if (next != null) {
+                    submit(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * The connections to one host. Runs that find the host at its limit are parked here instead of blocking a connect
+     * thread, and are submitted again one at a time as connections to the host are released.
+     */
+    private class HostSlots {
+        private final Deque<HostRun> waiting = new ArrayDeque<HostRun>();
+        private int available = perHostLimit;
+
+        synchronized boolean tryAcquire(HostRun run) {
+            if (available > 0) {
+                available--;
+                return true;
+            }
+            waiting.add(run);
+            return false;
+        }
+
+        synchronized HostRun release() {
+            available++;
+            return waiting.poll();
+        }
+    }
+
+    private static class FleetThreadFactory implements ThreadFactory {
+        private static final AtomicInteger executorCount = new AtomicInteger();
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        FleetThreadFactory(String stage) {
+            this.prefix = "overthere-fleet-" + executorCount.incrementAndGet() + "-" + stage + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(FleetExecutor.class);
+
+}
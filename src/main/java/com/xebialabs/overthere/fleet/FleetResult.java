@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.fleet;
+
+import java.util.List;
+
+import com.xebialabs.overthere.ConnectionOptions;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+
+/**
+ * The result of running a command on one host of a fleet.
+ */
+public class FleetResult {
+
+    private final ConnectionOptions options;
+    private final int exitCode;
+    private final List<String> outputLines;
+    private final List<String> errorLines;
+    private final Exception exception;
+    private final long queuedMillis;
+    private final long connectMillis;
+    private final long executeMillis;
+
+    FleetResult(ConnectionOptions options, int exitCode, List<String> outputLines, List<String> errorLines, Exception exception,
+                long queuedMillis, long connectMillis, long executeMillis) {
+        this.options = options;
+        this.exitCode = exitCode;
+        this.outputLines = outputLines;
+        this.errorLines = errorLines;
+        this.exception = exception;
+        this.queuedMillis = queuedMillis;
+        this.connectMillis = connectMillis;
+        this.executeMillis = executeMillis;
+    }
+
+    /**
+     * @return the connection options of the host.
+     */
+    public ConnectionOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the exit code of the command, or <code>-1</code> if the command could not be run.
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return the captured regular output lines.
+     */
+    public List<String> getOutputLines() {
+        return outputLines;
+    }
+
+    /**
+     * @return the captured error output lines.
+     */
+    public List<String> getErrorLines() {
+        return errorLines;
+    }
+
+    /**
+     * @return the exception that prevented the command from being run on the host, or <code>null</code>.
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * @return <code>true</code> if the command was run and returned exit code <code>0</code>.
+     */
+    public boolean isSuccessful() {
+        return exception == null && exitCode == 0;
+    }
+
+    /**
+     * @return the number of milliseconds the host waited before its connection was started.
+     */
+    public long getQueuedMillis() {
+        return queuedMillis;
+    }
+
+    /**
+     * @return the number of milliseconds it took to connect to the host.
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * @return the number of milliseconds between the connection being established and the command finishing.
+     */
+    public long getExecuteMillis() {
+        return executeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "FleetResult[" + options.getOptional(ADDRESS) + ", exitCode=" + exitCode + (exception != null ? ", exception=" + exception : "") + "]";
+    }
+
+}
@@ -31,6 +31,7 @@ import com.xebialabs.overthere.util.DefaultAddressPortMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 
@@ -151,13 +152,19 @@ public class LocalConnection extends BaseOverthereConnection implements Overther
     }
 
     /**
-     * Override this from {@link com.xebialabs.overthere.spi.BaseOverthereConnection#finalize()}, because the LocalConnection needn't be closed, so it should not log messages.
-     * @throws Throwable
+     * A LocalConnection needn't be closed, so it does not log a message when it is garbage collected without having been
+     * closed.
      */
     @Override
-    protected void finalize() throws Throwable {
-        closeQuietly(this);
-        super.finalize();
+    protected boolean reportLeak() {
+        return false;
+    }
+
+    @Override
+    protected void temporaryFileHolderDirectoryCreated(OverthereFile holder) {
+        if (deleteTemporaryDirectoryOnDisconnect) {
+            addLeakCleanup(new TemporaryDirectoryCleanup(((LocalFile) holder).getFile()));
+        }
     }
 
     /**
@@ -182,4 +189,30 @@ public class LocalConnection extends BaseOverthereConnection implements Overther
 
     private static final Logger logger = LoggerFactory.getLogger(LocalConnection.class);
 
+    private static class TemporaryDirectoryCleanup implements Closeable {
+        private final File directory;
+
+        TemporaryDirectoryCleanup(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void close() {
+            logger.info("Deleting temporary directory {}", directory);
+            deleteRecursively(directory);
+        }
+
+        private static void deleteRecursively(File file) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+            if (!file.delete()) {
+                logger.warn("Could not delete {}", file);
+            }
+        }
+    }
+
 }
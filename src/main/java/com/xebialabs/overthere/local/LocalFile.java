@@ -26,6 +26,7 @@ import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.BaseOverthereFile;
+import com.xebialabs.overthere.spi.PositionalReadable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,12 +35,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
 
 /**
  * A local file.
  */
 @SuppressWarnings("serial")
-public class LocalFile extends BaseOverthereFile<LocalConnection> implements Serializable {
+public class LocalFile extends BaseOverthereFile<LocalConnection> implements PositionalReadable, Serializable {
 
     protected File file;
 
@@ -210,6 +212,27 @@ public class LocalFile extends BaseOverthereFile<LocalConnection> implements Ser
         }
     }
 
+    @Override
+    public InputStream getInputStream(long offset) {
+        logger.debug("Opening file input stream for {} at offset {}", this, offset);
+
+        InputStream in = getInputStream();
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    break;
+                }
+                skipped += n;
+            }
+            return in;
+        } catch (IOException exc) {
+            closeQuietly(in);
+            throw new RuntimeIOException("Cannot open " + this + " for reading at offset " + offset, exc);
+        }
+    }
+
     @Override
     public OutputStream getOutputStream() {
         logger.debug("Opening file output stream for {}", this);
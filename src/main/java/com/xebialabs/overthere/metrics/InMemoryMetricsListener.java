@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.metrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An {@link OverthereMetricsListener} that keeps counters, byte totals and latency histograms in memory, per host and
+ * per operation. Meant for tests, benchmarks and simple monitoring.
+ */
+public class InMemoryMetricsListener implements OverthereMetricsListener {
+
+    private static final int OPERATIONS = OverthereOperation.values().length;
+
+    private final ConcurrentMap<String, Stats[]> statsByHost = new ConcurrentHashMap<String, Stats[]>();
+
+    @Override
+    public void operationCompleted(String protocol, String host, OverthereOperation operation, long durationNanos, boolean successful) {
+        getOrCreate(host, operation).record(durationNanos, successful);
+    }
+
+    @Override
+    public void bytesTransferred(String protocol, String host, OverthereOperation operation, long bytes) {
+        getOrCreate(host, operation).bytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return the hosts for which metrics have been recorded.
+     */
+    public Set<String> getHosts() {
+        return statsByHost.keySet();
+    }
+
+    /**
+     * Returns the statistics of one operation on one host.
+     *
+     * @param host      the host.
+     * @param operation the operation.
+     * @return the statistics, empty if nothing was recorded.
+     */
+    public Stats getStats(String host, OverthereOperation operation) {
+        Stats[] byOperation = statsByHost.get(host);
+        if (byOperation == null) {
+            return new Stats();
+        }
+        return byOperation[operation.ordinal()];
+    }
+
+    /**
+     * Returns the statistics of one operation, aggregated over all hosts.
+     *
+     * @param operation the operation.
+     * @return the aggregated statistics.
+     */
+    public Stats getStats(OverthereOperation operation) {
+        Stats total = new Stats();
+        for (Stats[] byOperation : statsByHost.values()) {
+            total.add(byOperation[operation.ordinal()]);
+        }
+        return total;
+    }
+
+    /**
+     * Clears all recorded metrics.
+     */
+    public void reset() {
+        statsByHost.clear();
+    }
+
+    private Stats getOrCreate(String host, OverthereOperation operation) {
+        Stats[] byOperation = statsByHost.get(host);
+        if (byOperation == null) {
+            Stats[] created = new Stats[OPERATIONS];
+            for (int i = 0; i < OPERATIONS; i++) {
+                created[i] = new Stats();
+            }
+            byOperation = statsByHost.putIfAbsent(host, created);
+            if (byOperation == null) {
+                byOperation = created;
+            }
+        }
+        return byOperation[operation.ordinal()];
+    }
+
+    /**
+     * The statistics of an operation. Latencies are kept in a histogram with power-of-two buckets, so percentiles are
+     * accurate to within a factor of two.
+     */
+    public static class Stats {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long durationNanos, boolean successful) {
+            long nanos = Math.max(0, durationNanos);
+            count.incrementAndGet();
+            if (!successful) {
+                failures.incrementAndGet();
+            }
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+            histogram.incrementAndGet(bucket(nanos));
+        }
+
+        void add(Stats other) {
+            count.addAndGet(other.count.get());
+            failures.addAndGet(other.failures.get());
+            bytes.addAndGet(other.bytes.get());
+            totalNanos.addAndGet(other.totalNanos.get());
+            maxNanos.set(Math.max(maxNanos.get(), other.maxNanos.get()));
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.addAndGet(i, other.histogram.get(i));
+            }
+        }
+
+        private static int bucket(long nanos) {
+            return nanos == 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos) - 1;
+        }
+
+        /**
+         * @return the number of times the operation completed.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the number of times the operation failed.
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return the total number of bytes transferred by the operation.
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return the total duration of the operation in nanoseconds.
+         */
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        /**
+         * @return the longest duration of the operation in nanoseconds.
+         */
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @return the mean duration of the operation in nanoseconds.
+         */
+        public long getMeanNanos() {
+            long c = count.get();
+            return c == 0 ? 0 : totalNanos.get() / c;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the duration of the operation.
+         *
+         * @param percentile the percentile, between 0 and 100.
+         * @return the upper bound of the bucket containing the percentile, in nanoseconds.
+         */
+        public long getPercentileNanos(double percentile) {
+            long c = count.get();
+            if (c == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * c);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[count=" + getCount() + ", failures=" + getFailures() + ", bytes=" + getBytes() + ", mean=" + getMeanNanos()
+                    + "ns, p99=" + getPercentileNanos(99) + "ns, max=" + getMaxNanos() + "ns]";
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.metrics;
+
+import com.xebialabs.overthere.ConnectionOptions;
+
+import static com.xebialabs.overthere.ConnectionOptions.METRICS_LISTENER;
+
+/**
+ * Holds the global {@link OverthereMetricsListener} and resolves the listener to use for a connection.
+ */
+public final class OverthereMetrics {
+
+    /**
+     * Listener that ignores all metrics. This is the default.
+     */
+    public static final OverthereMetricsListener NO_OP = new OverthereMetricsListener() {
+        @Override
+        public void operationCompleted(String protocol, String host, OverthereOperation operation, long durationNanos, boolean successful) {
+            // no-op
+        }
+
+        @Override
+        public void bytesTransferred(String protocol, String host, OverthereOperation operation, long bytes) {
+            // no-op
+        }
+    };
+
+    private static volatile OverthereMetricsListener globalListener = NO_OP;
+
+    private OverthereMetrics() {
+        // should not instantiate
+    }
+
+    /**
+     * Sets the listener used for connections that do not have the {@link ConnectionOptions#METRICS_LISTENER} connection
+     * option set.
+     *
+     * @param listener the listener, or <code>null</code> to disable global metrics.
+     */
+    public static void setGlobalListener(OverthereMetricsListener listener) {
+        globalListener = listener != null ? listener : NO_OP;
+    }
+
+    /**
+     * @return the listener used for connections that do not have the {@link ConnectionOptions#METRICS_LISTENER}
+     * connection option set.
+     */
+    public static OverthereMetricsListener getGlobalListener() {
+        return globalListener;
+    }
+
+    /**
+     * Returns the listener to use for a connection with the given options.
+     *
+     * @param options the connection options.
+     * @return the listener configured in the options, or the global listener.
+     */
+    public static OverthereMetricsListener getListener(ConnectionOptions options) {
+        OverthereMetricsListener listener = options.getOptional(METRICS_LISTENER);
+        return listener != null ? listener : globalListener;
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.metrics;
+
+/**
+ * Receives the metrics of the operations performed by connections. A listener can be set for a connection with the
+ * {@link com.xebialabs.overthere.ConnectionOptions#METRICS_LISTENER} connection option, or for all connections with
+ * {@link OverthereMetrics#setGlobalListener(OverthereMetricsListener)}.
+ * <p/>
+ * Implementations are invoked from the threads that perform the operations, so they must be thread-safe and fast.
+ */
+public interface OverthereMetricsListener {
+
+    /**
+     * Invoked when an operation has finished.
+     *
+     * @param protocol       the protocol of the connection.
+     * @param host           the address of the host the operation was performed on.
+     * @param operation      the type of operation.
+     * @param durationNanos  the duration of the operation in nanoseconds.
+     * @param successful     <code>false</code> if the operation failed with an exception.
+     */
+    void operationCompleted(String protocol, String host, OverthereOperation operation, long durationNanos, boolean successful);
+
+    /**
+     * Invoked when an operation that transfers data has finished.
+     *
+     * @param protocol  the protocol of the connection.
+     * @param host      the address of the host the data was transferred to or from.
+     * @param operation the type of operation.
+     * @param bytes     the number of bytes transferred.
+     */
+    void bytesTransferred(String protocol, String host, OverthereOperation operation, long bytes);
+
+}
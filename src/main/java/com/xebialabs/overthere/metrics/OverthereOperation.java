@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.metrics;
+
+/**
+ * The types of operation reported to an {@link OverthereMetricsListener}.
+ */
+public enum OverthereOperation {
+    /** Setting up a connection, including authentication. */
+    CONNECT,
+    /** Authenticating on an established transport. */
+    AUTHENTICATE,
+    /** Opening a channel, shell or session to run a command on. */
+    CHANNEL_OPEN,
+    /** Waiting for a channel to become available because the channel limit of a connection was reached. */
+    CHANNEL_WAIT,
+    /** Executing a command, from start to exit. */
+    EXECUTE,
+    /** Retrieving the attributes of a file. */
+    STAT,
+    /** Listing the contents of a directory. */
+    LIST,
+    /** Reading a file, from opening to closing the stream. */
+    READ,
+    /** Writing a file, from opening to closing the stream. */
+    WRITE,
+    /** Closing a connection. */
+    DISCONNECT
+}
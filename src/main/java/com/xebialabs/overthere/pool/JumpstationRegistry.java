@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.pool;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.SocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.spi.BaseOverthereConnection;
+import com.xebialabs.overthere.spi.SocketFactoryMapper;
+import com.xebialabs.overthere.util.OverthereUtils;
+
+import static com.xebialabs.overthere.util.OverthereUtils.checkState;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+
+/**
+ * A reference-counted registry of jumpstation connections, keyed by protocol and jumpstation connection options.
+ * <p/>
+ * All connections that are made through a jumpstation with the same options share a single jumpstation connection, so
+ * that their port forwards are multiplexed over one authenticated transport. Each caller of
+ * {@link #acquire(String, ConnectionOptions)} gets its own handle to the shared jumpstation. The jumpstation is closed
+ * when the last handle is closed. A jumpstation that has been disconnected is replaced on the next
+ * {@link #acquire(String, ConnectionOptions) acquire}.
+ */
+public class JumpstationRegistry {
+
+    /**
+     * Creates the jumpstation connections held by the registry.
+     */
+    public interface JumpstationFactory {
+        AddressPortMapper create(String protocol, ConnectionOptions options);
+    }
+
+    private final JumpstationFactory factory;
+
+    private final Map<OverthereConnectionPool.Key, Entry> entries = new HashMap<OverthereConnectionPool.Key, Entry>();
+
+    public JumpstationRegistry(JumpstationFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns a handle to the jumpstation for the protocol and options, connecting to it if no connected jumpstation is
+     * registered for them yet. Closing the handle releases it.
+     *
+     * @param protocol the protocol of the jumpstation.
+     * @param options  the connection options of the jumpstation.
+     * @return the handle.
+     */
+    public AddressPortMapper acquire(String protocol, ConnectionOptions options) {
+        OverthereConnectionPool.Key key = new OverthereConnectionPool.Key(protocol, options);
+        Entry entry;
+        boolean create = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.isReady() && !entry.isUsable()) {
+                logger.debug("Shared jumpstation {} is no longer connected, replacing it", entry.mapper);
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                create = true;
+            }
+            entry.references++;
+        }
+
+        if (create) {
+            try {
+                entry.mapper = factory.create(protocol, options);
+            } catch (RuntimeException exc) {
+                entry.failure = exc;
+                synchronized (this) {
+                    if (entries.get(key) == entry) {
+                        entries.remove(key);
+                    }
+                }
+            } finally {
+                entry.ready.countDown();
+            }
+        } else {
+            try {
+                entry.ready.await();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                release(entry);
+                throw new RuntimeIOException("Interrupted while waiting for the connection to jumpstation " + protocol, exc);
+            }
+        }
+
+        if (entry.failure != null) {
+            throw entry.failure;
+        }
+        logger.debug("Acquired shared jumpstation {}", entry.mapper);
+        return new SharedJumpstation(entry);
+    }
+
+    /**
+     * @return the number of jumpstations currently registered.
+     */
+    public synchronized int getJumpstationCount() {
+        return entries.size();
+    }
+
+    /**
+     * @param protocol the protocol of the jumpstation.
+     * @param options  the connection options of the jumpstation.
+     * @return the number of open handles to the jumpstation for the protocol and options.
+     */
+    public synchronized int getReferenceCount(String protocol, ConnectionOptions options) {
+        Entry entry = entries.get(new OverthereConnectionPool.Key(protocol, options));
+        return entry != null ? entry.references : 0;
+    }
+
+    private void release(Entry entry) {
+        AddressPortMapper toClose = null;
+        synchronized (this) {
+            checkState(entry.references > 0, "Jumpstation %s has been released more often than it has been acquired", entry.key);
+            entry.references--;
+            if (entry.references == 0) {
+                if (entries.get(entry.key) == entry) {
+                    entries.remove(entry.key);
+                }
+                toClose = entry.mapper;
+            }
+        }
+        if (toClose != null) {
+            logger.debug("Closing shared jumpstation {}", toClose);
+            closeQuietly(toClose);
+        }
+    }
+
+    private static class Entry {
+        private final OverthereConnectionPool.Key key;
+        private final CountDownLatch ready = new CountDownLatch(1);
+        private int references;
+        private volatile AddressPortMapper mapper;
+        private volatile RuntimeException failure;
+
+        Entry(OverthereConnectionPool.Key key) {
+            this.key = key;
+        }
+
+        boolean isReady() {
+            return ready.getCount() == 0;
+        }
+
+        boolean isUsable() {
+            if (failure != null) {
+                return false;
+            }
+            return !(mapper instanceof BaseOverthereConnection) || ((BaseOverthereConnection) mapper).isConnected();
+        }
+    }
+
+    private class SharedJumpstation implements AddressPortMapper, SocketFactoryMapper {
+        private final Entry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        SharedJumpstation(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public InetSocketAddress map(InetSocketAddress address) {
+            checkState(!closed.get(), "Jumpstation %s has been released", entry.mapper);
+            return entry.mapper.map(address);
+        }
+
+        @Override
+        public InetSocketAddress mapForSocketFactory(InetSocketAddress address) {
+            checkState(!closed.get(), "Jumpstation %s has been released", entry.mapper);
+            return OverthereUtils.mapForSocketFactory(entry.mapper, address);
+        }
+
+        @Override
+        public SocketFactory socketFactory() {
+            return entry.mapper.socketFactory();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "shared " + entry.mapper;
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(JumpstationRegistry.class);
+
+}
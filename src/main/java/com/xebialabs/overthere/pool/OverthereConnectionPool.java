@@ -0,0 +1,405 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.pool;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.BaseOverthereConnection;
+
+import static com.xebialabs.overthere.ConnectionOptions.*;
+import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static java.lang.String.format;
+
+/**
+ * A pool of {@link OverthereConnection connections}, keyed by protocol and connection options.
+ * <p/>
+ * Connections are handed out wrapped in a {@link PooledOverthereConnection}. Closing that wrapper returns the underlying
+ * connection to the pool instead of disconnecting it. Idle connections are disconnected after the idle timeout
+ * configured with {@link ConnectionOptions#CONNECTION_POOL_IDLE_TIMEOUT_MILLIS} and are checked for liveness before
+ * they are handed out again.
+ * <p/>
+ * The number of connections leased for a single key is limited by {@link ConnectionOptions#CONNECTION_POOL_MAX_PER_KEY}.
+ * When that limit is reached, callers wait at most {@link ConnectionOptions#CONNECTION_POOL_MAX_WAIT_MILLIS} for a
+ * connection to be returned.
+ */
+public class OverthereConnectionPool {
+
+    /**
+     * Creates the physical connections held by the pool.
+     */
+    public interface ConnectionFactory {
+        OverthereConnection create(String protocol, ConnectionOptions options);
+    }
+
+    private final ConnectionFactory factory;
+
+    private final ConcurrentMap<Key, KeyedPool> pools = new ConcurrentHashMap<Key, KeyedPool>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong waits = new AtomicLong();
+
+    private final AtomicLong waitTimeMillis = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ScheduledExecutorService evictor;
+
+    public OverthereConnectionPool(ConnectionFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Borrows a connection from the pool, creating a new one if no idle connection is available for the given protocol
+     * and options.
+     *
+     * @param protocol the protocol of the connection.
+     * @param options  the options of the connection.
+     * @return a connection that returns itself to the pool when it is closed.
+     */
+    public OverthereConnection borrow(String protocol, ConnectionOptions options) {
+        ConnectionOptions snapshot = new ConnectionOptions(options);
+        KeyedPool pool = enter(new Key(protocol, snapshot), snapshot);
+        try {
+            pool.acquirePermit();
+        } catch (RuntimeException exc) {
+            pool.leave();
+            throw exc;
+        }
+
+        try {
+            OverthereConnection connection;
+            while ((connection = pool.pollIdle()) != null) {
+                if (isAlive(connection)) {
+                    hits.incrementAndGet();
+                    logger.debug("Reusing pooled connection {}", connection);
+                    return new PooledOverthereConnection(this, pool, connection);
+                }
+                logger.debug("Evicting pooled connection {} because it is no longer connected", connection);
+                evictions.incrementAndGet();
+                closeQuietly(connection);
+            }
+
+            misses.incrementAndGet();
+            connection = factory.create(protocol, snapshot);
+            return new PooledOverthereConnection(this, pool, connection);
+        } catch (RuntimeException exc) {
+            pool.permits.release();
+            pool.leave();
+            throw exc;
+        }
+    }
+
+    private KeyedPool enter(Key key, ConnectionOptions options) {
+        for (;;) {
+            KeyedPool pool = pools.get(key);
+            if (pool == null) {
+                KeyedPool newPool = new KeyedPool(key, options);
+                pool = pools.putIfAbsent(key, newPool);
+                if (pool == null) {
+                    pool = newPool;
+                    startEvictor(newPool.idleTimeoutMillis);
+                }
+            }
+            // A pool that was removed while we looked it up cannot be entered; look up (or create) its successor.
+            if (pool.enter()) {
+                return pool;
+            }
+        }
+    }
+
+    void release(KeyedPool pool, OverthereConnection connection) {
+        try {
+            if (isAlive(connection)) {
+                connection.setWorkingDirectory(null);
+                pool.idle.offerFirst(new IdleConnection(connection));
+                logger.debug("Returned connection {} to the pool", connection);
+            } else {
+                closeQuietly(connection);
+            }
+        } catch (RuntimeException exc) {
+            logger.warn(format("Cannot return connection %s to the pool, closing it", connection), exc);
+            closeQuietly(connection);
+        } finally {
+            pool.permits.release();
+            pool.leave();
+        }
+    }
+
+    /**
+     * Disconnects all idle connections held by the pool. Connections that are currently leased are not affected.
+     */
+    public void closeIdleConnections() {
+        for (KeyedPool pool : pools.values()) {
+            IdleConnection idle;
+            while ((idle = pool.idle.pollLast()) != null) {
+                closeQuietly(idle.connection);
+            }
+            pool.removeIfUnused();
+        }
+    }
+
+    void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (KeyedPool pool : pools.values()) {
+            Iterator<IdleConnection> it = pool.idle.descendingIterator();
+            while (it.hasNext()) {
+                IdleConnection idle = it.next();
+                if (now - idle.returnedAt >= pool.idleTimeoutMillis && pool.idle.removeFirstOccurrence(idle)) {
+                    logger.debug("Evicting pooled connection {} because it has been idle for too long", idle.connection);
+                    evictions.incrementAndGet();
+                    closeQuietly(idle.connection);
+                }
+            }
+            pool.removeIfUnused();
+        }
+    }
+
+    private synchronized void startEvictor(long idleTimeoutMillis) {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "overthere-connection-pool-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis / 2, 60000));
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evictIdleConnections();
+                } catch (RuntimeException exc) {
+                    logger.warn("Error while evicting idle pooled connections", exc);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isAlive(OverthereConnection connection) {
+        if (connection instanceof BaseOverthereConnection) {
+            return ((BaseOverthereConnection) connection).isConnected();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of times a connection was served from the pool.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of times a new connection had to be created.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of times a caller had to wait because the maximum number of connections for a key was leased.
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * @return the total time in milliseconds callers have waited for a connection.
+     */
+    public long getWaitTimeMillis() {
+        return waitTimeMillis.get();
+    }
+
+    /**
+     * @return the number of connections that were disconnected because they were idle for too long or no longer
+     * connected.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of connections currently idle in the pool.
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (KeyedPool pool : pools.values()) {
+            count += pool.idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of connections currently leased from the pool.
+     */
+    public int getLeasedCount() {
+        int count = 0;
+        for (KeyedPool pool : pools.values()) {
+            count += pool.maxPerKey - pool.permits.availablePermits();
+        }
+        return count;
+    }
+
+    int getKeyCount() {
+        return pools.size();
+    }
+
+    static class Key {
+        private final String protocol;
+        private final ConnectionOptions options;
+
+        Key(String protocol, ConnectionOptions options) {
+            this.protocol = protocol;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return protocol.equals(other.protocol) && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * protocol.hashCode() + options.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return protocol + ":" + options;
+        }
+    }
+
+    class KeyedPool {
+        private final Key key;
+        private final int maxPerKey;
+        private final long idleTimeoutMillis;
+        private final long maxWaitMillis;
+        private final Semaphore permits;
+        private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<IdleConnection>();
+        private int users;
+        private boolean removed;
+
+        KeyedPool(Key key, ConnectionOptions options) {
+            this.key = key;
+            this.maxPerKey = options.getInteger(CONNECTION_POOL_MAX_PER_KEY, CONNECTION_POOL_MAX_PER_KEY_DEFAULT);
+            this.idleTimeoutMillis = options.getInteger(CONNECTION_POOL_IDLE_TIMEOUT_MILLIS, CONNECTION_POOL_IDLE_TIMEOUT_MILLIS_DEFAULT);
+            this.maxWaitMillis = options.getInteger(CONNECTION_POOL_MAX_WAIT_MILLIS, CONNECTION_POOL_MAX_WAIT_MILLIS_DEFAULT);
+            checkArgument(maxPerKey > 0, "Value for %s must be greater than 0, but was %s", CONNECTION_POOL_MAX_PER_KEY, maxPerKey);
+            this.permits = new Semaphore(maxPerKey, true);
+        }
+
+        void acquirePermit() {
+            if (permits.tryAcquire()) {
+                return;
+            }
+            waits.incrementAndGet();
+            long start = System.currentTimeMillis();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException("Interrupted while waiting for a pooled connection to " + key.protocol, exc);
+            } finally {
+                waitTimeMillis.addAndGet(System.currentTimeMillis() - start);
+            }
+            if (!acquired) {
+                throw new RuntimeIOException(format("Timed out after %d ms waiting for a pooled %s connection; all %d connections are in use",
+                        maxWaitMillis, key.protocol, maxPerKey));
+            }
+        }
+
+        /**
+         * Registers a caller that is waiting for or holding a connection from this pool.
+         *
+         * @return <code>false</code> if this pool has already been removed from the pool map.
+         */
+        synchronized boolean enter() {
+            if (removed) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        synchronized void leave() {
+            users--;
+            removeIfUnused();
+        }
+
+        /**
+         * Removes this pool from the pool map once no caller is waiting for or holding one of its connections and it
+         * holds no idle connections. Idle connections are only added by callers that are still registered, so an
+         * unused pool stays empty.
+         */
+        synchronized void removeIfUnused() {
+            if (!removed && users == 0 && idle.isEmpty()) {
+                removed = true;
+                pools.remove(key, this);
+                logger.debug("Removed connection pool for {} because it holds no connections", key.protocol);
+            }
+        }
+
+        OverthereConnection pollIdle() {
+            IdleConnection c = idle.pollFirst();
+            return c == null ? null : c.connection;
+        }
+    }
+
+    private static class IdleConnection {
+        private final OverthereConnection connection;
+        private final long returnedAt = System.currentTimeMillis();
+
+        IdleConnection(OverthereConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(OverthereConnectionPool.class);
+
+}
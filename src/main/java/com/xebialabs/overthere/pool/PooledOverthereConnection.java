@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.pool;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+import com.xebialabs.overthere.RuntimeIOException;
+
+import static com.xebialabs.overthere.util.OverthereUtils.checkState;
+
+/**
+ * A connection leased from an {@link OverthereConnectionPool}. All calls are delegated to the underlying connection,
+ * except for {@link #close()} which returns the underlying connection to the pool.
+ * <p/>
+ * <b>N.B.:</b> Temporary files created through a pooled connection are only removed when the underlying connection is
+ * disconnected, i.e. when it is evicted from the pool.
+ */
+public class PooledOverthereConnection implements OverthereConnection {
+
+    private final OverthereConnectionPool pool;
+    private final OverthereConnectionPool.KeyedPool keyedPool;
+    private final OverthereConnection delegate;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    PooledOverthereConnection(OverthereConnectionPool pool, OverthereConnectionPool.KeyedPool keyedPool, OverthereConnection delegate) {
+        this.pool = pool;
+        this.keyedPool = keyedPool;
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the underlying connection.
+     */
+    public OverthereConnection getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public ConnectionOptions getOptions() {
+        return delegate.getOptions();
+    }
+
+    @Override
+    public OperatingSystemFamily getHostOperatingSystem() {
+        return delegate.getHostOperatingSystem();
+    }
+
+    @Override
+    public OverthereFile getFile(String hostPath) {
+        checkOpen();
+        return delegate.getFile(hostPath);
+    }
+
+    @Override
+    public OverthereFile getFile(OverthereFile parent, String child) {
+        checkOpen();
+        return delegate.getFile(parent, child);
+    }
+
+    @Override
+    public OverthereFile getTempFile(String nameTemplate) {
+        checkOpen();
+        return delegate.getTempFile(nameTemplate);
+    }
+
+    @Override
+    public OverthereFile getTempFile(String prefix, String suffix) throws RuntimeIOException {
+        checkOpen();
+        return delegate.getTempFile(prefix, suffix);
+    }
+
+    @Override
+    public OverthereFile getWorkingDirectory() {
+        checkOpen();
+        return delegate.getWorkingDirectory();
+    }
+
+    @Override
+    public void setWorkingDirectory(OverthereFile workingDirectory) {
+        checkOpen();
+        delegate.setWorkingDirectory(workingDirectory);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public int execute(OverthereProcessOutputHandler handler, CmdLine commandLine) {
+        checkOpen();
+        return delegate.execute(handler, commandLine);
+    }
+
+    @Override
+    public int execute(CmdLine commandLine) {
+        checkOpen();
+        return delegate.execute(commandLine);
+    }
+
+    @Override
+    public int execute(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, CmdLine commandLine) {
+        checkOpen();
+        return delegate.execute(stdoutHandler, stderrHandler, commandLine);
+    }
+
+    @Override
+    public OverthereProcess startProcess(CmdLine commandLine) {
+        checkOpen();
+        return delegate.startProcess(commandLine);
+    }
+
+    @Override
+    public boolean canStartProcess() {
+        return delegate.canStartProcess();
+    }
+
+    /**
+     * Returns the underlying connection to the pool. Subsequent invocations have no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            pool.release(keyedPool, delegate);
+        }
+    }
+
+    private void checkOpen() {
+        checkState(!closed.get(), "Pooled connection %s has already been returned to the pool", delegate);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+}
@@ -22,6 +22,7 @@
  */
 package com.xebialabs.overthere.smb;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.Security;
@@ -102,6 +103,7 @@ public class SmbConnection extends BaseOverthereConnection {
     public void connect() {
         createConnection();
         connected();
+        addLeakCleanup(new SessionCleanup(connection, session));
     }
 
     private void createConnection() {
@@ -202,4 +204,29 @@ public class SmbConnection extends BaseOverthereConnection {
     }
 
     private static Logger logger = LoggerFactory.getLogger(SmbConnection.class);
+
+    private static class SessionCleanup implements Closeable {
+        private final Connection connection;
+        private final Session session;
+
+        SessionCleanup(Connection connection, Session session) {
+            this.connection = connection;
+            this.session = session;
+        }
+
+        @Override
+        public void close() {
+            try {
+                session.close();
+            } catch (IOException e) {
+                logger.warn("Exception while trying to close smb session", e);
+            } finally {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    logger.warn("Exception while trying to close smb connection", e);
+                }
+            }
+        }
+    }
 }
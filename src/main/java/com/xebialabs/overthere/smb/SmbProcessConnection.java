@@ -30,6 +30,7 @@ import com.xebialabs.overthere.cifs.CifsConnectionType;
 import com.xebialabs.overthere.spi.ProcessConnection;
 import com.xebialabs.overthere.spi.AddressPortMapper;
 import static com.xebialabs.overthere.cifs.BaseCifsConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.metrics.OverthereOperation.CHANNEL_OPEN;
 
 public class SmbProcessConnection extends SmbConnection {
 
@@ -64,6 +65,14 @@ public class SmbProcessConnection extends SmbConnection {
 
     @Override
     public OverthereProcess startProcess(final CmdLine cmd) {
-        return processConnection.startProcess(cmd);
+        long start = System.nanoTime();
+        boolean successful = false;
+        try {
+            OverthereProcess process = processConnection.startProcess(cmd);
+            successful = true;
+            return process;
+        } finally {
+            recordOperation(CHANNEL_OPEN, start, successful);
+        }
     }
 }
@@ -22,14 +22,20 @@
  */
 package com.xebialabs.overthere.spi;
 
+import java.io.Closeable;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,10 +48,15 @@ import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.OverthereProcessOutputHandler;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.metrics.OverthereMetrics;
+import com.xebialabs.overthere.metrics.OverthereMetricsListener;
+import com.xebialabs.overthere.metrics.OverthereOperation;
 import org.slf4j.MDC;
 
 import static com.xebialabs.overthere.util.OverthereUtils.checkNotNull;
 import static com.xebialabs.overthere.ConnectionOptions.*;
+import static com.xebialabs.overthere.metrics.OverthereOperation.DISCONNECT;
+import static com.xebialabs.overthere.metrics.OverthereOperation.EXECUTE;
 import static com.xebialabs.overthere.util.ConsoleOverthereExecutionOutputHandler.syserrHandler;
 import static com.xebialabs.overthere.util.ConsoleOverthereExecutionOutputHandler.sysoutHandler;
 import static com.xebialabs.overthere.util.OverthereProcessOutputHandlerWrapper.wrapStderr;
@@ -62,6 +73,9 @@ import static java.lang.String.format;
 public abstract class BaseOverthereConnection implements OverthereConnection {
 
     private static Logger logger = LoggerFactory.getLogger(BaseOverthereConnection.class);
+    private static final String TEMPORARY_FILE_COLLISION_DIRECTORY_PREFIX = "ot-";
+    private static final String TEMPORARY_FILE_PRIVATE_DIRECTORY_PREFIX = "otp-";
+    private static final SecureRandom temporaryFileRandom = new SecureRandom();
     protected final String protocol;
     protected final ConnectionOptions options;
     protected final AddressPortMapper mapper;
@@ -73,12 +87,19 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
     protected final boolean deleteTemporaryDirectoryOnDisconnect;
     protected final int temporaryFileCreationRetries;
     protected final String temporaryFileHolderDirectoryNamePrefix;
-    protected final List<OverthereFile> temporaryFileHolderDirectories = new ArrayList<OverthereFile>();
+    protected final List<OverthereFile> temporaryFileHolderDirectories = new CopyOnWriteArrayList<OverthereFile>();
     protected final int streamBufferSize;
+    protected final Charset outputCharset;
+    protected final String metricsHost;
+    private final OverthereMetricsListener metricsListener;
     protected int temporaryFileHolderDirectoryNameSuffix = 0;
+    private final Object temporaryFileHolderDirectoryLock = new Object();
+    private volatile OverthereFile temporaryFileDirectory;
+    private final ConcurrentMap<String, AtomicInteger> temporaryFileNameCounters = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<Integer, OverthereFile> temporaryFileCollisionDirectories = new ConcurrentHashMap<Integer, OverthereFile>();
     protected OverthereFile workingDirectory;
     private volatile boolean isConnected;
-    private Throwable openStack;
+    private ConnectionLeakDetector.Leak leak;
 
     protected BaseOverthereConnection(final String protocol, final ConnectionOptions options, final AddressPortMapper mapper, final boolean canStartProcess) {
         this.protocol = checkNotNull(protocol, "Cannot create OverthereConnection with null protocol");
@@ -93,11 +114,53 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
         this.temporaryFileCreationRetries = options.getInteger(TEMPORARY_FILE_CREATION_RETRIES, TEMPORARY_FILE_CREATION_RETRIES_DEFAULT);
         this.temporaryFileHolderDirectoryNamePrefix = "ot-" + (new SimpleDateFormat("yyyyMMdd'T'HHmmssSSS")).format(new Date());
         this.streamBufferSize = options.getInteger(REMOTE_COPY_BUFFER_SIZE, REMOTE_COPY_BUFFER_SIZE_DEFAULT);
+        String charsetName = options.getOptional(OUTPUT_CHARSET);
+        this.outputCharset = charsetName != null ? Charset.forName(charsetName) : Charset.defaultCharset();
+        String address = options.getOptional(ADDRESS);
+        this.metricsHost = address != null ? address : "localhost";
+        this.metricsListener = options.getOptional(METRICS_LISTENER);
     }
 
     protected void connected() {
         this.isConnected = true;
-        this.openStack = new Throwable("Opened here...");
+        if (leak == null) {
+            this.leak = ConnectionLeakDetector.track(this, toString(), reportLeak());
+            // Releases e.g. the reference to a shared jumpstation
+            addLeakCleanup(mapper);
+        }
+    }
+
+    /**
+     * Returns whether it should be logged when this connection is garbage collected without having been closed. See
+     * {@link ConnectionLeakDetector}.
+     *
+     * @return <code>true</code> if leaks are logged, <code>false</code> if they are only cleaned up.
+     */
+    protected boolean reportLeak() {
+        return true;
+    }
+
+    /**
+     * Registers a resource to close when this connection is garbage collected without having been closed. The resource
+     * must not refer to this connection.
+     *
+     * @param cleanup the resource to close.
+     */
+    protected void addLeakCleanup(Closeable cleanup) {
+        ConnectionLeakDetector.Leak l = leak;
+        if (l != null) {
+            l.addCleanup(cleanup);
+        }
+    }
+
+    /**
+     * Returns whether this connection is still connected to the host. Subclasses may override this to also check the
+     * state of the underlying transport.
+     *
+     * @return <code>true</code> if the connection is connected, <code>false</code> otherwise.
+     */
+    public boolean isConnected() {
+        return isConnected;
     }
 
     /**
@@ -120,6 +183,8 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
             return;
         }
 
+        long start = System.nanoTime();
+        boolean successful = false;
         try {
             if (deleteTemporaryDirectoryOnDisconnect) {
                 deleteConnectionTemporaryDirectory();
@@ -128,13 +193,46 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
             doClose();
 
             closeQuietly(mapper);
-
+            successful = true;
         } finally {
             logDisconnect();
             isConnected = false;
+            if (leak != null) {
+                leak.close();
+                leak = null;
+            }
+            recordOperation(DISCONNECT, start, successful);
         }
     }
 
+    /**
+     * @return the listener that receives the metrics of this connection.
+     */
+    protected OverthereMetricsListener getMetricsListener() {
+        return metricsListener != null ? metricsListener : OverthereMetrics.getGlobalListener();
+    }
+
+    /**
+     * Reports a finished operation to the {@link #getMetricsListener() metrics listener}.
+     *
+     * @param operation  the operation.
+     * @param startNanos the value of {@link System#nanoTime()} when the operation started.
+     * @param successful whether the operation succeeded.
+     */
+    protected void recordOperation(OverthereOperation operation, long startNanos, boolean successful) {
+        getMetricsListener().operationCompleted(protocol, metricsHost, operation, System.nanoTime() - startNanos, successful);
+    }
+
+    /**
+     * Reports the number of bytes transferred by an operation to the {@link #getMetricsListener() metrics listener}.
+     *
+     * @param operation the operation.
+     * @param bytes     the number of bytes transferred.
+     */
+    protected void recordBytes(OverthereOperation operation, long bytes) {
+        getMetricsListener().bytesTransferred(protocol, metricsHost, operation, bytes);
+    }
+
     protected void logDisconnect() {
         logger.info("Disconnected from {}", this);
     }
@@ -169,16 +267,62 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
      * Creates a reference to a temporary file on the host. This file has a unique name and will be automatically
      * removed when this connection is closed. <b>N.B.:</b> The file is not actually created until a put method is
      * invoked.
+     * <p/>
+     * All temporary files of a connection are placed in one holder directory that is created on the first invocation.
+     * The first temporary file with a given name is placed directly in that holder directory, later ones with the same
+     * name in numbered subdirectories of it. Apart from creating those directories once, no remote calls are made.
+     * If {@link #isTemporaryFileHolderDirectoryWorldWritable() other users can write to the holder directory}, the
+     * files and numbered subdirectories are placed in a subdirectory with an unpredictable name instead, which is also
+     * created once.
      *
      * @param name the name of the temporary file. May be <code>null</code>.
      * @return a reference to the temporary file on the host
      */
     @Override
-    public final synchronized OverthereFile getTempFile(String name) {
+    public final OverthereFile getTempFile(String name) {
         if (name == null || name.trim().isEmpty()) {
             name = "tmp";
         }
 
+        // Names are compared case-insensitively so that files do not clash on case-insensitive file systems.
+        String key = name.toLowerCase(Locale.ROOT);
+        AtomicInteger counter = temporaryFileNameCounters.get(key);
+        if (counter == null) {
+            AtomicInteger newCounter = new AtomicInteger(isCollisionDirectoryName(key) ? 1 : 0);
+            counter = temporaryFileNameCounters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+
+        int collision = counter.getAndIncrement();
+        OverthereFile dir = getTemporaryFileDirectory();
+        OverthereFile parent = collision == 0 ? dir : getTemporaryFileCollisionDirectory(dir, collision);
+        OverthereFile tempFile = parent.getFile(name);
+        logger.debug("Generated temporary file name {}", tempFile);
+        return tempFile;
+    }
+
+    /**
+     * Returns the directory that the temporary files and their numbered subdirectories are placed in: the holder
+     * directory, or the private directory in it if other users can write to the holder directory.
+     */
+    private OverthereFile getTemporaryFileDirectory() {
+        OverthereFile dir = temporaryFileDirectory;
+        if (dir != null) {
+            return dir;
+        }
+
+        synchronized (temporaryFileHolderDirectoryLock) {
+            if (temporaryFileDirectory == null) {
+                OverthereFile holder = createTemporaryFileHolderDirectory();
+                temporaryFileDirectory = isTemporaryFileHolderDirectoryWorldWritable() ? createPrivateTemporaryFileDirectory(holder) : holder;
+            }
+            return temporaryFileDirectory;
+        }
+    }
+
+    private OverthereFile createTemporaryFileHolderDirectory() {
         OverthereFile temporaryDirectory = getFile(temporaryDirectoryPath);
         RuntimeException originalExc = null;
         for (int i = 0; i <= temporaryFileCreationRetries; i++) {
@@ -188,14 +332,13 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
             }
             OverthereFile holder = getFileForTempFile(temporaryDirectory, holderName);
             if (!holder.exists()) {
-                logger.trace("Creating holder directory {} for temporary file with name {}", holder, name);
+                logger.trace("Creating holder directory {} for temporary files", holder);
                 try {
                     originalExc = null;
                     holder.mkdir();
                     temporaryFileHolderDirectories.add(holder);
-                    OverthereFile tempFile = holder.getFile(name);
-                    logger.debug("Generated temporary file name {}", tempFile);
-                    return tempFile;
+                    temporaryFileHolderDirectoryCreated(holder);
+                    return holder;
                 } catch(RuntimeException exc) {
                     originalExc = exc;
                     logger.debug(format("Failed to create holder directory %s - Trying with the next suffix", holder), exc);
@@ -211,6 +354,83 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
         }
     }
 
+    /**
+     * Returns whether users other than the one this connection logs in as can create files in the temporary file holder
+     * directory, e.g. because commands run as another user who needs to access the temporary files as well. Names in
+     * that directory must then not be predictable, because another user could plant a file or a link there before the
+     * temporary file is written.
+     *
+     * @return <code>true</code> if other users can write to the temporary file holder directory.
+     */
+    protected boolean isTemporaryFileHolderDirectoryWorldWritable() {
+        return false;
+    }
+
+    /**
+     * Creates a subdirectory with a random name in the holder directory. The directory is created by this connection, so
+     * nothing can have been placed in it in advance, and other users cannot guess its name to place anything in it
+     * later; if another user has created a directory with the same name, another name is tried.
+     */
+    private OverthereFile createPrivateTemporaryFileDirectory(OverthereFile holder) {
+        RuntimeException originalExc = null;
+        for (int i = 0; i <= temporaryFileCreationRetries; i++) {
+            byte[] random = new byte[8];
+            temporaryFileRandom.nextBytes(random);
+            StringBuilder dirName = new StringBuilder(TEMPORARY_FILE_PRIVATE_DIRECTORY_PREFIX);
+            for (byte b : random) {
+                dirName.append(format("%02x", b & 0xff));
+            }
+            OverthereFile dir = getFileForTempFile(holder, dirName.toString());
+            try {
+                dir.mkdir();
+                return dir;
+            } catch (RuntimeException exc) {
+                originalExc = exc;
+                logger.debug(format("Failed to create private directory %s for temporary files - Trying with another name", dir), exc);
+            }
+        }
+        throw new RuntimeIOException("Cannot generate a unique temporary file name on " + this, originalExc);
+    }
+
+    /**
+     * Invoked when the directory that holds the temporary files of this connection has been created.
+     *
+     * @param holder the holder directory.
+     */
+    protected void temporaryFileHolderDirectoryCreated(OverthereFile holder) {
+    }
+
+    private OverthereFile getTemporaryFileCollisionDirectory(OverthereFile parent, int collision) {
+        OverthereFile dir = temporaryFileCollisionDirectories.get(collision);
+        if (dir != null) {
+            return dir;
+        }
+
+        synchronized (temporaryFileCollisionDirectories) {
+            dir = temporaryFileCollisionDirectories.get(collision);
+            if (dir == null) {
+                // Only this connection knows the directory, so there is no need to check for existence first.
+                dir = getFileForTempFile(parent, TEMPORARY_FILE_COLLISION_DIRECTORY_PREFIX + collision);
+                logger.trace("Creating directory {} for temporary files with names that have already been handed out", dir);
+                dir.mkdir();
+                temporaryFileCollisionDirectories.put(collision, dir);
+            }
+            return dir;
+        }
+    }
+
+    private static boolean isCollisionDirectoryName(String name) {
+        if (!name.startsWith(TEMPORARY_FILE_COLLISION_DIRECTORY_PREFIX) || name.length() == TEMPORARY_FILE_COLLISION_DIRECTORY_PREFIX.length()) {
+            return false;
+        }
+        for (int i = TEMPORARY_FILE_COLLISION_DIRECTORY_PREFIX.length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void deleteConnectionTemporaryDirectory() {
         for (OverthereFile d : temporaryFileHolderDirectories) {
             try {
@@ -269,21 +489,22 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
 
     @Override
     public int execute(final OverthereExecutionOutputHandler stdoutHandler, final OverthereExecutionOutputHandler stderrHandler, final CmdLine commandLine) {
+        long start = System.nanoTime();
+        boolean successful = false;
         final OverthereProcess process = startProcess(commandLine);
-        Thread stdoutReaderThread = null;
-        Thread stderrReaderThread = null;
+        OverthereRuntime.Pump stdoutPump = null;
+        OverthereRuntime.Pump stderrPump = null;
         final CountDownLatch latch = new CountDownLatch(2);
         try {
             Map<String, String> mdcContext =  MDC.getCopyOfContextMap();
-            stdoutReaderThread = getThread("stdout", commandLine.toString(), stdoutHandler, process.getStdout(), latch, mdcContext);
-            stdoutReaderThread.start();
-
-            stderrReaderThread = getThread("stderr", commandLine.toString(), stderrHandler, process.getStderr(), latch, mdcContext);
-            stderrReaderThread.start();
+            stdoutPump = startPump("stdout", commandLine.toString(), stdoutHandler, process.getStdout(), latch, mdcContext);
+            stderrPump = startPump("stderr", commandLine.toString(), stderrHandler, process.getStderr(), latch, mdcContext);
 
             try {
                 latch.await();
-                return process.waitFor();
+                int exitCode = process.waitFor();
+                successful = true;
+                return exitCode;
             } catch (InterruptedException exc) {
                 Thread.currentThread().interrupt();
 
@@ -293,53 +514,37 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
                 throw new RuntimeIOException("Execution interrupted", exc);
             }
         } finally {
-            quietlyJoinThread(stdoutReaderThread);
-            quietlyJoinThread(stderrReaderThread);
+            quietlyJoinPump(stdoutPump);
+            quietlyJoinPump(stderrPump);
+            recordOperation(EXECUTE, start, successful);
         }
     }
 
-    private void quietlyJoinThread(final Thread thread) {
-        if (thread != null) {
+    private void quietlyJoinPump(final OverthereRuntime.Pump pump) {
+        if (pump != null) {
             try {
-                // interrupt the thread in case it is stuck waiting for output that will never come
-                thread.interrupt();
-                thread.join();
+                // interrupt the pump in case it is stuck waiting for output that will never come
+                pump.interrupt();
+                pump.join();
             } catch (InterruptedException ignored) {
                 Thread.currentThread().interrupt();
             }
         }
     }
 
-    private Thread getThread(final String streamName, final String commandLine, final OverthereExecutionOutputHandler outputHandler, final InputStream stream, final CountDownLatch latch, final Map<String, String> mdcContext) {
-        Thread t = new Thread(format("%s reader", streamName)) {
+    private OverthereRuntime.Pump startPump(final String streamName, final String commandLine, final OverthereExecutionOutputHandler outputHandler, final InputStream stream, final CountDownLatch latch, final Map<String, String> mdcContext) {
+        return OverthereRuntime.start(format("%s reader", streamName), new Runnable() {
             @Override
             public void run() {
                 Map<String, String> previous = MDC.getCopyOfContextMap();
                 setMDCContext(mdcContext);
-                StringBuilder lineBuffer = new StringBuilder();
-                InputStreamReader stdoutReader = new InputStreamReader(stream);
                 latch.countDown();
                 try {
-                    int cInt = stdoutReader.read();
-                    while (cInt > -1) {
-                        char c = (char) cInt;
-                        outputHandler.handleChar(c);
-                        if (c != '\r' && c != '\n') {
-                            lineBuffer.append(c);
-                        }
-                        if (c == '\n') {
-                            outputHandler.handleLine(lineBuffer.toString());
-                            lineBuffer.setLength(0);
-                        }
-                        cInt = stdoutReader.read();
-                    }
+                    new OutputPump(stream, outputCharset, outputHandler).pump();
                 } catch (Exception exc) {
-                    logger.error(format("An exception occured reading %s while executing [%s] on %s", streamName, commandLine, this), exc);
+                    logger.error(format("An exception occured reading %s while executing [%s] on %s", streamName, commandLine, BaseOverthereConnection.this), exc);
                 } finally {
-                    closeQuietly(stdoutReader);
-                    if (lineBuffer.length() > 0) {
-                        outputHandler.handleLine(lineBuffer.toString());
-                    }
+                    closeQuietly(stream);
                     setMDCContext(previous);
                 }
             }
@@ -351,9 +556,7 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
                     MDC.setContextMap(context);
                 }
             }
-        };
-        t.setDaemon(true);
-        return t;
+        });
     }
 
     /**
@@ -413,18 +616,4 @@ public abstract class BaseOverthereConnection implements OverthereConnection {
         result = 31 * result + options.hashCode();
         return result;
     }
-
-    /**
-     * Make sure that the connection is cleaned up. This will log error messages if the connection is collected before it is cleaned up.
-     *
-     * @throws Throwable
-     */
-    @Override
-    protected void finalize() throws Throwable {
-        if (isConnected) {
-            logger.error(String.format("Connection [%s] was not closed, closing automatically.", this), openStack);
-            closeQuietly(this);
-        }
-        super.finalize();
-    }
 }
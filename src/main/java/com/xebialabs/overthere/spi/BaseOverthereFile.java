@@ -24,6 +24,7 @@ package com.xebialabs.overthere.spi;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import org.slf4j.Logger;
@@ -32,6 +33,8 @@ import org.slf4j.LoggerFactory;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.metrics.OverthereMetrics;
+import com.xebialabs.overthere.metrics.OverthereOperation;
 import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
 import com.xebialabs.overthere.util.OverthereFileCopier;
 
@@ -52,6 +55,8 @@ import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHand
 import static com.xebialabs.overthere.util.LoggingOverthereExecutionOutputHandler.loggingErrorHandler;
 import static com.xebialabs.overthere.util.LoggingOverthereExecutionOutputHandler.loggingOutputHandler;
 import static com.xebialabs.overthere.util.MultipleOverthereExecutionOutputHandler.multiHandler;
+import static com.xebialabs.overthere.metrics.OverthereOperation.READ;
+import static com.xebialabs.overthere.metrics.OverthereOperation.WRITE;
 import static java.lang.String.format;
 
 /**
@@ -167,7 +172,10 @@ public abstract class BaseOverthereFile<C extends BaseOverthereConnection> imple
         }
         int streamBufferSize = getConnection().streamBufferSize;
         logger.debug("Using buffer of size [{}] for streaming from [{}]", streamBufferSize, this);
-        return new BufferedInputStream(is, streamBufferSize);
+        if (getConnection().getMetricsListener() == OverthereMetrics.NO_OP) {
+            return new BufferedInputStream(is, streamBufferSize);
+        }
+        return new MeteredInputStream(is, streamBufferSize, getConnection());
     }
 
     protected OutputStream asBuffered(OutputStream os) {
@@ -176,7 +184,122 @@ public abstract class BaseOverthereFile<C extends BaseOverthereConnection> imple
         }
         int streamBufferSize = getConnection().streamBufferSize;
         logger.debug("Using buffer of size [{}] for streaming to [{}]", streamBufferSize, this);
-        return new BufferedOutputStream(os, getConnection().streamBufferSize);
+        if (getConnection().getMetricsListener() == OverthereMetrics.NO_OP) {
+            return new BufferedOutputStream(os, streamBufferSize);
+        }
+        return new MeteredOutputStream(os, streamBufferSize, getConnection());
+    }
+
+    /**
+     * Reports a finished operation on this file to the metrics listener of the connection.
+     *
+     * @param operation  the operation.
+     * @param startNanos the value of {@link System#nanoTime()} when the operation started.
+     * @param successful whether the operation succeeded.
+     */
+    protected void recordOperation(OverthereOperation operation, long startNanos, boolean successful) {
+        getConnection().recordOperation(operation, startNanos, successful);
+    }
+
+    /**
+     * Buffered stream that reports the {@link OverthereOperation#READ} metrics when it is closed.
+     */
+    private static class MeteredInputStream extends BufferedInputStream {
+        private final BaseOverthereConnection connection;
+        private final long start = System.nanoTime();
+        private long bytes;
+        private boolean closed;
+
+        MeteredInputStream(InputStream in, int size, BaseOverthereConnection connection) {
+            super(in, size);
+            this.connection = connection;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytes += n;
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean successful = false;
+            try {
+                super.close();
+                successful = true;
+            } finally {
+                synchronized (this) {
+                    if (!closed) {
+                        closed = true;
+                        connection.recordBytes(READ, bytes);
+                        connection.recordOperation(READ, start, successful);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffered stream that reports the {@link OverthereOperation#WRITE} metrics when it is closed.
+     */
+    private static class MeteredOutputStream extends BufferedOutputStream {
+        private final BaseOverthereConnection connection;
+        private final long start = System.nanoTime();
+        private long bytes;
+        private boolean closed;
+
+        MeteredOutputStream(OutputStream out, int size, BaseOverthereConnection connection) {
+            super(out, size);
+            this.connection = connection;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            super.write(b);
+            bytes++;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            bytes += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean successful = false;
+            try {
+                super.close();
+                successful = true;
+            } finally {
+                synchronized (this) {
+                    if (!closed) {
+                        closed = true;
+                        connection.recordBytes(WRITE, bytes);
+                        connection.recordOperation(WRITE, start, successful);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
+import static com.xebialabs.overthere.util.OverthereUtils.checkNotNull;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static java.lang.String.format;
+
+/**
+ * Detects connections that are garbage collected without having been closed.
+ * <p/>
+ * Every connection that is tracked is registered with a {@link PhantomReference}, so that tracking does not delay
+ * garbage collection the way a finalizer does. Collected connections are detected, reported and cleaned up by a reaper
+ * task that runs on the {@link OverthereRuntime} once the first connection is tracked, so that the resources of a leaked
+ * connection are released even if no other connection is opened. {@link #detectLeaks()} does the same on the calling
+ * thread. Because the connection itself is no longer available
+ * at that point, only the {@link Leak#addCleanup(Closeable) cleanups} registered for it can be run. They are run in the
+ * reverse order of registration, so that e.g. a temporary directory can still be deleted over a transport that is closed
+ * afterwards.
+ * <p/>
+ * Capturing the stack trace of the code that opened a connection is expensive, so how much information is gathered is
+ * governed by the {@link Level}, which is read from the {@value #LEVEL_PROPERTY} system property.
+ */
+public final class ConnectionLeakDetector {
+
+    private static Logger logger = LoggerFactory.getLogger(ConnectionLeakDetector.class);
+
+    /**
+     * System property that configures the {@link Level}. Defaults to {@link Level#SAMPLED}.
+     */
+    public static final String LEVEL_PROPERTY = "overthere.leakDetection.level";
+
+    /**
+     * System property that configures how many connections are tracked per captured stack trace at level
+     * {@link Level#SAMPLED}.
+     */
+    public static final String SAMPLING_INTERVAL_PROPERTY = "overthere.leakDetection.samplingInterval";
+
+    public static final int SAMPLING_INTERVAL_DEFAULT = 128;
+
+    /**
+     * The amount of information gathered about connections.
+     */
+    public enum Level {
+        /**
+         * Connections are not tracked. Leaked connections are neither reported nor cleaned up.
+         */
+        DISABLED,
+
+        /**
+         * Leaked connections are reported and cleaned up, without a stack trace.
+         */
+        SIMPLE,
+
+        /**
+         * Like {@link #SIMPLE}, but the stack trace of the code that opened the connection is captured for a sample of
+         * the connections.
+         */
+        SAMPLED,
+
+        /**
+         * Like {@link #SIMPLE}, but the stack trace of the code that opened the connection is captured for every
+         * connection. Meant for tests.
+         */
+        PARANOID
+    }
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    private static final Set<Leak> leaks = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+
+    private static volatile Level level = parseLevel(System.getProperty(LEVEL_PROPERTY));
+
+    private static volatile int samplingInterval = Integer.getInteger(SAMPLING_INTERVAL_PROPERTY, SAMPLING_INTERVAL_DEFAULT);
+
+    private static final AtomicBoolean reaperStarted = new AtomicBoolean();
+
+    private ConnectionLeakDetector() {
+        // should not instantiate
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level level) {
+        ConnectionLeakDetector.level = checkNotNull(level, "level is null");
+    }
+
+    public static int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public static void setSamplingInterval(int samplingInterval) {
+        checkArgument(samplingInterval > 0, "samplingInterval must be positive, not %s", samplingInterval);
+        ConnectionLeakDetector.samplingInterval = samplingInterval;
+    }
+
+    /**
+     * Starts tracking a connection.
+     *
+     * @param connection  the connection to track.
+     * @param description the description used when the connection is reported. Must not refer to the connection.
+     * @param report      whether to log a leak of this connection. If <code>false</code>, a leak is only cleaned up.
+     * @return the leak record that must be {@link Leak#close() closed} when the connection is closed, or <code>null</code>
+     * if leak detection is disabled.
+     */
+    public static Leak track(Object connection, String description, boolean report) {
+        detectLeaks();
+
+        Level current = level;
+        if (current == Level.DISABLED) {
+            return null;
+        }
+
+        Throwable openStack = null;
+        if (report && (current == Level.PARANOID || (current == Level.SAMPLED && ThreadLocalRandom.current().nextInt(samplingInterval) == 0))) {
+            openStack = new Throwable("Opened here...");
+        }
+
+        Leak leak = new Leak(connection, description, report, openStack);
+        leaks.add(leak);
+        startReaper();
+        return leak;
+    }
+
+    /**
+     * Reports and cleans up the connections that have been garbage collected without having been closed.
+     *
+     * @return the number of leaked connections found.
+     */
+    public static int detectLeaks() {
+        int found = 0;
+        for (Reference<?> ref = queue.poll(); ref != null; ref = queue.poll()) {
+            if (reap(ref)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static boolean reap(Reference<?> ref) {
+        Leak leak = (Leak) ref;
+        if (!leaks.remove(leak)) {
+            return false;
+        }
+        leak.report();
+        return true;
+    }
+
+    /**
+     * Starts the task that waits for collected connections, unless it is already running. The task stops when it is
+     * interrupted, e.g. when the executor it runs on is shut down, and is started again when the next connection is
+     * tracked.
+     */
+    private static void startReaper() {
+        if (!reaperStarted.compareAndSet(false, true)) {
+            return;
+        }
+        OverthereRuntime.start("Overthere connection leak reaper", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        reap(queue.remove());
+                    }
+                } catch (InterruptedException exc) {
+                    logger.debug("Connection leak reaper was interrupted, it will be started again for the next connection");
+                } finally {
+                    reaperStarted.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of connections currently tracked.
+     */
+    public static int getTrackedCount() {
+        return leaks.size();
+    }
+
+    private static Level parseLevel(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Level.SAMPLED;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exc) {
+            logger.warn("Unknown value [{}] for system property {}, using {}", value, LEVEL_PROPERTY, Level.SAMPLED);
+            return Level.SAMPLED;
+        }
+    }
+
+    /**
+     * The record of a tracked connection.
+     */
+    public static final class Leak extends PhantomReference<Object> implements Closeable {
+
+        private final String description;
+
+        private final boolean report;
+
+        private final Throwable openStack;
+
+        private final List<Closeable> cleanups = new CopyOnWriteArrayList<Closeable>();
+
+        private Leak(Object connection, String description, boolean report, Throwable openStack) {
+            super(connection, queue);
+            this.description = description;
+            this.report = report;
+            this.openStack = openStack;
+        }
+
+        /**
+         * Registers a resource to close if the connection leaks. The resource must not refer to the connection, or the
+         * connection will never be garbage collected.
+         *
+         * @param cleanup the resource to close.
+         */
+        public void addCleanup(Closeable cleanup) {
+            cleanups.add(checkNotNull(cleanup, "cleanup is null"));
+        }
+
+        /**
+         * Stops tracking the connection. To be invoked when the connection is closed.
+         */
+        @Override
+        public void close() {
+            leaks.remove(this);
+            cleanups.clear();
+            clear();
+        }
+
+        private void report() {
+            List<Closeable> toClose = new ArrayList<Closeable>(cleanups);
+            Collections.reverse(toClose);
+            if (report) {
+                if (openStack != null) {
+                    logger.error(format("Connection [%s] was not closed, releasing the %d resources it left open.", description, toClose.size()), openStack);
+                } else {
+                    logger.error("Connection [{}] was not closed, releasing the {} resources it left open. Set system property {} to {} to see where it was opened.",
+                            description, toClose.size(), LEVEL_PROPERTY, Level.PARANOID.name().toLowerCase(Locale.ROOT));
+                }
+            }
+            for (Closeable cleanup : toClose) {
+                closeQuietly(cleanup);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.xebialabs.overthere.OverthereExecutionOutputBulkHandler;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+
+/**
+ * Reads the output of a process and sends it to an {@link OverthereExecutionOutputHandler}. The output is read and
+ * decoded in chunks into buffers that are reused for the whole stream. Chunks consisting only of ASCII characters are
+ * not passed through the charset decoder when the charset is ASCII-compatible.
+ */
+class OutputPump {
+
+    static final int BUFFER_SIZE = 8192;
+
+    private static final ConcurrentMap<Charset, Boolean> asciiCompatible = new ConcurrentHashMap<Charset, Boolean>();
+
+    private final InputStream stream;
+    private final OverthereExecutionOutputHandler handler;
+    private final OverthereExecutionOutputBulkHandler bulkHandler;
+    private final CharsetDecoder decoder;
+    private final boolean asciiFastPath;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final StringBuilder lineBuffer = new StringBuilder();
+
+    OutputPump(InputStream stream, Charset charset, OverthereExecutionOutputHandler handler) {
+        this.stream = stream;
+        this.handler = handler;
+        this.bulkHandler = handler instanceof OverthereExecutionOutputBulkHandler ? (OverthereExecutionOutputBulkHandler) handler : null;
+        this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiFastPath = isAsciiCompatible(charset);
+    }
+
+    /**
+     * Pumps the stream until it is exhausted. The last line is sent to the handler even if it is not terminated by a
+     * newline, also when reading fails.
+     */
+    void pump() throws IOException {
+        byte[] byteArray = bytes.array();
+        char[] charArray = chars.array();
+        try {
+            for (; ; ) {
+                int n = stream.read(byteArray, bytes.position(), bytes.remaining());
+                if (n < 0) {
+                    break;
+                }
+                bytes.position(bytes.position() + n);
+                bytes.flip();
+                if (asciiFastPath && isAscii(byteArray, bytes.position(), bytes.limit())) {
+                    int len = bytes.remaining();
+                    for (int i = 0; i < len; i++) {
+                        charArray[i] = (char) byteArray[i];
+                    }
+                    bytes.clear();
+                    dispatch(charArray, len);
+                } else {
+                    decode(false);
+                    bytes.compact();
+                }
+            }
+            bytes.flip();
+            decode(true);
+            decoder.flush(chars);
+            drainChars();
+        } finally {
+            if (lineBuffer.length() > 0) {
+                handler.handleLine(lineBuffer.toString());
+                lineBuffer.setLength(0);
+            }
+        }
+    }
+
+    private void decode(boolean endOfInput) {
+        for (; ; ) {
+            boolean overflow = decoder.decode(bytes, chars, endOfInput).isOverflow();
+            drainChars();
+            if (!overflow) {
+                return;
+            }
+        }
+    }
+
+    private void drainChars() {
+        chars.flip();
+        dispatch(chars.array(), chars.limit());
+        chars.clear();
+    }
+
+    private void dispatch(char[] buf, int len) {
+        if (len == 0) {
+            return;
+        }
+
+        if (bulkHandler != null) {
+            bulkHandler.handleChars(buf, 0, len);
+        } else {
+            for (int i = 0; i < len; i++) {
+                handler.handleChar(buf[i]);
+            }
+        }
+
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = buf[i];
+            if (c == '\r' || c == '\n') {
+                lineBuffer.append(buf, start, i - start);
+                start = i + 1;
+                if (c == '\n') {
+                    handler.handleLine(lineBuffer.toString());
+                    lineBuffer.setLength(0);
+                }
+            }
+        }
+        lineBuffer.append(buf, start, len - start);
+    }
+
+    private static boolean isAscii(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isAsciiCompatible(Charset charset) {
+        Boolean compatible = asciiCompatible.get(charset);
+        if (compatible == null) {
+            byte[] ascii = new byte[128];
+            char[] expected = new char[128];
+            for (int i = 0; i < 128; i++) {
+                ascii[i] = (byte) i;
+                expected[i] = (char) i;
+            }
+            // Stateful multi-byte charsets such as ISO-2022-JP use ASCII bytes in escape sequences, so only single-byte
+            // charsets and UTF-8 qualify.
+            boolean singleByteOrUtf8 = charset.name().equals("UTF-8") || (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1);
+            compatible = singleByteOrUtf8 && new String(ascii, charset).equals(new String(expected));
+            asciiCompatible.put(charset, compatible);
+        }
+        return compatible;
+    }
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The executor used by connections to run their background I/O tasks, such as pumping the output of a process to an
+ * {@link com.xebialabs.overthere.OverthereExecutionOutputHandler output handler} or forwarding a tunnelled port.
+ * <p/>
+ * By default, a shared pool of daemon threads is used that reuses idle threads and grows up to
+ * {@value #MAX_THREADS_PROPERTY} threads (default {@value #MAX_THREADS_DEFAULT}). Because pump tasks block until their
+ * stream is closed, they are never queued: when the pool is exhausted, a dedicated thread is started instead. On a JDK
+ * that supports virtual threads, a virtual thread per task is used instead, unless the {@value #VIRTUAL_THREADS_PROPERTY}
+ * system property is set to <code>false</code>.
+ * <p/>
+ * A different executor can be plugged in with {@link #setExecutor(ExecutorService)}. It must not queue tasks
+ * indefinitely, because a pump that does not run can block the process it reads from.
+ */
+public final class OverthereRuntime {
+
+    /**
+     * System property that configures the maximum number of threads in the default shared pool.
+     */
+    public static final String MAX_THREADS_PROPERTY = "overthere.runtime.maxThreads";
+
+    public static final int MAX_THREADS_DEFAULT = 512;
+
+    /**
+     * System property that can be set to <code>false</code> to use the default shared pool on JDKs that support virtual
+     * threads.
+     */
+    public static final String VIRTUAL_THREADS_PROPERTY = "overthere.runtime.virtualThreads";
+
+    private static final AtomicInteger activePumps = new AtomicInteger();
+
+    private static final AtomicLong startedPumps = new AtomicLong();
+
+    private static ExecutorService executor;
+
+    private static ExecutorService defaultExecutor;
+
+    private OverthereRuntime() {
+        // should not instantiate
+    }
+
+    /**
+     * Plugs in the executor used to run background I/O tasks.
+     *
+     * @param newExecutor the executor to use, or <code>null</code> to revert to the default executor.
+     */
+    public static synchronized void setExecutor(ExecutorService newExecutor) {
+        executor = newExecutor;
+    }
+
+    /**
+     * @return the executor used to run background I/O tasks.
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null) {
+            defaultExecutor = createDefaultExecutor();
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Starts a background I/O task.
+     *
+     * @param name the name of the task. The thread running the task carries this name while it runs.
+     * @param task the task to run.
+     * @return a handle to wait for the task to finish or to interrupt it.
+     */
+    public static Pump start(String name, Runnable task) {
+        Pump pump = new Pump(name, task);
+        startedPumps.incrementAndGet();
+        try {
+            getExecutor().execute(pump);
+        } catch (RejectedExecutionException exc) {
+            logger.debug("Executor rejected task {}, running it on a dedicated thread", name);
+            startDedicatedThread(pump);
+        }
+        return pump;
+    }
+
+    /**
+     * @return the number of background I/O tasks that are currently running.
+     */
+    public static int getActivePumps() {
+        return activePumps.get();
+    }
+
+    /**
+     * @return the total number of background I/O tasks that have been started.
+     */
+    public static long getStartedPumps() {
+        return startedPumps.get();
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        if (!"false".equalsIgnoreCase(System.getProperty(VIRTUAL_THREADS_PROPERTY))) {
+            try {
+                Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                logger.debug("Using virtual threads for background I/O tasks");
+                return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (NoSuchMethodException ignored) {
+                // virtual threads not supported by this JDK
+            } catch (Exception exc) {
+                logger.warn("Cannot create virtual thread executor, using a shared thread pool instead", exc);
+            }
+        }
+
+        int maxThreads = Integer.getInteger(MAX_THREADS_PROPERTY, MAX_THREADS_DEFAULT);
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "overthere-runtime-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                logger.debug("Shared pool is exhausted, running task on a dedicated thread");
+                startDedicatedThread(r);
+            }
+        });
+    }
+
+    private static void startDedicatedThread(Runnable r) {
+        Thread t = new Thread(r, r.toString());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * A handle to a background I/O task started with {@link OverthereRuntime#start(String, Runnable)}.
+     */
+    public static class Pump implements Runnable {
+        private final String name;
+        private final Runnable task;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Thread runner;
+        private boolean interrupted;
+
+        Pump(String name, Runnable task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            Thread current = Thread.currentThread();
+            String previousName = current.getName();
+            synchronized (this) {
+                runner = current;
+                if (interrupted) {
+                    current.interrupt();
+                }
+            }
+            activePumps.incrementAndGet();
+            try {
+                current.setName(name);
+                task.run();
+            } catch (RuntimeException exc) {
+                logger.error(name + " failed", exc);
+            } finally {
+                activePumps.decrementAndGet();
+                synchronized (this) {
+                    runner = null;
+                }
+                // Do not leak the interrupt of this task to the next task run by this thread
+                Thread.interrupted();
+                current.setName(previousName);
+                done.countDown();
+            }
+        }
+
+        /**
+         * Interrupts the task, e.g. when it is stuck waiting for output that will never come.
+         */
+        public synchronized void interrupt() {
+            interrupted = true;
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        /**
+         * Waits for the task to finish.
+         */
+        public void join() throws InterruptedException {
+            done.await();
+        }
+
+        /**
+         * @return <code>true</code> if the task has finished.
+         */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(OverthereRuntime.class);
+
+}
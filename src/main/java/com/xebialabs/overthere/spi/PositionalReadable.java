@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.InputStream;
+
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Implemented by {@link com.xebialabs.overthere.OverthereFile}s that can be read from any offset, so that different
+ * parts of the file can be read independently of each other.
+ */
+public interface PositionalReadable {
+
+    /**
+     * Opens the file for reading, starting at the given offset.
+     *
+     * @param offset the number of bytes to skip from the start of the file.
+     * @return an {@link InputStream} connected to the file at that offset.
+     */
+    InputStream getInputStream(long offset) throws RuntimeIOException;
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.*;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that writes the names of all classes annotated with {@link Protocol} to
+ * {@value #PROTOCOL_INDEX_RESOURCE}. {@link com.xebialabs.overthere.Overthere} reads this index on startup instead of
+ * scanning the classpath.
+ * <p/>
+ * The processor is registered as a service, so it is picked up automatically when compiling a project that defines its
+ * own protocols and has Overthere on its classpath.
+ */
+@SupportedAnnotationTypes(ProtocolIndexProcessor.PROTOCOL_ANNOTATION)
+public class ProtocolIndexProcessor extends AbstractProcessor {
+
+    public static final String PROTOCOL_INDEX_RESOURCE = "META-INF/overthere/protocols";
+
+    static final String PROTOCOL_ANNOTATION = "com.xebialabs.overthere.spi.Protocol";
+
+    private final Set<String> protocolClasses = new TreeSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!protocolClasses.isEmpty()) {
+                writeIndex();
+            }
+            return false;
+        }
+
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS) {
+                    protocolClasses.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+                }
+            }
+        }
+        // Claim @Protocol, which no other processor handles, so that javac does not warn that it is unclaimed
+        return true;
+    }
+
+    private void writeIndex() {
+        // Keep the entries of a previous (incremental) compilation; stale entries are skipped when the index is read.
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", PROTOCOL_INDEX_RESOURCE);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), "UTF-8"));
+            try {
+                protocolClasses.addAll(readIndex(reader));
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | IllegalArgumentException ignored) {
+            // no previous index
+        }
+
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", PROTOCOL_INDEX_RESOURCE);
+            Writer writer = new OutputStreamWriter(index.openOutputStream(), "UTF-8");
+            try {
+                writer.write("# Generated by " + ProtocolIndexProcessor.class.getName() + "\n");
+                for (String protocolClass : protocolClasses) {
+                    writer.write(protocolClass);
+                    writer.write("\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException exc) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + PROTOCOL_INDEX_RESOURCE + ": " + exc);
+        }
+    }
+
+    /**
+     * Reads the class names from a protocol index. Empty lines and lines starting with <code>#</code> are ignored.
+     *
+     * @param reader the reader to read the index from.
+     * @return the class names in the index.
+     */
+    public static Set<String> readIndex(BufferedReader reader) throws IOException {
+        Set<String> classNames = new TreeSet<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                classNames.add(line);
+            }
+        }
+        return classNames;
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.InputStream;
+
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * Implemented by {@link com.xebialabs.overthere.OverthereFile}s that can send a whole directory tree as one tar archive,
+ * which is much faster than reading the files one by one when a tree holds many small files.
+ */
+public interface TarReadable {
+
+    /**
+     * Opens a tar archive of the contents of this directory. The entries are relative to this directory.
+     *
+     * @return an {@link InputStream} connected to the archive as it is generated, or <code>null</code> if no archive
+     *         can be created, for instance because it is not enabled or because <code>tar</code> is not available. The
+     *         caller should then fall back to reading the files one by one.
+     */
+    InputStream getTarInputStream() throws RuntimeIOException;
+
+}
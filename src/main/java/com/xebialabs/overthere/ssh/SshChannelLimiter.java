@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.xebialabs.overthere.RuntimeIOException;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.SessionChannel;
+import net.schmizz.sshj.transport.TransportException;
+
+import static java.lang.String.format;
+
+/**
+ * Limits the number of channels that are open at the same time on one SSH transport. Callers that have to wait are
+ * served in order of arrival. A permit is held from the moment a session channel is opened until it is closed, either
+ * locally or by the server.
+ */
+class SshChannelLimiter {
+
+    private final int maxChannels;
+
+    private final long waitMillis;
+
+    private final Semaphore permits;
+
+    SshChannelLimiter(int maxChannels, long waitMillis) {
+        this.maxChannels = maxChannels;
+        this.waitMillis = waitMillis;
+        this.permits = new Semaphore(maxChannels, true);
+    }
+
+    /**
+     * Takes a permit if one is available and no other caller is waiting for one.
+     */
+    boolean tryAcquire() {
+        try {
+            return permits.tryAcquire(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while waiting for an SSH channel", exc);
+        }
+    }
+
+    /**
+     * Waits for a permit.
+     *
+     * @param description the description of the transport, used in the error message.
+     */
+    void acquire(Object description) {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException(format("Interrupted while waiting for an SSH channel on %s", description), exc);
+        }
+        if (!acquired) {
+            throw new RuntimeIOException(format("Timed out after %d ms waiting for one of the %d SSH channels on %s to become available", waitMillis, maxChannels, description));
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    int getAvailableChannels() {
+        return permits.availablePermits();
+    }
+
+    int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Opens a session channel for a permit that has already been acquired. The permit is returned when the channel is
+     * closed, or immediately if it cannot be opened.
+     */
+    Session open(SSHClient client) throws ConnectionException, TransportException {
+        LimitedSessionChannel session = null;
+        boolean opened = false;
+        try {
+            session = new LimitedSessionChannel(client, this);
+            session.open();
+            opened = true;
+            return session;
+        } finally {
+            if (!opened) {
+                if (session != null) {
+                    session.releasePermit();
+                } else {
+                    release();
+                }
+            }
+        }
+    }
+
+    static class LimitedSessionChannel extends SessionChannel {
+        private final SSHClient client;
+        private final SshChannelLimiter limiter;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        LimitedSessionChannel(SSHClient client, SshChannelLimiter limiter) {
+            super(client.getConnection(), client.getRemoteCharset());
+            this.client = client;
+            this.limiter = limiter;
+        }
+
+        SSHClient getClient() {
+            return client;
+        }
+
+        @Override
+        public void close() throws ConnectionException, TransportException {
+            try {
+                super.close();
+            } finally {
+                releasePermit();
+            }
+        }
+
+        @Override
+        protected void finishOff() {
+            try {
+                super.finishOff();
+            } finally {
+                releasePermit();
+            }
+        }
+
+        void releasePermit() {
+            if (released.compareAndSet(false, true)) {
+                limiter.release();
+            }
+        }
+    }
+
+}
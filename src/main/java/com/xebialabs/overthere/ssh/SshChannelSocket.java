@@ -0,0 +1,486 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import net.schmizz.sshj.connection.channel.Channel;
+
+import com.xebialabs.overthere.spi.OverthereRuntime;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A socket whose data is carried by an SSH channel, such as a <code>direct-tcpip</code> channel of a
+ * {@link SshTunnelConnection tunnel}, instead of by a TCP connection of its own. Subclasses open the channel when the
+ * socket is connected.
+ * <p/>
+ * Socket options are accepted but have no effect, except for the read timeout. Because an SSH channel cannot wait for
+ * data with a timeout, the data of the channel is read by an {@link OverthereRuntime} task into a buffer of
+ * {@value #READ_BUFFER_SIZE} bytes, on which reads can wait with a timeout.
+ */
+abstract class SshChannelSocket extends Socket {
+
+    static final int READ_BUFFER_SIZE = 32 * 1024;
+
+    private volatile Channel channel;
+
+    private ChannelReader reader;
+
+    private volatile InetSocketAddress endpoint;
+
+    private volatile boolean closed;
+
+    private volatile boolean inputShutdown;
+
+    private volatile boolean outputShutdown;
+
+    private volatile int soTimeout;
+
+    private boolean tcpNoDelay;
+
+    private boolean keepAlive;
+
+    private int soLinger = -1;
+
+    private int sendBufferSize = 32 * 1024;
+
+    private int receiveBufferSize = 32 * 1024;
+
+    /**
+     * Opens the channel that carries the data for a connection to the given endpoint.
+     */
+    protected abstract Channel openChannel(InetSocketAddress endpoint) throws IOException;
+
+    /**
+     * Tells the other side of the channel that no more data will be sent.
+     */
+    protected abstract void sendEof(Channel channel) throws IOException;
+
+    @Override
+    public void connect(SocketAddress endpoint) throws IOException {
+        connect(endpoint, 0);
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        if (!(endpoint instanceof InetSocketAddress)) {
+            throw new IllegalArgumentException("Unsupported address type " + endpoint);
+        }
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        if (channel != null) {
+            throw new SocketException("Already connected");
+        }
+        this.channel = openChannel((InetSocketAddress) endpoint);
+        this.endpoint = (InetSocketAddress) endpoint;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final ChannelReader in = getReader();
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (inputShutdown) {
+                    return -1;
+                }
+                return in.read(b, off, len, soTimeout);
+            }
+
+            @Override
+            public int available() {
+                return in.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                SshChannelSocket.this.close();
+            }
+        };
+    }
+
+    private synchronized ChannelReader getReader() throws IOException {
+        Channel c = checkConnected();
+        if (reader == null) {
+            reader = new ChannelReader(c.getInputStream());
+            OverthereRuntime.start("Reader of channel to " + endpoint, reader);
+        }
+        return reader;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        Channel c = checkConnected();
+        final OutputStream out = c.getOutputStream();
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (outputShutdown) {
+                    throw new SocketException("Socket output is shutdown");
+                }
+                out.write(b, off, len);
+                // Like a socket, do not hold on to written data
+                out.flush();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                SshChannelSocket.this.close();
+            }
+        };
+    }
+
+    private Channel checkConnected() throws SocketException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        Channel c = channel;
+        if (c == null) {
+            throw new SocketException("Socket is not connected");
+        }
+        return c;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (reader != null) {
+            reader.close();
+        }
+        Channel c = channel;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        checkConnected();
+        inputShutdown = true;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        Channel c = checkConnected();
+        if (!outputShutdown) {
+            outputShutdown = true;
+            c.getOutputStream().flush();
+            sendEof(c);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel != null;
+    }
+
+    @Override
+    public boolean isBound() {
+        return channel != null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        InetSocketAddress e = endpoint;
+        return e == null ? null : e.getAddress();
+    }
+
+    @Override
+    public int getPort() {
+        InetSocketAddress e = endpoint;
+        return e == null ? 0 : e.getPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return endpoint;
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return isConnected() ? 0 : -1;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return isConnected() ? new InetSocketAddress(getLocalAddress(), 0) : null;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    @Override
+    public synchronized void setTcpNoDelay(boolean on) {
+        tcpNoDelay = on;
+    }
+
+    @Override
+    public synchronized boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    @Override
+    public synchronized void setKeepAlive(boolean on) {
+        keepAlive = on;
+    }
+
+    @Override
+    public synchronized boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    @Override
+    public synchronized void setSoLinger(boolean on, int linger) {
+        soLinger = on ? linger : -1;
+    }
+
+    @Override
+    public synchronized int getSoLinger() {
+        return soLinger;
+    }
+
+    @Override
+    public synchronized void setSendBufferSize(int size) {
+        sendBufferSize = size;
+    }
+
+    @Override
+    public synchronized int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    @Override
+    public synchronized void setReceiveBufferSize(int size) {
+        receiveBufferSize = size;
+    }
+
+    @Override
+    public synchronized int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) {
+        // not applicable
+    }
+
+    @Override
+    public void setOOBInline(boolean on) {
+        // not applicable
+    }
+
+    @Override
+    public void setTrafficClass(int tc) {
+        // not applicable
+    }
+
+    @Override
+    public void setPerformancePreferences(int connectionTime, int latency, int bandwidth) {
+        // not applicable
+    }
+
+    @Override
+    public void bind(SocketAddress bindpoint) {
+        // The channel has no local address of its own
+    }
+
+    @Override
+    public String toString() {
+        InetSocketAddress e = endpoint;
+        return e == null ? "SshChannelSocket[unconnected]" : "SshChannelSocket[" + e + "]";
+    }
+
+    /**
+     * Reads the data of the channel into a buffer, so that it can be waited for with a timeout. Blocks when the buffer is
+     * full, so that the window of the channel is only adjusted when the data has been read from the socket.
+     */
+    private static class ChannelReader implements Runnable {
+
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+        private int start;
+
+        private int count;
+
+        private boolean eof;
+
+        private boolean closed;
+
+        private IOException failure;
+
+        ChannelReader(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[buffer.length / 4];
+            try {
+                for (;;) {
+                    int n = in.read(chunk, 0, chunk.length);
+                    if (n == -1 || !put(chunk, n)) {
+                        break;
+                    }
+                }
+            } catch (IOException exc) {
+                synchronized (this) {
+                    failure = exc;
+                }
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    eof = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized boolean put(byte[] chunk, int n) throws InterruptedException {
+            while (buffer.length - count < n && !closed) {
+                wait();
+            }
+            if (closed) {
+                return false;
+            }
+            int end = (start + count) % buffer.length;
+            int first = Math.min(n, buffer.length - end);
+            System.arraycopy(chunk, 0, buffer, end, first);
+            System.arraycopy(chunk, first, buffer, 0, n - first);
+            count += n;
+            notifyAll();
+            return true;
+        }
+
+        synchronized int read(byte[] b, int off, int len, int timeout) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long deadline = System.nanoTime() + MILLISECONDS.toNanos(timeout);
+            try {
+                while (count == 0 && !eof && !closed) {
+                    if (timeout > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        wait(Math.max(NANOSECONDS.toMillis(remaining), 1));
+                    } else {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading from the channel");
+            }
+            if (count == 0) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return -1;
+            }
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - start);
+            System.arraycopy(buffer, start, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            start = (start + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized int available() {
+            return count;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+}
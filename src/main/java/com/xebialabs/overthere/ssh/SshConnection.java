@@ -34,6 +34,9 @@ import net.schmizz.sshj.common.SSHException;
 import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.PTYMode;
 import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.SessionFactory;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPEngine;
 import net.schmizz.sshj.transport.TransportException;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 import net.schmizz.sshj.userauth.keyprovider.FileKeyProvider;
@@ -43,19 +46,27 @@ import net.schmizz.sshj.userauth.method.AuthKeyboardInteractive;
 import net.schmizz.sshj.userauth.method.AuthPassword;
 import net.schmizz.sshj.userauth.password.PasswordFinder;
 import net.schmizz.sshj.userauth.password.Resource;
+import net.schmizz.sshj.xfer.scp.SCPFileTransfer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static com.xebialabs.overthere.ConnectionOptions.*;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.metrics.OverthereOperation.AUTHENTICATE;
+import static com.xebialabs.overthere.metrics.OverthereOperation.CHANNEL_OPEN;
+import static com.xebialabs.overthere.metrics.OverthereOperation.CHANNEL_WAIT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.*;
 import static com.xebialabs.overthere.util.OverthereUtils.*;
 import static java.lang.String.format;
@@ -102,6 +113,26 @@ abstract class SshConnection extends BaseOverthereConnection {
 
     protected SSHClient sshClient;
 
+    protected int maxChannels;
+
+    protected int channelWaitMillis;
+
+    protected boolean channelSpillOver;
+
+    private SshChannelLimiter channels;
+
+    private SshChannelLimiter spillOverChannels;
+
+    private volatile SSHClient spillOverClient;
+
+    private boolean spillOverFailed;
+
+    private final Object spillOverLock = new Object();
+
+    private final AtomicLong fileSystemGeneration = new AtomicLong();
+
+    private final ThreadLocal<Boolean> executingQuery = new ThreadLocal<Boolean>();
+
     private static final Pattern ptyPattern = Pattern.compile(PTY_PATTERN);
 
     private static final Config config = new DefaultConfig();
@@ -130,7 +161,7 @@ abstract class SshConnection extends BaseOverthereConnection {
         }
         String unmappedAddress = options.get(ADDRESS);
         int unmappedPort = options.getInteger(PORT, PORT_DEFAULT_SSH);
-        InetSocketAddress addressPort = mapper.map(createUnresolved(unmappedAddress, unmappedPort));
+        InetSocketAddress addressPort = mapForSocketFactory(mapper, createUnresolved(unmappedAddress, unmappedPort));
         host = addressPort.getHostName();
         port = addressPort.getPort();
         localAddress = options.getOptional(LOCAL_ADDRESS);
@@ -148,12 +179,28 @@ abstract class SshConnection extends BaseOverthereConnection {
         }
         allocatePty = options.getOptional(ALLOCATE_PTY);
         openShellBeforeExecute = options.getBoolean(OPEN_SHELL_BEFORE_EXECUTE, OPEN_SHELL_BEFORE_EXECUTE_DEFAULT);
+        maxChannels = options.getInteger(MAX_CHANNELS, MAX_CHANNELS_DEFAULT);
+        channelWaitMillis = options.getInteger(CHANNEL_WAIT_MILLIS, CHANNEL_WAIT_MILLIS_DEFAULT);
+        channelSpillOver = options.getBoolean(CHANNEL_SPILL_OVER, CHANNEL_SPILL_OVER_DEFAULT);
+        if (maxChannels > 0) {
+            channels = new SshChannelLimiter(maxChannels, channelWaitMillis);
+            spillOverChannels = new SshChannelLimiter(maxChannels, channelWaitMillis);
+        }
     }
 
     protected void connect() {
+        sshClient = connectClient();
+        connected();
+        addLeakCleanup(sshClient);
+    }
+
+    /**
+     * Creates a new SSH transport to the host and authenticates on it.
+     */
+    protected SSHClient connectClient() {
         try {
             config.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
-            SSHClient client = sshClientFactory.create();
+            final SSHClient client = sshClientFactory.create();
             client.setSocketFactory(mapper.socketFactory());
             client.setConnectTimeout(connectionTimeoutMillis);
             client.addHostKeyVerifier(new PromiscuousVerifier());
@@ -174,63 +221,81 @@ abstract class SshConnection extends BaseOverthereConnection {
                 logger.warn("You should only set one connection options between: {}, {}, {}. They are evaluated in this order, and latter would have no effect on the connection.", PRIVATE_KEY, PRIVATE_KEY_FILE, PASSWORD);
             }
 
-            KeyProvider keys;
-            if (privateKey != null) {
-                try {
-                    if (passphrase == null) {
-                        keys = client.loadKeys(privateKey, null, null);
-                    } else {
-                        keys = client.loadKeys(privateKey, null, getPassphraseFinder());
+            long authStart = System.nanoTime();
+            boolean authenticated = false;
+            try {
+                KeyProvider keys;
+                if (privateKey != null) {
+                    try {
+                        keys = SshKeyProviderCache.loadKeys(privateKey, passphrase, new SshKeyProviderCache.KeyLoader() {
+                            @Override
+                            public KeyProvider load() throws IOException {
+                                if (passphrase == null) {
+                                    return client.loadKeys(privateKey, null, null);
+                                } else {
+                                    return client.loadKeys(privateKey, null, getPassphraseFinder());
+                                }
+                            }
+                        });
+                    } catch (IOException e) {
+                        throw new RuntimeIOException("The supplied key is not in a recognized format", e);
                     }
-                } catch (IOException e) {
-                    throw new RuntimeIOException("The supplied key is not in a recognized format", e);
-                }
-                client.authPublickey(username, keys);
-            } else if (privateKeyFile != null) {
-                try {
-                    if (passphrase == null) {
-                        keys = client.loadKeys(privateKeyFile);
-                    } else {
-                        keys = client.loadKeys(privateKeyFile, getPassphraseFinder());
+                    try {
+                        client.authPublickey(username, keys);
+                    } finally {
+                        SshKeyProviderCache.release(keys);
+                    }
+                } else if (privateKeyFile != null) {
+                    try {
+                        keys = SshKeyProviderCache.loadKeysFromFile(privateKeyFile, passphrase, new SshKeyProviderCache.KeyLoader() {
+                            @Override
+                            public KeyProvider load() throws IOException {
+                                if (passphrase == null) {
+                                    return client.loadKeys(privateKeyFile);
+                                } else {
+                                    return client.loadKeys(privateKeyFile, getPassphraseFinder());
+                                }
+                            }
+                        });
+                    } catch (IOException e) {
+                        throw new RuntimeIOException("Cannot read key from private key file " + privateKeyFile, e);
                     }
-                } catch (IOException e) {
-                    throw new RuntimeIOException("Cannot read key from private key file " + privateKeyFile, e);
+                    try {
+                        client.authPublickey(username, keys);
+                    } finally {
+                        SshKeyProviderCache.release(keys);
+                    }
+                } else if (password != null) {
+                    PasswordFinder passwordFinder = getPasswordFinder();
+                    client.auth(username, new AuthPassword(passwordFinder),
+                            new AuthKeyboardInteractive(new RegularExpressionPasswordResponseProvider(passwordFinder, interactiveKeyboardAuthPromptRegex)));
                 }
-                client.authPublickey(username, keys);
-            } else if (password != null) {
-                PasswordFinder passwordFinder = getPasswordFinder();
-                client.auth(username, new AuthPassword(passwordFinder),
-                        new AuthKeyboardInteractive(new RegularExpressionPasswordResponseProvider(passwordFinder, interactiveKeyboardAuthPromptRegex)));
+                authenticated = true;
+            } finally {
+                recordOperation(AUTHENTICATE, authStart, authenticated);
             }
 
-            sshClient = client;
-            connected();
+            return client;
         } catch (SSHException e) {
             throw new RuntimeIOException("Cannot connect to " + this, e);
         }
     }
 
     private PasswordFinder getPasswordFinder() {
-        return new PasswordFinder() {
-
-            @Override
-            public char[] reqPassword(Resource<?> resource) {
-                return password.toCharArray();
-            }
-
-            @Override
-            public boolean shouldRetry(Resource<?> resource) {
-                return false;
-            }
-        };
+        return newPasswordFinder(password);
     }
 
     private PasswordFinder getPassphraseFinder() {
+        return newPasswordFinder(passphrase);
+    }
+
+    // Static, so that the SSH client does not refer to this connection and a leaked connection can be collected.
+    private static PasswordFinder newPasswordFinder(final String secret) {
         return new PasswordFinder() {
 
             @Override
             public char[] reqPassword(Resource<?> resource) {
-                return passphrase.toCharArray();
+                return secret.toCharArray();
             }
 
             @Override
@@ -250,17 +315,35 @@ abstract class SshConnection extends BaseOverthereConnection {
 
     @Override
     public void doClose() {
+        synchronized (spillOverLock) {
+            if (spillOverClient != null) {
+                disconnectClient(spillOverClient);
+                spillOverClient = null;
+            }
+        }
         if (sshClient == null) return;
         try {
-            sshClient.disconnect();
+            disconnectClient(sshClient);
+        } finally {
+            sshClient = null;
+        }
+    }
+
+    private void disconnectClient(SSHClient client) {
+        try {
+            client.disconnect();
         } catch (Exception e) {
             // Even though we get an exception, we expect the connection to have been closed, so we are ignoring
             logger.error("Unexpected exception received while disconnecting from " + this, e);
-        } finally {
-            sshClient = null;
         }
     }
 
+    @Override
+    public boolean isConnected() {
+        SSHClient client = sshClient;
+        return super.isConnected() && client != null && client.isConnected();
+    }
+
     protected SSHClient getSshClient() {
         checkState(sshClient != null, "Not (yet) connected");
         return sshClient;
@@ -287,11 +370,54 @@ abstract class SshConnection extends BaseOverthereConnection {
         }
     }
 
+    @Override
+    public int execute(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, CmdLine commandLine) {
+        try {
+            return super.execute(stdoutHandler, stderrHandler, commandLine);
+        } finally {
+            fileSystemChanged();
+        }
+    }
+
+    /**
+     * Executes a command that only reads the file system, such as the file info or list files command. Unlike
+     * {@link #execute(OverthereExecutionOutputHandler, OverthereExecutionOutputHandler, CmdLine)}, this does not change
+     * the {@link #getFileSystemGeneration() generation of the file system}, so that file information retrieved earlier
+     * remains valid.
+     */
+    int executeQuery(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, CmdLine commandLine) {
+        executingQuery.set(Boolean.TRUE);
+        try {
+            return super.execute(stdoutHandler, stderrHandler, commandLine);
+        } finally {
+            executingQuery.remove();
+        }
+    }
+
+    /**
+     * Returns the generation of the remote file system as seen by this connection. The generation changes whenever a
+     * command other than a {@link #executeQuery(OverthereExecutionOutputHandler, OverthereExecutionOutputHandler, CmdLine) query}
+     * is started or finishes and whenever a file is changed through this connection, so file information retrieved in
+     * an earlier generation may be outdated. Callers read the generation before retrieving file information, so that
+     * changes made while it is retrieved are not missed.
+     */
+    long getFileSystemGeneration() {
+        return fileSystemGeneration.get();
+    }
+
+    void fileSystemChanged() {
+        fileSystemGeneration.incrementAndGet();
+    }
+
     @Override
     public OverthereProcess startProcess(final CmdLine origCmd) {
         checkNotNull(origCmd, "Cannot execute null command line");
         checkArgument(origCmd.getArguments().size() > 0, "Cannot execute empty command line");
 
+        if (executingQuery.get() == null) {
+            fileSystemChanged();
+        }
+
         final CmdLine cmd = processCommandLine(origCmd);
 
         final String obfuscatedCmd = origCmd.toCommandLine(os, true);
@@ -302,7 +428,7 @@ abstract class SshConnection extends BaseOverthereConnection {
                 Session session = null;
                 try {
                     logger.debug("Creating a temporary shell to allow for deferred home dir creation.");
-                    session = getSshClient().startSession();
+                    session = openSession();
                     Session.Shell shell = session.startShell();
                     shell.close();
                 } finally {
@@ -310,7 +436,7 @@ abstract class SshConnection extends BaseOverthereConnection {
                 }
             }
 
-            Session session = getSshClient().startSession();
+            Session session = openSession();
             if (allocatePty != null && !allocatePty.isEmpty()) {
                 if (allocateDefaultPty) {
                     logger.warn("The " + ALLOCATE_PTY + " and " + ALLOCATE_DEFAULT_PTY
@@ -338,6 +464,140 @@ abstract class SshConnection extends BaseOverthereConnection {
 
     }
 
+    /**
+     * Returns whether commands started by {@link #startProcess(CmdLine)} run in a pty, which does not pass binary data
+     * unchanged.
+     */
+    boolean allocatesPty() {
+        return allocateDefaultPty || (allocatePty != null && !allocatePty.isEmpty());
+    }
+
+    /**
+     * Opens a new session channel and reports the time it took to the metrics listener. This method may be invoked
+     * concurrently. If the {@link SshConnectionBuilder#MAX_CHANNELS maxChannels} limit has been reached, the channel is
+     * opened on the spill-over transport or the caller waits for a channel to be closed.
+     */
+    protected Session openSession() throws ConnectionException, TransportException {
+        long start = System.nanoTime();
+        boolean successful = false;
+        try {
+            Session session = startSession();
+            successful = true;
+            return session;
+        } finally {
+            recordOperation(CHANNEL_OPEN, start, successful);
+        }
+    }
+
+    private Session startSession() throws ConnectionException, TransportException {
+        if (channels == null) {
+            return getSshClient().startSession();
+        }
+
+        if (channels.tryAcquire()) {
+            return channels.open(getSshClient());
+        }
+
+        if (channelSpillOver) {
+            SSHClient client = getSpillOverClient();
+            if (client != null && spillOverChannels.tryAcquire()) {
+                logger.debug("All {} channels on {} are in use, opening channel on spill-over transport", maxChannels, this);
+                return spillOverChannels.open(client);
+            }
+        }
+
+        closeIdleChannels();
+        if (channels.tryAcquire()) {
+            return channels.open(getSshClient());
+        }
+
+        logger.debug("All {} channels on {} are in use, waiting for a channel to be closed", maxChannels, this);
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            channels.acquire(this);
+            acquired = true;
+        } finally {
+            recordOperation(CHANNEL_WAIT, start, acquired);
+        }
+        return channels.open(getSshClient());
+    }
+
+    /**
+     * Returns whether a channel can be opened without waiting for another one to be closed.
+     */
+    protected boolean hasAvailableChannel() {
+        return channels == null || channels.getAvailableChannels() > 0 || (channelSpillOver && spillOverChannels.getAvailableChannels() > 0);
+    }
+
+    /**
+     * Closes the channels that this connection keeps open for reuse. Invoked when all
+     * {@link SshConnectionBuilder#MAX_CHANNELS maxChannels} channels are in use, before waiting for one to be closed.
+     */
+    protected void closeIdleChannels() {
+    }
+
+    private SSHClient getSpillOverClient() {
+        SSHClient client = spillOverClient;
+        if (client != null && client.isConnected()) {
+            return client;
+        }
+
+        synchronized (spillOverLock) {
+            if (spillOverClient != null && spillOverClient.isConnected()) {
+                return spillOverClient;
+            }
+            if (spillOverFailed || !isConnected()) {
+                return null;
+            }
+            logger.info("Connecting spill-over transport to {}", this);
+            try {
+                spillOverClient = connectClient();
+                addLeakCleanup(spillOverClient);
+                return spillOverClient;
+            } catch (RuntimeIOException exc) {
+                logger.warn(format("Cannot connect spill-over transport to %s, not trying again for this connection", this), exc);
+                spillOverFailed = true;
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns a session factory that opens its sessions within the {@link SshConnectionBuilder#MAX_CHANNELS maxChannels}
+     * limit of this connection, for use by file transfer clients.
+     */
+    protected SessionFactory getSessionFactory() {
+        return new SessionFactory() {
+            @Override
+            public Session startSession() throws ConnectionException, TransportException {
+                return SshConnection.this.startSession();
+            }
+        };
+    }
+
+    /**
+     * Creates an SCP file transfer whose sessions count towards the {@link SshConnectionBuilder#MAX_CHANNELS maxChannels}
+     * limit of this connection.
+     */
+    protected SCPFileTransfer newScpFileTransfer() {
+        if (channels == null) {
+            return getSshClient().newSCPFileTransfer();
+        }
+        return new SCPFileTransfer(getSessionFactory(), config.getLoggerFactory());
+    }
+
+    /**
+     * Creates an SFTP client whose session counts towards the {@link SshConnectionBuilder#MAX_CHANNELS maxChannels} limit
+     * of this connection.
+     */
+    protected SFTPClient newSftpClient() throws IOException {
+        if (channels == null) {
+            return getSshClient().newSFTPClient();
+        }
+        return new SFTPClient(new SFTPEngine(getSessionFactory()).init());
+    }
+
     protected CmdLine processCommandLine(final CmdLine cmd) {
         CmdLine processedCmd;
         logger.trace("Checking whether to prefix command line with cd: {}", cmd);
@@ -368,6 +628,17 @@ abstract class SshConnection extends BaseOverthereConnection {
         return commandLine.getArguments().size() >= 2 && commandLine.getArguments().get(0).toString(os, false).equals(pseudoCommand);
     }
 
+    /**
+     * Deletes the temporary directory over the transport of this connection if the connection is garbage collected
+     * without having been closed.
+     */
+    @Override
+    protected void temporaryFileHolderDirectoryCreated(OverthereFile holder) {
+        if (deleteTemporaryDirectoryOnDisconnect && os == UNIX && sshClient != null) {
+            addLeakCleanup(new TemporaryDirectoryCleanup(sshClient, CmdLine.build("rm", "-rf", holder.getPath()).toCommandLine(UNIX, false)));
+        }
+    }
+
     protected SshProcess createProcess(Session session, CmdLine commandLine) throws TransportException, ConnectionException {
         return new SshProcess(this, os, session, commandLine);
     }
@@ -390,4 +661,28 @@ abstract class SshConnection extends BaseOverthereConnection {
 
     private static Logger logger = LoggerFactory.getLogger(SshConnection.class);
 
+    private static class TemporaryDirectoryCleanup implements Closeable {
+        private final SSHClient client;
+        private final String deleteCommand;
+
+        TemporaryDirectoryCleanup(SSHClient client, String deleteCommand) {
+            this.client = client;
+            this.deleteCommand = deleteCommand;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!client.isConnected()) {
+                return;
+            }
+            logger.info("Executing [{}] to delete temporary directory", deleteCommand);
+            Session session = client.startSession();
+            try {
+                session.exec(deleteCommand).join(client.getTimeout(), TimeUnit.MILLISECONDS);
+            } finally {
+                session.close();
+            }
+        }
+    }
+
 }
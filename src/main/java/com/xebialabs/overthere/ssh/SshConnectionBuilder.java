@@ -115,7 +115,7 @@ public class SshConnectionBuilder implements OverthereConnectionBuilder {
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_getFileInfoCommand">the online documentation</a>
      */
-    public static final String GET_FILE_INFO_COMMAND_DEFAULT = "ls -ld {0}";
+    public static final String GET_FILE_INFO_COMMAND_DEFAULT = "stat -c %A:%s:%Y {0} 2>/dev/null || ls -ld {0}";
 
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_interactiveKeyboardAuthRegex">the online documentation</a>
@@ -134,10 +134,10 @@ public class SshConnectionBuilder implements OverthereConnectionBuilder {
 
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_listFilesCommand">the online documentation</a>
-     * <em>NOTE:</em>: this *is* meant to be 'el es minus one'. Each file should go on a separate line, even if we create a pseudo-tty. Long format
-     * is NOT what we want here.
+     * <em>NOTE:</em>: the fallback *is* meant to be 'el es minus one'. Each file should go on a separate line, even if we create a pseudo-tty. Long
+     * format is NOT what we want here.
      */
-    public static final String LIST_FILES_COMMAND_DEFAULT = "ls -a1 {0}";
+    public static final String LIST_FILES_COMMAND_DEFAULT = "find {0} -mindepth 1 -maxdepth 1 -printf '%M:%s:%T@:%f\\n' 2>/dev/null || ls -a1 {0}";
 
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_mkdirCommand">the online documentation</a>
@@ -192,7 +192,17 @@ public class SshConnectionBuilder implements OverthereConnectionBuilder {
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_portAllocationRangeStart">the online documentation</a>
      */
-    public static final int PORT_ALLOCATION_RANGE_START_DEFAULT = 1024;
+    public static final int PORT_ALLOCATION_RANGE_START_DEFAULT = 0;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#jumpstations_tunnelDirectChannels">the online documentation</a>
+     */
+    public static final String TUNNEL_DIRECT_CHANNELS = "tunnelDirectChannels";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#jumpstations_tunnelDirectChannels">the online documentation</a>
+     */
+    public static final boolean TUNNEL_DIRECT_CHANNELS_DEFAULT = true;
 
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_renameToCommand">the online documentation</a>
@@ -274,6 +284,16 @@ public class SshConnectionBuilder implements OverthereConnectionBuilder {
      */
     public static final boolean SU_OVERRIDE_UMASK_DEFAULT = true;
 
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_suStreamingFileTransfer">the online documentation</a>
+     */
+    public static final String SU_STREAMING_FILE_TRANSFER = "suStreamingFileTransfer";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_suStreamingFileTransfer">the online documentation</a>
+     */
+    public static final boolean SU_STREAMING_FILE_TRANSFER_DEFAULT = false;
+
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_suOverrideUmaskCommand">the online documentation</a>
      */
@@ -404,6 +424,16 @@ public class SshConnectionBuilder implements OverthereConnectionBuilder {
      */
     public static final boolean SUDO_OVERRIDE_UMASK_DEFAULT = true;
 
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sudoStreamingFileTransfer">the online documentation</a>
+     */
+    public static final String SUDO_STREAMING_FILE_TRANSFER = "sudoStreamingFileTransfer";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sudoStreamingFileTransfer">the online documentation</a>
+     */
+    public static final boolean SUDO_STREAMING_FILE_TRANSFER_DEFAULT = false;
+
     /**
      * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sudoOverrideUmaskCommand">the online documentation</a>
      */
@@ -491,6 +521,156 @@ public class SshConnectionBuilder implements OverthereConnectionBuilder {
      */
     public static final String LOCAL_PORT = "localPort";
 
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_maxChannels">the online documentation</a>
+     */
+    public static final String MAX_CHANNELS = "maxChannels";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_maxChannels">the online documentation</a>
+     */
+    public static final int MAX_CHANNELS_DEFAULT = 0;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_channelWaitMillis">the online documentation</a>
+     */
+    public static final String CHANNEL_WAIT_MILLIS = "channelWaitMillis";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_channelWaitMillis">the online documentation</a>
+     */
+    public static final int CHANNEL_WAIT_MILLIS_DEFAULT = 120000;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_channelSpillOver">the online documentation</a>
+     */
+    public static final String CHANNEL_SPILL_OVER = "channelSpillOver";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_channelSpillOver">the online documentation</a>
+     */
+    public static final boolean CHANNEL_SPILL_OVER_DEFAULT = false;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_persistentShell">the online documentation</a>
+     */
+    public static final String PERSISTENT_SHELL = "persistentShell";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_persistentShell">the online documentation</a>
+     */
+    public static final boolean PERSISTENT_SHELL_DEFAULT = false;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_scpDownloadViaTempFile">the online documentation</a>
+     */
+    public static final String SCP_DOWNLOAD_VIA_TEMP_FILE = "scpDownloadViaTempFile";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_scpDownloadViaTempFile">the online documentation</a>
+     */
+    public static final boolean SCP_DOWNLOAD_VIA_TEMP_FILE_DEFAULT = false;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_scpTarDirectoryTransfer">the online documentation</a>
+     */
+    public static final String SCP_TAR_DIRECTORY_TRANSFER = "scpTarDirectoryTransfer";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_scpTarDirectoryTransfer">the online documentation</a>
+     */
+    public static final boolean SCP_TAR_DIRECTORY_TRANSFER_DEFAULT = false;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_scpUploadSpoolThreshold">the online documentation</a>
+     */
+    public static final String SCP_UPLOAD_SPOOL_THRESHOLD = "scpUploadSpoolThreshold";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_scpUploadSpoolThreshold">the online documentation</a>
+     */
+    public static final int SCP_UPLOAD_SPOOL_THRESHOLD_DEFAULT = 1024 * 1024;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpClientPoolSize">the online documentation</a>
+     */
+    public static final String SFTP_CLIENT_POOL_SIZE = "sftpClientPoolSize";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpClientPoolSize">the online documentation</a>
+     */
+    public static final int SFTP_CLIENT_POOL_SIZE_DEFAULT = 4;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpMaxOutstandingRequests">the online documentation</a>
+     */
+    public static final String SFTP_MAX_OUTSTANDING_REQUESTS = "sftpMaxOutstandingRequests";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpMaxOutstandingRequests">the online documentation</a>
+     */
+    public static final int SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT = 64;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelChannels">the online documentation</a>
+     */
+    public static final String SFTP_PARALLEL_CHANNELS = "sftpParallelChannels";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelChannels">the online documentation</a>
+     */
+    public static final int SFTP_PARALLEL_CHANNELS_DEFAULT = 4;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelChunkSize">the online documentation</a>
+     */
+    public static final String SFTP_PARALLEL_CHUNK_SIZE = "sftpParallelChunkSize";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelChunkSize">the online documentation</a>
+     */
+    public static final int SFTP_PARALLEL_CHUNK_SIZE_DEFAULT = 8 * 1024 * 1024;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelThreshold">the online documentation</a>
+     */
+    public static final String SFTP_PARALLEL_THRESHOLD = "sftpParallelThreshold";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelThreshold">the online documentation</a>
+     */
+    public static final int SFTP_PARALLEL_THRESHOLD_DEFAULT = 64 * 1024 * 1024;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelSeparateTransports">the online documentation</a>
+     */
+    public static final String SFTP_PARALLEL_SEPARATE_TRANSPORTS = "sftpParallelSeparateTransports";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpParallelSeparateTransports">the online documentation</a>
+     */
+    public static final boolean SFTP_PARALLEL_SEPARATE_TRANSPORTS_DEFAULT = false;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpResumableUpload">the online documentation</a>
+     */
+    public static final String SFTP_RESUMABLE_UPLOAD = "sftpResumableUpload";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpResumableUpload">the online documentation</a>
+     */
+    public static final boolean SFTP_RESUMABLE_UPLOAD_DEFAULT = false;
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpResumeChecksumCommand">the online documentation</a>
+     */
+    public static final String SFTP_RESUME_CHECKSUM_COMMAND = "sftpResumeChecksumCommand";
+
+    /**
+     * See <a href="https://github.com/xebialabs/overthere/blob/master/README.md#ssh_sftpResumeChecksumCommand">the online documentation</a>
+     */
+    public static final String SFTP_RESUME_CHECKSUM_COMMAND_DEFAULT = "";
+
     protected SshConnection connection;
 
     public SshConnectionBuilder(String type, ConnectionOptions options, AddressPortMapper mapper) {
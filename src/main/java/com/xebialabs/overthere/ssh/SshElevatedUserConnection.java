@@ -55,6 +55,7 @@ abstract class SshElevatedUserConnection extends SshScpConnection {
     protected boolean preserveAttributesOnCopyFromTempFile;
     protected boolean preserveAttributesOnCopyToTempFile;
     protected boolean overrideUmask;
+    protected boolean streamingFileTransfer;
     protected String copyFromTempFileCommand;
     protected String copyToTempFileCommand;
     protected String overrideUmaskCommand;
@@ -89,6 +90,19 @@ abstract class SshElevatedUserConnection extends SshScpConnection {
         }
     }
 
+    @Override
+    protected boolean canUsePersistentShell() {
+        return false;
+    }
+
+    /**
+     * The temporary directories are created world-writable, so that the elevated user can access the temporary files.
+     */
+    @Override
+    protected boolean isTemporaryFileHolderDirectoryWorldWritable() {
+        return true;
+    }
+
     @Override
     protected CmdLine processCommandLine(final CmdLine cmd) {
         CmdLine processedCmd;
@@ -133,7 +147,8 @@ abstract class SshElevatedUserConnection extends SshScpConnection {
 
                 commandLineWithSudo.add(a);
 
-                if (a.toString(os, false).equals("|") || a.toString(os, false).equals(";")) {
+                String arg = a.toString(os, false);
+                if (arg.equals("|") || arg.equals(";") || arg.equals("||") || arg.equals("&&")) {
                     shouldAddElevationCommand = true;
                 }
             }
@@ -70,6 +70,14 @@ class SshElevatedUserFile extends SshScpFile {
         return super.executeCommand(outHandler, errHandler, commandLine);
     }
 
+    @Override
+    protected int executeQuery(OverthereExecutionOutputHandler outHandler, OverthereExecutionOutputHandler errHandler, CmdLine commandLine) {
+        if (isTempFile) {
+            commandLine = SshConnection.prefixWithPseudoCommand(commandLine, NOELEVATION_PSEUDO_COMMAND);
+        }
+        return super.executeQuery(outHandler, errHandler, commandLine);
+    }
+
     @Override
     public OverthereFile getFile(String name) {
         SshElevatedUserFile f = (SshElevatedUserFile) super.getFile(name);
@@ -88,6 +96,16 @@ class SshElevatedUserFile extends SshScpFile {
     public InputStream getInputStream() throws RuntimeIOException {
         if (isTempFile) {
             return super.getInputStream();
+        } else if (((SshElevatedUserConnection) connection).streamingFileTransfer) {
+            logger.debug("Opening streaming {} input stream to read from file {}", connection.protocolAndConnectionType, this);
+            boolean encoded = connection.allocatesPty();
+            CmdLine script = new CmdLine().addRaw("cat").addArgument(getPath());
+            try {
+                return SshStreamingCommandInputStream.open(startStreamingCommand(SshStreamingCommandInputStream.streamingScript(script, encoded)),
+                        encoded, getPath());
+            } catch (IOException e) {
+                throw new RuntimeIOException("Cannot open " + this + " for reading: " + e.getMessage(), e);
+            }
         } else {
             OverthereFile tempFile = connection.getTempFile(getName());
             copyToTempFile(tempFile);
@@ -99,12 +117,31 @@ class SshElevatedUserFile extends SshScpFile {
     public OutputStream getOutputStream() throws RuntimeIOException {
         if (isTempFile) {
             return super.getOutputStream();
+        } else if (((SshElevatedUserConnection) connection).streamingFileTransfer) {
+            logger.debug("Opening streaming {} output stream to write to file {}", connection.protocolAndConnectionType, this);
+            boolean encoded = connection.allocatesPty();
+            CmdLine script = new CmdLine().addRaw("cat").addRaw(">").addArgument(getPath());
+            try {
+                return SshStreamingCommandOutputStream.open(startStreamingCommand(SshStreamingCommandOutputStream.streamingScript(script, encoded)),
+                        encoded, getPath());
+            } catch (IOException e) {
+                throw new RuntimeIOException("Cannot open " + this + " for writing: " + e.getMessage(), e);
+            }
         } else {
             logger.debug("Opening {} output stream to write to file {}", connection.protocolAndConnectionType, this);
             return new SshElevatedUserOutputStream(this, connection.getTempFile(getName()));
         }
     }
 
+    @Override
+    protected SshProcess startStreamingCommand(CmdLine script) {
+        if (isTempFile) {
+            return (SshProcess) connection.startProcess(SshConnection.prefixWithPseudoCommand(
+                    CmdLine.build(NOCD_PSEUDO_COMMAND, "sh", "-c").addNested(script), NOELEVATION_PSEUDO_COMMAND));
+        }
+        return super.startStreamingCommand(script);
+    }
+
     @Override
     public void mkdir() throws RuntimeIOException {
         if (isTempFile) {
@@ -130,11 +167,13 @@ class SshElevatedUserFile extends SshScpFile {
         if (isTempFile) {
             super.copyFrom(source);
             overrideUmask(this);
+        } else if (source.isDirectory() && connection.canTransferDirectoriesAsTar()) {
+            copyFromAsTar(source);
         } else {
             logger.debug("Copying file or directory {} to {}", source, this);
             OverthereFile tempFile = getConnection().getTempFile(getName());
             try {
-                connection.getSshClient().newSCPFileTransfer().newSCPUploadClient().copy(new OverthereFileLocalSourceFile(source), tempFile.getPath());
+                connection.newScpFileTransfer().newSCPUploadClient().copy(new OverthereFileLocalSourceFile(source), tempFile.getPath());
             } catch (IOException e) {
                 throw new RuntimeIOException("Cannot copy " + source + " to " + this, e);
             }
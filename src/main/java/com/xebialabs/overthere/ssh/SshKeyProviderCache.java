@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Destroyable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.schmizz.sshj.common.KeyType;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
+
+import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
+
+/**
+ * A process-wide cache of decoded private keys, so that connections that use the same key do not each read, parse and
+ * decrypt it again. Keys are looked up by the path, modification time and size of the key file, or by a fingerprint of
+ * the key itself, together with a fingerprint of the passphrase. The passphrase and the key material are not kept in the
+ * lookup keys; the fingerprints are HMACs with a secret that is generated for each process.
+ * <p/>
+ * The cache holds at most {@value #MAX_SIZE_PROPERTY} keys (default {@value #MAX_SIZE_DEFAULT}), evicting the least
+ * recently used key when it is full. Keys returned by the cache must be {@link #release(KeyProvider) released} once the
+ * connection has authenticated with them. Evicted keys are destroyed, if their implementation supports it, when the last
+ * connection that looked them up has released them. Setting the size to <code>0</code> disables the cache.
+ */
+public final class SshKeyProviderCache {
+
+    /**
+     * System property that configures the maximum number of keys in the cache.
+     */
+    public static final String MAX_SIZE_PROPERTY = "overthere.ssh.keyCache.maxSize";
+
+    public static final int MAX_SIZE_DEFAULT = 64;
+
+    private static final byte[] secret = newSecret();
+
+    private static volatile int maxSize = Integer.getInteger(MAX_SIZE_PROPERTY, MAX_SIZE_DEFAULT);
+
+    private static final Map<String, CachedKeyProvider> keys = new LinkedHashMap<String, CachedKeyProvider>(16, 0.75f, true);
+
+    private SshKeyProviderCache() {
+        // should not instantiate
+    }
+
+    public static int getMaxSize() {
+        return maxSize;
+    }
+
+    public static void setMaxSize(int maxSize) {
+        checkArgument(maxSize >= 0, "maxSize must not be negative, not %s", maxSize);
+        SshKeyProviderCache.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Removes all cached keys, e.g. after keys have been revoked. They are destroyed once they are no longer in use.
+     */
+    public static void clear() {
+        List<CachedKeyProvider> evicted;
+        synchronized (keys) {
+            evicted = new ArrayList<CachedKeyProvider>(keys.values());
+            keys.clear();
+        }
+        for (CachedKeyProvider each : evicted) {
+            each.evict();
+        }
+    }
+
+    static int size() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    /**
+     * Loads the keys from a key file, or returns them from the cache if the file has not changed since.
+     */
+    static KeyProvider loadKeysFromFile(String privateKeyFile, String passphrase, KeyLoader loader) throws IOException {
+        File file = new File(privateKeyFile);
+        String cacheKey = "file:" + file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length() + ":" + fingerprint(passphrase);
+        return get(cacheKey, loader);
+    }
+
+    /**
+     * Loads keys that were passed in directly, or returns them from the cache.
+     */
+    static KeyProvider loadKeys(String privateKey, String passphrase, KeyLoader loader) throws IOException {
+        String cacheKey = "key:" + fingerprint(privateKey) + ":" + fingerprint(passphrase);
+        return get(cacheKey, loader);
+    }
+
+    /**
+     * Releases keys returned by {@link #loadKeys(String, String, KeyLoader)} or
+     * {@link #loadKeysFromFile(String, String, KeyLoader)}, once the connection has authenticated with them.
+     */
+    static void release(KeyProvider keys) {
+        if (keys instanceof CachedKeyProvider) {
+            ((CachedKeyProvider) keys).release();
+        }
+    }
+
+    private static KeyProvider get(String cacheKey, KeyLoader loader) throws IOException {
+        if (maxSize == 0) {
+            return loader.load();
+        }
+
+        synchronized (keys) {
+            CachedKeyProvider cached = keys.get(cacheKey);
+            if (cached != null) {
+                logger.trace("Using cached private key");
+                cached.lease();
+                return cached;
+            }
+        }
+
+        // Decode outside of the lock, so that loading one key does not hold up connections that use another
+        CachedKeyProvider loaded = new CachedKeyProvider(loader.load());
+        synchronized (keys) {
+            CachedKeyProvider cached = keys.get(cacheKey);
+            if (cached != null) {
+                loaded.evict();
+                cached.lease();
+                return cached;
+            }
+            loaded.lease();
+            keys.put(cacheKey, loaded);
+        }
+        evict();
+        return loaded;
+    }
+
+    private static void evict() {
+        List<CachedKeyProvider> evicted = new ArrayList<CachedKeyProvider>();
+        synchronized (keys) {
+            Iterator<CachedKeyProvider> it = keys.values().iterator();
+            while (keys.size() > maxSize && it.hasNext()) {
+                evicted.add(it.next());
+                it.remove();
+            }
+        }
+        for (CachedKeyProvider each : evicted) {
+            each.evict();
+        }
+    }
+
+    private static String fingerprint(String value) {
+        if (value == null) {
+            return "-";
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : mac.doFinal(value.getBytes("UTF-8"))) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot compute fingerprint", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot compute fingerprint", e);
+        }
+    }
+
+    private static byte[] newSecret() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Loads keys that are not in the cache.
+     */
+    interface KeyLoader {
+        KeyProvider load() throws IOException;
+    }
+
+    /**
+     * Keys that have been decoded once, so that they can be used by any number of connections.
+     */
+    private static class CachedKeyProvider implements KeyProvider {
+
+        private volatile PrivateKey privateKey;
+
+        private volatile PublicKey publicKey;
+
+        private volatile KeyType type;
+
+        private int leases;
+
+        private boolean evicted;
+
+        CachedKeyProvider(KeyProvider keys) throws IOException {
+            this.privateKey = keys.getPrivate();
+            this.publicKey = keys.getPublic();
+            this.type = keys.getType();
+        }
+
+        @Override
+        public PrivateKey getPrivate() throws IOException {
+            PrivateKey key = privateKey;
+            if (key == null) {
+                throw new IOException("Private key has been evicted from the key cache");
+            }
+            return key;
+        }
+
+        @Override
+        public PublicKey getPublic() throws IOException {
+            return publicKey;
+        }
+
+        @Override
+        public KeyType getType() throws IOException {
+            return type;
+        }
+
+        synchronized void lease() {
+            leases++;
+        }
+
+        void release() {
+            synchronized (this) {
+                leases--;
+                if (!evicted || leases > 0) {
+                    return;
+                }
+            }
+            destroy();
+        }
+
+        /**
+         * Marks the keys as removed from the cache, and destroys them unless a connection is still authenticating with them.
+         */
+        void evict() {
+            synchronized (this) {
+                evicted = true;
+                if (leases > 0) {
+                    return;
+                }
+            }
+            destroy();
+        }
+
+        private void destroy() {
+            PrivateKey key = privateKey;
+            privateKey = null;
+            publicKey = null;
+            type = null;
+            if (key instanceof Destroyable && !((Destroyable) key).isDestroyed()) {
+                try {
+                    ((Destroyable) key).destroy();
+                } catch (DestroyFailedException ignored) {
+                    // Most key implementations cannot be destroyed; dropping the reference is all that can be done
+                }
+            }
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshKeyProviderCache.class);
+
+}
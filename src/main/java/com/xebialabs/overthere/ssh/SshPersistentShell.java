@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import com.xebialabs.overthere.OverthereExecutionOutputBulkHandler;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.spi.OverthereRuntime;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static com.xebialabs.overthere.util.NullOverthereExecutionOutputHandler.swallow;
+import static java.lang.String.format;
+
+/**
+ * A long-lived <code>sh</code> process on an SSH host that runs commands one after the other, so that short commands do
+ * not each need a session of their own.
+ * <p/>
+ * Every command is run in a subshell with its standard input redirected from <code>/dev/null</code>, so that it cannot
+ * change the state of the shell or consume the commands that follow it. After the command, a sentinel line with its exit
+ * code is written to standard output, and a sentinel line to standard error. Output is read up to those lines. Each
+ * sentinel is preceded by a newline, so that it always starts on a line of its own, and the empty line that this adds
+ * to output that ends in a newline is removed. Standard error is read by an {@link OverthereRuntime} task while standard
+ * output is read, because both share the window of the channel: a command that fills it with error output would
+ * otherwise never get to write the standard output sentinel.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+class SshPersistentShell implements Closeable {
+
+    static final String SHELL_COMMAND = "sh";
+
+    private final Session session;
+
+    private final Session.Command command;
+
+    private final Writer stdin;
+
+    private final BufferedReader stdout;
+
+    private final BufferedReader stderr;
+
+    private final String sentinel;
+
+    private boolean broken;
+
+    SshPersistentShell(Session session, Charset charset) throws IOException {
+        this.session = session;
+        this.command = session.exec(SHELL_COMMAND);
+        this.stdin = new OutputStreamWriter(command.getOutputStream(), charset);
+        this.stdout = new BufferedReader(new InputStreamReader(command.getInputStream(), charset));
+        this.stderr = new BufferedReader(new InputStreamReader(command.getErrorStream(), charset));
+        this.sentinel = "__OVERTHERE_" + UUID.randomUUID().toString().replace("-", "") + "__";
+
+        // Skip anything the startup files of the shell print.
+        writeSentinels("0");
+        try {
+            readOutput(swallow(), swallow());
+        } catch (IOException exc) {
+            close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param stdoutHandler the handler for the standard output of the command.
+     * @param stderrHandler the handler for the standard error of the command.
+     * @param commandLine   the command line, quoted for a Unix shell.
+     * @return the exit code of the command.
+     * @throws IOException if the shell could not be written to or terminated. The shell cannot be used anymore.
+     */
+    int execute(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, String commandLine) throws IOException {
+        if (broken) {
+            throw new IOException("Shell has terminated");
+        }
+        try {
+            stdin.write("(\n");
+            stdin.write(commandLine);
+            stdin.write("\n) </dev/null\n");
+            writeSentinels("$?");
+            return readOutput(stdoutHandler, stderrHandler);
+        } catch (IOException exc) {
+            // Also stops the reader of standard error if it is still waiting for its sentinel
+            close();
+            throw exc;
+        }
+    }
+
+    private int readOutput(OverthereExecutionOutputHandler stdoutHandler, final OverthereExecutionOutputHandler stderrHandler) throws IOException {
+        final IOException[] stderrFailure = new IOException[1];
+        OverthereRuntime.Pump stderrReader = OverthereRuntime.start("Persistent shell stderr reader", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readUntilSentinel(stderr, stderrHandler, false);
+                } catch (IOException exc) {
+                    stderrFailure[0] = exc;
+                }
+            }
+        });
+        int exitCode = readUntilSentinel(stdout, stdoutHandler, true);
+        try {
+            stderrReader.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the standard error of the shell");
+        }
+        if (stderrFailure[0] != null) {
+            throw stderrFailure[0];
+        }
+        return exitCode;
+    }
+
+    boolean isUsable() {
+        return !broken && session.isOpen();
+    }
+
+    private void writeSentinels(String exitCode) throws IOException {
+        stdin.write(format("printf '\\n%%s %%d\\n' %s %s\n", sentinel, exitCode));
+        stdin.write(format("printf '\\n%%s\\n' %s >&2\n", sentinel));
+        stdin.flush();
+    }
+
+    private int readUntilSentinel(BufferedReader reader, OverthereExecutionOutputHandler handler, boolean withExitCode) throws IOException {
+        String pending = null;
+        for (; ; ) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Shell terminated unexpectedly");
+            }
+            if (line.startsWith(sentinel)) {
+                if (pending != null && !pending.isEmpty()) {
+                    emit(handler, pending);
+                }
+                if (!withExitCode) {
+                    return 0;
+                }
+                try {
+                    return Integer.parseInt(line.substring(sentinel.length()).trim());
+                } catch (NumberFormatException exc) {
+                    throw new IOException(format("Cannot parse exit code from [%s]", line), exc);
+                }
+            }
+            if (pending != null) {
+                emit(handler, pending);
+            }
+            pending = line;
+        }
+    }
+
+    private static void emit(OverthereExecutionOutputHandler handler, String line) {
+        if (handler instanceof OverthereExecutionOutputBulkHandler) {
+            char[] chars = (line + "\n").toCharArray();
+            ((OverthereExecutionOutputBulkHandler) handler).handleChars(chars, 0, chars.length);
+        } else {
+            for (int i = 0; i < line.length(); i++) {
+                handler.handleChar(line.charAt(i));
+            }
+            handler.handleChar('\n');
+        }
+        handler.handleLine(line);
+    }
+
+    @Override
+    public void close() {
+        broken = true;
+        closeQuietly(stdin);
+        closeQuietly(session);
+    }
+
+}
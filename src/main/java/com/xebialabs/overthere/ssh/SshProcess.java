@@ -22,6 +22,7 @@
  */
 package com.xebialabs.overthere.ssh;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import org.slf4j.Logger;
@@ -32,7 +33,10 @@ import com.xebialabs.overthere.OperatingSystemFamily;
 import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.RuntimeIOException;
 
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Message;
 import net.schmizz.sshj.common.SSHException;
+import net.schmizz.sshj.common.SSHPacket;
 import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.connection.channel.direct.Signal;
@@ -63,6 +67,22 @@ class SshProcess implements OverthereProcess {
         return command.getOutputStream();
     }
 
+    /**
+     * Flushes the stdin of the process and signals end-of-file to the remote side, so that a command that reads its
+     * stdin until end-of-file can finish while its output is still being read. Closing the stream returned by
+     * {@link #getStdin()} does not do that with SSH/J.
+     */
+    synchronized void closeStdin() throws IOException {
+        checkArgument(command != null, "Process for command line [{}] is not running", obfuscatedCommandLine);
+
+        OutputStream stdin = command.getOutputStream();
+        stdin.flush();
+        stdin.close();
+        SSHClient client = session instanceof SshChannelLimiter.LimitedSessionChannel ? ((SshChannelLimiter.LimitedSessionChannel) session).getClient()
+                : connection.getSshClient();
+        client.getTransport().write(new SSHPacket(Message.CHANNEL_EOF).putUInt32(session.getRecipient()));
+    }
+
     @Override
     public synchronized InputStream getStdout() {
         checkArgument(command != null, "Process for command line [{}] is not running", obfuscatedCommandLine);
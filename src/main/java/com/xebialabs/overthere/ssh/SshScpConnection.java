@@ -22,12 +22,25 @@
  */
 package com.xebialabs.overthere.ssh;
 
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
 
+import static com.xebialabs.overthere.metrics.OverthereOperation.EXECUTE;
+import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
 import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
 import static com.xebialabs.overthere.OperatingSystemFamily.WINDOWS;
 import static com.xebialabs.overthere.OperatingSystemFamily.ZOS;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.DELETE_DIRECTORY_COMMAND;
@@ -44,13 +57,22 @@ import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MKDIRS_COMMAND;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MKDIRS_COMMAND_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MKDIR_COMMAND;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MKDIR_COMMAND_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PERSISTENT_SHELL;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PERSISTENT_SHELL_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.RENAME_TO_COMMAND;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.RENAME_TO_COMMAND_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SCP_DOWNLOAD_VIA_TEMP_FILE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SCP_DOWNLOAD_VIA_TEMP_FILE_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SCP_UPLOAD_SPOOL_THRESHOLD;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SCP_TAR_DIRECTORY_TRANSFER;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SCP_TAR_DIRECTORY_TRANSFER_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SCP_UPLOAD_SPOOL_THRESHOLD_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SET_EXECUTABLE_COMMAND;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SET_EXECUTABLE_COMMAND_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SET_NOT_EXECUTABLE_COMMAND;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SET_NOT_EXECUTABLE_COMMAND_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
+import static java.lang.String.format;
 
 /**
  * A connection to a Unix host using SSH w/ SCP.
@@ -77,6 +99,22 @@ class SshScpConnection extends SshConnection {
 
     protected String setNotExecutableCommand;
 
+    protected boolean persistentShell;
+
+    protected boolean scpDownloadViaTempFile;
+
+    protected int scpUploadSpoolThreshold;
+
+    protected boolean scpTarDirectoryTransfer;
+
+    private Boolean tarAvailable;
+
+    private SshPersistentShell shell;
+
+    private boolean shellFailed;
+
+    private final ReentrantLock shellLock = new ReentrantLock();
+
     public SshScpConnection(String type, ConnectionOptions options, AddressPortMapper mapper) {
         super(type, options, mapper);
         checkArgument(os != WINDOWS, "Cannot create a %s connection to a host that is running Windows", protocolAndConnectionType);
@@ -92,6 +130,32 @@ class SshScpConnection extends SshConnection {
         renameToCommand = options.get(RENAME_TO_COMMAND, RENAME_TO_COMMAND_DEFAULT);
         setExecutableCommand = options.get(SET_EXECUTABLE_COMMAND, SET_EXECUTABLE_COMMAND_DEFAULT);
         setNotExecutableCommand = options.get(SET_NOT_EXECUTABLE_COMMAND, SET_NOT_EXECUTABLE_COMMAND_DEFAULT);
+        persistentShell = options.getBoolean(PERSISTENT_SHELL, PERSISTENT_SHELL_DEFAULT);
+        scpDownloadViaTempFile = options.getBoolean(SCP_DOWNLOAD_VIA_TEMP_FILE, SCP_DOWNLOAD_VIA_TEMP_FILE_DEFAULT);
+        scpUploadSpoolThreshold = options.getInteger(SCP_UPLOAD_SPOOL_THRESHOLD, SCP_UPLOAD_SPOOL_THRESHOLD_DEFAULT);
+        scpTarDirectoryTransfer = options.getBoolean(SCP_TAR_DIRECTORY_TRANSFER, SCP_TAR_DIRECTORY_TRANSFER_DEFAULT);
+    }
+
+    /**
+     * Returns whether directories should be transferred as tar archives, see
+     * {@link SshConnectionBuilder#SCP_TAR_DIRECTORY_TRANSFER scpTarDirectoryTransfer}. The first time this is asked, the
+     * connection checks whether <code>tar</code> is available on the host. If it is not, directories are transferred file
+     * by file.
+     */
+    synchronized boolean canTransferDirectoriesAsTar() {
+        if (!scpTarDirectoryTransfer) {
+            return false;
+        }
+
+        if (tarAvailable == null) {
+            CmdLine checkCmdLine = CmdLine.build(NOCD_PSEUDO_COMMAND, "sh", "-c").addNested(new CmdLine().addRaw("command -v tar"));
+            CapturingOverthereExecutionOutputHandler capturedOutput = capturingHandler();
+            tarAvailable = executeQuery(capturedOutput, capturedOutput, checkCmdLine) == 0;
+            if (!tarAvailable) {
+                logger.warn("Cannot find tar on {}, transferring directories file by file: {}", this, capturedOutput.getOutput());
+            }
+        }
+        return tarAvailable;
     }
 
     @Override
@@ -99,4 +163,121 @@ class SshScpConnection extends SshConnection {
         return new SshScpFile(this, hostPath);
     }
 
+    /**
+     * Executes a command that manipulates files. If the {@link SshConnectionBuilder#PERSISTENT_SHELL persistentShell}
+     * option is set, the command is run through the persistent shell of this connection, unless another thread is using
+     * that shell. Otherwise the command is {@link #execute(OverthereExecutionOutputHandler, OverthereExecutionOutputHandler, CmdLine) executed}
+     * in a session of its own.
+     */
+    int executeFileCommand(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, CmdLine commandLine) {
+        return executeFileCommand(stdoutHandler, stderrHandler, commandLine, true);
+    }
+
+    /**
+     * Executes a command that only reads the file system, such as the file info or list files command, like
+     * {@link #executeFileCommand(OverthereExecutionOutputHandler, OverthereExecutionOutputHandler, CmdLine)}, but without
+     * changing the {@link #getFileSystemGeneration() generation of the file system}.
+     */
+    int executeFileQuery(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, CmdLine commandLine) {
+        return executeFileCommand(stdoutHandler, stderrHandler, commandLine, false);
+    }
+
+    private int executeFileCommand(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, CmdLine commandLine,
+            boolean changesFileSystem) {
+        if (!persistentShell || !canUsePersistentShell() || !shellLock.tryLock()) {
+            return executeInSession(stdoutHandler, stderrHandler, commandLine, changesFileSystem);
+        }
+
+        try {
+            SshPersistentShell sh = getShell();
+            if (sh == null) {
+                return executeInSession(stdoutHandler, stderrHandler, commandLine, changesFileSystem);
+            }
+
+            String processedCommandLine = processCommandLine(commandLine).toCommandLine(os, false);
+            logger.debug("Executing command [{}] on [{}] through persistent shell", commandLine.toCommandLine(os, true), this);
+            long start = System.nanoTime();
+            boolean successful = false;
+            if (changesFileSystem) {
+                fileSystemChanged();
+            }
+            try {
+                int exitCode = sh.execute(stdoutHandler, stderrHandler, processedCommandLine);
+                successful = true;
+                return exitCode;
+            } catch (IOException exc) {
+                closeShell();
+                throw new RuntimeIOException(format("Cannot execute command [%s] on [%s] through persistent shell", commandLine.toCommandLine(os, true), this), exc);
+            } finally {
+                if (changesFileSystem) {
+                    fileSystemChanged();
+                }
+                recordOperation(EXECUTE, start, successful);
+            }
+        } finally {
+            shellLock.unlock();
+        }
+    }
+
+    private int executeInSession(OverthereExecutionOutputHandler stdoutHandler, OverthereExecutionOutputHandler stderrHandler, CmdLine commandLine,
+            boolean changesFileSystem) {
+        if (changesFileSystem) {
+            return execute(stdoutHandler, stderrHandler, commandLine);
+        }
+        return executeQuery(stdoutHandler, stderrHandler, commandLine);
+    }
+
+    /**
+     * Returns whether file commands can be run through a persistent shell. Connections that need to handle password
+     * prompts for their commands cannot.
+     */
+    protected boolean canUsePersistentShell() {
+        return true;
+    }
+
+    private SshPersistentShell getShell() {
+        if (shell != null && shell.isUsable()) {
+            return shell;
+        }
+        closeShell();
+        if (shellFailed) {
+            return null;
+        }
+
+        logger.debug("Starting persistent shell on {}", this);
+        Session session = null;
+        try {
+            session = openSession();
+            shell = new SshPersistentShell(session, outputCharset);
+            return shell;
+        } catch (IOException exc) {
+            closeQuietly(session);
+            logger.warn(format("Cannot start persistent shell on %s, executing file commands in sessions of their own", this), exc);
+            shellFailed = true;
+            return null;
+        }
+    }
+
+    private void closeShell() {
+        if (shell != null) {
+            shell.close();
+            shell = null;
+        }
+    }
+
+    @Override
+    public void doClose() {
+        // If another thread is using the shell, disconnecting terminates it.
+        if (shellLock.tryLock()) {
+            try {
+                closeShell();
+            } finally {
+                shellLock.unlock();
+            }
+        }
+        super.doClose();
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshScpConnection.class);
+
 }
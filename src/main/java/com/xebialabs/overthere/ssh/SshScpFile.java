@@ -23,16 +23,21 @@
 package com.xebialabs.overthere.ssh;
 
 import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.TarReadable;
 import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+import com.xebialabs.overthere.util.OverthereFileTarArchiver;
 import net.schmizz.sshj.xfer.scp.SCPUploadClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,17 +49,33 @@ import static com.xebialabs.overthere.util.LoggingOverthereExecutionOutputHandle
 import static com.xebialabs.overthere.util.LoggingOverthereExecutionOutputHandler.loggingOutputHandler;
 import static com.xebialabs.overthere.util.MultipleOverthereExecutionOutputHandler.multiHandler;
 import static com.xebialabs.overthere.util.NullOverthereExecutionOutputHandler.swallow;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static com.xebialabs.overthere.util.OverthereUtils.write;
+import static com.xebialabs.overthere.metrics.OverthereOperation.LIST;
+import static com.xebialabs.overthere.metrics.OverthereOperation.STAT;
 import static java.lang.String.format;
 
 /**
  * A file on a host connected through SSH w/ SCP.
  */
-class SshScpFile extends SshFile<SshScpConnection> {
+class SshScpFile extends SshFile<SshScpConnection> implements TarReadable {
 
     private static final String PERMISSIONS_TOKEN_PATTERN = ".*?([dl\\-]([r\\-][w\\-][xsStT\\-]){3}[@\\.\\+]*)";
 
     private static Pattern permissionsTokenPattern = Pattern.compile(PERMISSIONS_TOKEN_PATTERN);
 
+    private static final String STAT_OUTPUT_LINE_PATTERN = ".*?([dl\\-]([r\\-][w\\-][xsStT\\-]){3}[@\\.\\+]*):(\\d+):(\\d+)\\s*";
+
+    private static Pattern statOutputLinePattern = Pattern.compile(STAT_OUTPUT_LINE_PATTERN);
+
+    private static final String LIST_OUTPUT_LINE_PATTERN = "([\\-a-z]([r\\-][w\\-][xsStT\\-]){3}[@\\.\\+]*):(\\d+):(\\d+)(\\.\\d*)?:(.+)";
+
+    private static Pattern listOutputLinePattern = Pattern.compile(LIST_OUTPUT_LINE_PATTERN);
+
+    private static final int UPLOAD_BUFFER_SIZE = 32 * 1024;
+
+    private volatile FileInfoSnapshot fileInfo;
+
     /**
      * Constructs an SshScpOverthereFile
      *
@@ -97,8 +118,12 @@ class SshScpFile extends SshFile<SshScpConnection> {
 
     @Override
     public long lastModified() {
-        // FIXME: Implement by parsing the date output of `ls -l`
-        throw new UnsupportedOperationException();
+        long lastModified = getFileInfo().lastModified;
+        if (lastModified < 0) {
+            // The file info command fell back to `ls -ld`, the date output of which is not parsed
+            throw new UnsupportedOperationException();
+        }
+        return lastModified;
     }
 
     @Override
@@ -107,40 +132,87 @@ class SshScpFile extends SshFile<SshScpConnection> {
     }
 
     /**
-     * Gets information about the file by executing "ls -ld" on it.
+     * Gets information about the file by executing the {@link SshConnectionBuilder#GET_FILE_INFO_COMMAND file info command}
+     * on it. The information is kept and reused until a command is executed on or a file is uploaded to the connection,
+     * or until {@link #refresh()} is invoked.
      *
      * @return the information about the file, never <code>null</code>.
      * @throws RuntimeIOException if an I/O exception occurs
      */
     public LsResults getFileInfo() throws RuntimeIOException {
+        long generation = connection.getFileSystemGeneration();
+        FileInfoSnapshot snapshot = fileInfo;
+        if (snapshot != null && snapshot.generation == generation) {
+            return snapshot.results;
+        }
+
+        long start = System.nanoTime();
+        boolean successful = false;
+        try {
+            LsResults results = doGetFileInfo();
+            fileInfo = new FileInfoSnapshot(results, generation);
+            successful = true;
+            return results;
+        } finally {
+            recordOperation(STAT, start, successful);
+        }
+    }
+
+    /**
+     * Discards the information about the file that was retrieved earlier, so that the next query retrieves it again.
+     * Needed only when the file was changed by a process that is still running or by another connection.
+     */
+    public void refresh() {
+        fileInfo = null;
+    }
+
+    private LsResults doGetFileInfo() {
         logger.debug("Retrieving file info of {}", this);
 
         CmdLine lsCmdLine = CmdLine.build(NOCD_PSEUDO_COMMAND).addTemplatedFragment(connection.getFileInfoCommand, getPath());
         LsResults results = new LsResults();
         CapturingOverthereExecutionOutputHandler capturedOutput = capturingHandler();
-        int errno = executeCommand(capturedOutput, swallow(), lsCmdLine);
+        int errno = executeQuery(capturedOutput, swallow(), lsCmdLine);
         if (errno == 0) {
             for (int i = capturedOutput.getOutputLines().size() - 1; i >= 0; i--) {
-                if (parseLsOutputLine(results, capturedOutput.getOutputLines().get(i))) {
+                String outputLine = capturedOutput.getOutputLines().get(i);
+                if (parseStatOutputLine(results, outputLine) || parseLsOutputLine(results, outputLine)) {
                     results.exists = true;
                     break;
                 }
             }
 
             if (!results.exists) {
-                throw new RuntimeIOException("ls -ld " + getPath() + " returned " + errno + " but its output is unparseable: " + capturedOutput.getOutput());
+                throw new RuntimeIOException(lsCmdLine + " returned " + errno + " but its output is unparseable: " + capturedOutput.getOutput());
             }
         } else {
             results.exists = false;
         }
 
-        logger.debug("Listed file {}: exists={}, isDirectory={}, length={}, canRead={}, canWrite={}, canExecute={}", new Object[]{this, results.exists,
-                results.isDirectory, results.length
+        logger.debug("Listed file {}: exists={}, isDirectory={}, length={}, lastModified={}, canRead={}, canWrite={}, canExecute={}", new Object[]{this, results.exists,
+                results.isDirectory, results.length, results.lastModified
                 , results.canRead, results.canWrite, results.canExecute});
 
         return results;
     }
 
+    protected boolean parseStatOutputLine(LsResults results, String outputLine) {
+        Matcher matcher = statOutputLinePattern.matcher(outputLine);
+        if (!matcher.matches()) {
+            return false;
+        }
+
+        logger.debug("Parsing stat output line [{}]", outputLine);
+        parsePermissions(results, matcher.group(1));
+        try {
+            results.length = Long.parseLong(matcher.group(3));
+            results.lastModified = Long.parseLong(matcher.group(4)) * 1000;
+        } catch (NumberFormatException exc) {
+            logger.warn("Cannot parse length or modification time of " + this.getPath() + " from stat output: " + outputLine + ". They will be reported as -1.", exc);
+        }
+        return true;
+    }
+
     protected boolean parseLsOutputLine(LsResults results, String outputLine) {
         StringTokenizer outputTokens = new StringTokenizer(outputLine);
         if (outputTokens.countTokens() < 5) {
@@ -164,41 +236,70 @@ class SshScpFile extends SshFile<SshScpConnection> {
         outputTokens.nextToken(); // group
         String size = outputTokens.nextToken();
 
-        results.isFile = permissions.length() >= 1 && permissions.charAt(0) == '-';
-        results.isDirectory = permissions.length() >= 1 && permissions.charAt(0) == 'd';
-        results.canRead = permissions.length() >= 2 && permissions.charAt(1) == 'r';
-        results.canWrite = permissions.length() >= 3 && permissions.charAt(2) == 'w';
-        results.canExecute = permissions.length() >= 4 && (permissions.charAt(3) == 'x' || permissions.charAt(3) == 's' || permissions.charAt(3) == 't');
+        parsePermissions(results, permissions);
         try {
-            results.length = Integer.parseInt(size);
+            results.length = Long.parseLong(size);
         } catch (NumberFormatException exc) {
             logger.warn("Cannot parse length of " + this.getPath() + " from ls output: " + outputLine + ". Length will be reported as -1.", exc);
         }
         return true;
     }
 
+    private static void parsePermissions(LsResults results, String permissions) {
+        results.isFile = permissions.length() >= 1 && permissions.charAt(0) == '-';
+        results.isDirectory = permissions.length() >= 1 && permissions.charAt(0) == 'd';
+        results.canRead = permissions.length() >= 2 && permissions.charAt(1) == 'r';
+        results.canWrite = permissions.length() >= 3 && permissions.charAt(2) == 'w';
+        results.canExecute = permissions.length() >= 4 && (permissions.charAt(3) == 'x' || permissions.charAt(3) == 's' || permissions.charAt(3) == 't');
+    }
+
     /**
-     * Holds results of an ls call
+     * Holds results of an ls or stat call
      */
     public static class LsResults {
         public boolean exists;
         public boolean isFile;
         public boolean isDirectory;
         public long length = -1;
+        public long lastModified = -1;
 
         public boolean canRead;
         public boolean canWrite;
         public boolean canExecute;
     }
 
+    private static class FileInfoSnapshot {
+        final LsResults results;
+        final long generation;
+
+        FileInfoSnapshot(LsResults results, long generation) {
+            this.results = results;
+            this.generation = generation;
+        }
+    }
+
     @Override
     public InputStream getInputStream() throws RuntimeIOException {
+        if (connection.scpDownloadViaTempFile) {
+            return getInputStreamViaTempFile();
+        }
+
+        logger.debug("Opening scp input stream to read from {}", this);
+        String scpCommandLine = CmdLine.build("scp", "-f", getPath()).toCommandLine(connection.getHostOperatingSystem(), false);
+        try {
+            return asBuffered(SshScpInputStream.open(connection.openSession(), scpCommandLine, getPath()));
+        } catch (IOException exc) {
+            throw new RuntimeIOException(format("Cannot open %s for reading: %s", this, exc.toString()), exc);
+        }
+    }
+
+    private InputStream getInputStreamViaTempFile() throws RuntimeIOException {
         try {
             final File tempFile = File.createTempFile("scp_download", ".tmp");
             tempFile.deleteOnExit();
 
             logger.debug("Downloading contents of {} to temporary file {}", this, tempFile);
-            connection.getSshClient().newSCPFileTransfer().download(getPath(), tempFile.getPath());
+            connection.newScpFileTransfer().download(getPath(), tempFile.getPath());
 
             logger.debug("Opening input stream to temporary file {} to retrieve contents downloaded from {}. Temporary file will be deleted when the stream is closed", tempFile, this);
             return asBuffered(new FileInputStream(tempFile) {
@@ -221,59 +322,97 @@ class SshScpFile extends SshFile<SshScpConnection> {
 
     @Override
     public OutputStream getOutputStream() throws RuntimeIOException {
-        try {
-            final File tempFile = File.createTempFile("scp_upload", ".tmp");
-            tempFile.deleteOnExit();
-
-            logger.debug("Opening output stream to temporary file {} to store contents to be uploaded to {} when the stream is closed", tempFile, SshScpFile.this);
-            return asBuffered(new FileOutputStream(tempFile) {
-                @Override
-                public void close() throws IOException {
-                    logger.debug("Closing output stream to temporary file {}", tempFile);
-                    try {
-                        super.close();
-                    } finally {
-                        uploadAndDelete(tempFile);
-                    }
-                }
+        logger.debug("Opening output stream to spool contents to be uploaded to {} when the stream is closed, in memory up to {} bytes", this, connection.scpUploadSpoolThreshold);
+        return asBuffered(new SshScpSpoolingOutputStream(this, connection.scpUploadSpoolThreshold));
+    }
 
-                private void uploadAndDelete(File tempFile) throws IOException {
-                    logger.debug("Uploading contents of temporary file {} to to {}", tempFile, SshScpFile.this);
-                    try {
-                        connection.getSshClient().newSCPFileTransfer().upload(tempFile.getPath(), getPath());
-                    } finally {
-                        logger.debug("Deleting temporary file {}", tempFile);
-                        tempFile.delete();
-                    }
+    /**
+     * Uploads a known number of bytes to this file, streaming them straight into an <code>scp -t</code> command.
+     */
+    void upload(InputStream in, long length) throws IOException {
+        String scpCommandLine = CmdLine.build("scp", "-t", getPath()).toCommandLine(connection.getHostOperatingSystem(), false);
+        try {
+            OutputStream out = SshScpOutputStream.open(connection.openSession(), scpCommandLine, getPath(), getName(), length);
+            try {
+                byte[] buf = new byte[UPLOAD_BUFFER_SIZE];
+                for (int n; (n = in.read(buf)) != -1; ) {
+                    out.write(buf, 0, n);
                 }
-            });
-        } catch (IOException exc) {
-            throw new RuntimeIOException(format("Cannot open %s for writing: %s", this, exc.toString()), exc);
+            } finally {
+                out.close();
+            }
+        } finally {
+            connection.fileSystemChanged();
         }
     }
 
     @Override
     public List<OverthereFile> listFiles() {
+        long start = System.nanoTime();
+        boolean successful = false;
+        try {
+            List<OverthereFile> files = doListFiles();
+            successful = true;
+            return files;
+        } finally {
+            recordOperation(LIST, start, successful);
+        }
+    }
+
+    private List<OverthereFile> doListFiles() {
         logger.debug("Listing directory {}", this);
 
         CmdLine lsCmdLine = build(NOCD_PSEUDO_COMMAND).addTemplatedFragment(connection.listFilesCommand, getPath());
 
+        long generation = connection.getFileSystemGeneration();
         CapturingOverthereExecutionOutputHandler capturedStdout = capturingHandler();
         CapturingOverthereExecutionOutputHandler capturedStderr = capturingHandler();
-        int errno = executeCommand(multiHandler(loggingOutputHandler(logger), capturedStdout), multiHandler(loggingErrorHandler(logger), capturedStderr), lsCmdLine);
+        int errno = executeQuery(multiHandler(loggingOutputHandler(logger), capturedStdout), multiHandler(loggingErrorHandler(logger), capturedStderr), lsCmdLine);
         if (errno != 0) {
             throw new RuntimeIOException("Cannot list directory " + this + ": " + capturedStderr.getOutput() + " (errno=" + errno + ")");
         }
 
-        List<OverthereFile> files = new ArrayList<OverthereFile>();
+        // The default command lists the directory with ls as well if find fails halfway, so the same name can be listed
+        // twice; the first line, which has the attributes, is kept.
+        Map<String, OverthereFile> files = new LinkedHashMap<String, OverthereFile>();
         for (String lsLine : capturedStdout.getOutputLines()) {
-            // Filter out the '.' and '..'
-            if (!(".".equals(lsLine) || "..".equals(lsLine))) {
-                files.add(connection.getFile(this, lsLine));
+            LsResults results = new LsResults();
+            String name = parseListOutputLine(results, lsLine);
+            if (name != null) {
+                if (!files.containsKey(name)) {
+                    SshScpFile file = (SshScpFile) connection.getFile(this, name);
+                    file.fileInfo = new FileInfoSnapshot(results, generation);
+                    files.put(name, file);
+                }
+            } else if (!(".".equals(lsLine) || "..".equals(lsLine)) && !files.containsKey(lsLine)) {
+                // Filter out the '.' and '..'
+                files.put(lsLine, connection.getFile(this, lsLine));
             }
         }
 
-        return files;
+        return new ArrayList<OverthereFile>(files.values());
+    }
+
+    /**
+     * Parses a line of output of the list files command that holds the attributes and the name of a file.
+     *
+     * @return the name of the file, or <code>null</code> if the line only holds a name.
+     */
+    protected String parseListOutputLine(LsResults results, String outputLine) {
+        Matcher matcher = listOutputLinePattern.matcher(outputLine);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        parsePermissions(results, matcher.group(1));
+        try {
+            results.length = Long.parseLong(matcher.group(3));
+            results.lastModified = Long.parseLong(matcher.group(4)) * 1000;
+        } catch (NumberFormatException exc) {
+            logger.warn("Cannot parse length or modification time from list output: " + outputLine + ". They will be reported as -1.", exc);
+        }
+        results.exists = true;
+        return matcher.group(6);
     }
 
     @Override
@@ -350,11 +489,45 @@ class SshScpFile extends SshFile<SshScpConnection> {
         executeAndThrowOnErrorCode(rmCmdLine, "Cannot recursively delete file or directory " + this);
     }
 
+    /**
+     * Returns a tar archive of this directory, created by <code>tar -chf -</code> as it is read, if
+     * {@link SshConnectionBuilder#SCP_TAR_DIRECTORY_TRANSFER scpTarDirectoryTransfer} is enabled and <code>tar</code> is
+     * available. Symbolic links are followed, like they are when the files are read one by one.
+     */
+    @Override
+    public InputStream getTarInputStream() throws RuntimeIOException {
+        if (!connection.canTransferDirectoriesAsTar()) {
+            return null;
+        }
+
+        logger.debug("Opening tar archive of directory {}", this);
+        boolean encoded = connection.allocatesPty();
+        CmdLine script = new CmdLine().addRaw("cd").addArgument(getPath()).addRaw("&&").addRaw("tar").addRaw("-chf").addRaw("-").addRaw(".");
+        try {
+            return SshStreamingCommandInputStream.open(startStreamingCommand(SshStreamingCommandInputStream.streamingScript(script, encoded)),
+                    encoded, getPath());
+        } catch (IOException e) {
+            throw new RuntimeIOException("Cannot open tar archive of " + this + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts a shell script as a command of its own, so that data can be streamed to its stdin or from its stdout.
+     */
+    protected SshProcess startStreamingCommand(CmdLine script) {
+        return (SshProcess) connection.startProcess(CmdLine.build(NOCD_PSEUDO_COMMAND, "sh", "-c").addNested(script));
+    }
+
     @Override
     protected void copyFrom(OverthereFile source) {
+        if (source.isDirectory() && connection.canTransferDirectoriesAsTar()) {
+            copyFromAsTar(source);
+            return;
+        }
+
         logger.debug("Copying file or directory {} to {}", source, this);
 
-        SCPUploadClient uploadClient = connection.getSshClient().newSCPFileTransfer().newSCPUploadClient();
+        SCPUploadClient uploadClient = connection.newScpFileTransfer().newSCPUploadClient();
 
         try {
             if (source.isDirectory() && this.exists()) {
@@ -366,9 +539,76 @@ class SshScpFile extends SshFile<SshScpConnection> {
             }
         } catch (IOException e) {
             throw new RuntimeIOException("Cannot copy " + source + " to " + this + ": " + e.toString(), e);
+        } finally {
+            connection.fileSystemChanged();
+        }
+    }
+
+    /**
+     * Returns the script that extracts a tar archive from its stdin into a directory. The files are owned by the user that
+     * runs the script and get its umask, also when that user is root, which would otherwise take the owners and modes
+     * from the archive.
+     */
+    static CmdLine extractTarScript(String path) {
+        return new CmdLine().addRaw("mkdir").addRaw("-p").addArgument(path).addRaw("&&")
+                .addRaw("cd").addArgument(path).addRaw("&&")
+                .addRaw("tar").addRaw("--no-same-owner").addRaw("--no-same-permissions").addRaw("-xf").addRaw("-");
+    }
+
+    /**
+     * Copies a directory by streaming a tar archive of its contents to {@link #extractTarScript(String)}. The archive comes
+     * from the source directory itself if it is {@link TarReadable}, otherwise it is created while the files are read one
+     * by one.
+     */
+    protected void copyFromAsTar(OverthereFile source) {
+        logger.debug("Copying directory {} to {} as a tar archive", source, this);
+
+        boolean encoded = connection.allocatesPty();
+        CmdLine script = extractTarScript(getPath());
+        try {
+            OutputStream out = SshStreamingCommandOutputStream.open(startStreamingCommand(SshStreamingCommandOutputStream.streamingScript(script, encoded)),
+                    encoded, getPath());
+            boolean written = false;
+            try {
+                OutputStream buffered = new BufferedOutputStream(out, UPLOAD_BUFFER_SIZE);
+                InputStream tar = source instanceof TarReadable ? ((TarReadable) source).getTarInputStream() : null;
+                if (tar != null) {
+                    try {
+                        write(tar, buffered);
+                    } finally {
+                        closeQuietly(tar);
+                    }
+                } else {
+                    OverthereFileTarArchiver.archive(source, buffered);
+                }
+                buffered.flush();
+                written = true;
+            } finally {
+                if (!written) {
+                    closeQuietly(out);
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeIOException("Cannot copy " + source + " to " + this + ": " + e.getMessage(), e);
+        } finally {
+            connection.fileSystemChanged();
         }
     }
 
+    @Override
+    protected int executeCommand(OverthereExecutionOutputHandler outHandler, OverthereExecutionOutputHandler errHandler, CmdLine commandLine) {
+        return connection.executeFileCommand(outHandler, errHandler, commandLine);
+    }
+
+    /**
+     * Executes a command that only reads the file system, so that the information retrieved for other files remains
+     * valid.
+     */
+    protected int executeQuery(OverthereExecutionOutputHandler outHandler, OverthereExecutionOutputHandler errHandler, CmdLine commandLine) {
+        return connection.executeFileQuery(outHandler, errHandler, commandLine);
+    }
+
     private void executeAndThrowOnErrorCode(CmdLine mkdirCmdLine, String message) {
         CapturingOverthereExecutionOutputHandler capturedStderr = capturingHandler();
         int errno = executeCommand(loggingOutputHandler(logger), multiHandler(loggingErrorHandler(logger), capturedStderr), mkdirCmdLine);
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import static com.xebialabs.overthere.ssh.SshScpProtocol.checkAck;
+import static com.xebialabs.overthere.ssh.SshScpProtocol.readLine;
+import static com.xebialabs.overthere.ssh.SshScpProtocol.sendAck;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static java.lang.String.format;
+
+/**
+ * Input stream that reads a file from a remote host by acting as the sink of an <code>scp -f</code> command. The contents
+ * are handed to the reader as they arrive, so the memory used is bounded by the window of the SSH channel.
+ */
+class SshScpInputStream extends InputStream {
+
+    private final Session session;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private final String remotePath;
+
+    private long remaining;
+
+    private boolean completed;
+
+    private boolean closed;
+
+    private SshScpInputStream(Session session, Session.Command command, String remotePath) {
+        this.session = session;
+        this.in = command.getInputStream();
+        this.out = command.getOutputStream();
+        this.remotePath = remotePath;
+    }
+
+    /**
+     * Starts the SCP command in the session and reads the header of the file. The session is closed when the stream is
+     * closed, or when the file cannot be read.
+     *
+     * @param session the session to start the SCP command in.
+     * @param scpCommandLine the <code>scp -f</code> command line.
+     * @param remotePath the path of the file, used in error messages.
+     * @return the stream to read the contents of the file from.
+     * @throws IOException if the command cannot be started or the file cannot be read.
+     */
+    static SshScpInputStream open(Session session, String scpCommandLine, String remotePath) throws IOException {
+        try {
+            SshScpInputStream stream = new SshScpInputStream(session, session.exec(scpCommandLine), remotePath);
+            stream.readHeader();
+            return stream;
+        } catch (IOException exc) {
+            closeQuietly(session);
+            throw exc;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        sendAck(out);
+        for (;;) {
+            String message = readMessage();
+            switch (message.charAt(0)) {
+            case 'T':
+                // Modification and access times, only sent by scp -p
+                sendAck(out);
+                break;
+            case 'C':
+                String[] tokens = message.split(" ", 3);
+                if (tokens.length < 3) {
+                    throw new IOException(format("Cannot read %s: malformed SCP header [%s]", remotePath, message));
+                }
+                try {
+                    remaining = Long.parseLong(tokens[1]);
+                } catch (NumberFormatException exc) {
+                    throw new IOException(format("Cannot read %s: malformed SCP header [%s]", remotePath, message), exc);
+                }
+                logger.debug("Reading {} bytes from {} with scp", remaining, remotePath);
+                sendAck(out);
+                return;
+            default:
+                throw new IOException(format("Cannot read %s: unexpected SCP message [%s]", remotePath, message));
+            }
+        }
+    }
+
+    private String readMessage() throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            throw new EOFException(format("Cannot read %s: scp exited before sending the file", remotePath));
+        }
+        String text = readLine(in, remotePath);
+        if (type == 1 || type == 2) {
+            throw new IOException(format("Cannot read %s: %s", remotePath, text));
+        }
+        return (char) type + text;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException(format("Stream reading %s has been closed", remotePath));
+        }
+        if (remaining == 0) {
+            complete();
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            throw new EOFException(format("Cannot read %s: scp exited with %d bytes left to send", remotePath, remaining));
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    private void complete() throws IOException {
+        if (completed) {
+            return;
+        }
+        completed = true;
+
+        checkAck(in, remotePath);
+        sendAck(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (remaining == 0) {
+                complete();
+            } else {
+                logger.debug("Closing stream reading {} with {} bytes left, aborting scp", remotePath, remaining);
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshScpInputStream.class);
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import static com.xebialabs.overthere.ssh.SshScpProtocol.checkAck;
+import static com.xebialabs.overthere.ssh.SshScpProtocol.sendAck;
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static java.lang.String.format;
+
+/**
+ * Output stream that writes a file of a known length to a remote host by acting as the source of an <code>scp -t</code>
+ * command. The contents are sent as they are written, without being stored locally.
+ */
+class SshScpOutputStream extends OutputStream {
+
+    private final Session session;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private final String remotePath;
+
+    private final long length;
+
+    private long written;
+
+    private boolean closed;
+
+    private SshScpOutputStream(Session session, Session.Command command, String remotePath, long length) {
+        this.session = session;
+        this.in = command.getInputStream();
+        this.out = command.getOutputStream();
+        this.remotePath = remotePath;
+        this.length = length;
+    }
+
+    /**
+     * Starts the SCP command in the session and sends the header of the file. The session is closed when the stream is
+     * closed, or when the file cannot be written.
+     *
+     * @param session the session to start the SCP command in.
+     * @param scpCommandLine the <code>scp -t</code> command line.
+     * @param remotePath the path of the file, used in error messages.
+     * @param name the name of the file, used if the path is a directory.
+     * @param length the number of bytes that will be written to the stream.
+     * @return the stream to write the contents of the file to.
+     * @throws IOException if the command cannot be started or the file cannot be written.
+     */
+    static SshScpOutputStream open(Session session, String scpCommandLine, String remotePath, String name, long length) throws IOException {
+        try {
+            SshScpOutputStream stream = new SshScpOutputStream(session, session.exec(scpCommandLine), remotePath, length);
+            stream.sendHeader(name);
+            return stream;
+        } catch (IOException exc) {
+            closeQuietly(session);
+            throw exc;
+        }
+    }
+
+    private void sendHeader(String name) throws IOException {
+        checkAck(in, remotePath);
+        logger.debug("Writing {} bytes to {} with scp", length, remotePath);
+        out.write(format("C0644 %d %s\n", length, name).getBytes("UTF-8"));
+        out.flush();
+        checkAck(in, remotePath);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException(format("Stream writing %s has been closed", remotePath));
+        }
+        if (len > length - written) {
+            throw new IOException(format("Cannot write more than the %d bytes announced for %s", length, remotePath));
+        }
+        out.write(b, off, len);
+        written += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (written != length) {
+                throw new IOException(format("Cannot write %s: only %d of the %d announced bytes were written", remotePath, written, length));
+            }
+            sendAck(out);
+            checkAck(in, remotePath);
+        } finally {
+            session.close();
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshScpOutputStream.class);
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Helpers for the messages exchanged with a remote <code>scp -f</code> or <code>scp -t</code> command.
+ */
+final class SshScpProtocol {
+
+    private SshScpProtocol() {
+    }
+
+    static void sendAck(OutputStream out) throws IOException {
+        out.write(0);
+        out.flush();
+    }
+
+    /**
+     * Reads the status byte sent by scp and throws an exception carrying the message of scp if it reports a warning or
+     * an error.
+     */
+    static void checkAck(InputStream in, String remotePath) throws IOException {
+        int status = in.read();
+        if (status == -1) {
+            throw new EOFException(format("Cannot transfer %s: scp exited unexpectedly", remotePath));
+        } else if (status == 1 || status == 2) {
+            throw new IOException(format("Cannot transfer %s: %s", remotePath, readLine(in, remotePath)));
+        } else if (status != 0) {
+            throw new IOException(format("Cannot transfer %s: unexpected SCP status %d", remotePath, status));
+        }
+    }
+
+    static String readLine(InputStream in, String remotePath) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (;;) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException(format("Cannot transfer %s: scp exited in the middle of a message", remotePath));
+            }
+            if (b == '\n') {
+                return line.toString("UTF-8");
+            }
+            line.write(b);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static java.lang.String.format;
+
+/**
+ * Output stream that keeps the contents written to it in memory up to a threshold and in a local temporary file beyond
+ * that. The contents are uploaded to an {@link SshScpFile} when the stream is closed, because SCP needs to know their
+ * length up front.
+ */
+class SshScpSpoolingOutputStream extends OutputStream {
+
+    private final SshScpFile file;
+
+    private final int threshold;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    private File tempFile;
+
+    private OutputStream fileStream;
+
+    private boolean closed;
+
+    SshScpSpoolingOutputStream(SshScpFile file, int threshold) {
+        this.file = file;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException(format("Stream writing %s has been closed", file));
+        }
+        if (fileStream == null && memory.size() + len > threshold) {
+            spill();
+        }
+        if (fileStream != null) {
+            fileStream.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+    }
+
+    private void spill() throws IOException {
+        tempFile = File.createTempFile("scp_upload", ".tmp");
+        tempFile.deleteOnExit();
+        logger.debug("Spooling contents to be uploaded to {} to temporary file {}", file, tempFile);
+        fileStream = new FileOutputStream(tempFile);
+        memory.writeTo(fileStream);
+        memory = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (fileStream == null) {
+            file.upload(new ByteArrayInputStream(memory.toByteArray()), memory.size());
+            memory = null;
+            return;
+        }
+
+        try {
+            fileStream.close();
+            logger.debug("Uploading contents of temporary file {} to {}", tempFile, file);
+            InputStream in = new FileInputStream(tempFile);
+            try {
+                file.upload(in, tempFile.length());
+            } finally {
+                closeQuietly(in);
+            }
+        } finally {
+            logger.debug("Deleting temporary file {}", tempFile);
+            tempFile.delete();
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshScpSpoolingOutputStream.class);
+
+}
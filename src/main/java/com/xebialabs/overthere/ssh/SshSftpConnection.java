@@ -23,6 +23,10 @@
 package com.xebialabs.overthere.ssh;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 import net.schmizz.sshj.sftp.SFTPClient;
 
@@ -34,6 +38,23 @@ import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.AddressPortMapper;
 
+import static com.xebialabs.overthere.metrics.OverthereOperation.CHANNEL_OPEN;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_CLIENT_POOL_SIZE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_CLIENT_POOL_SIZE_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_CHANNELS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_CHANNELS_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_CHUNK_SIZE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_CHUNK_SIZE_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_SEPARATE_TRANSPORTS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_SEPARATE_TRANSPORTS_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_THRESHOLD;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_PARALLEL_THRESHOLD_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_RESUMABLE_UPLOAD;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_RESUMABLE_UPLOAD_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_RESUME_CHECKSUM_COMMAND;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_RESUME_CHECKSUM_COMMAND_DEFAULT;
 import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
 import static java.lang.String.format;
 
@@ -42,23 +63,44 @@ import static java.lang.String.format;
  */
 abstract class SshSftpConnection extends SshConnection {
 
-    private SFTPClient sharedSftpClient;
+    private final Deque<SFTPClient> idleSftpClients = new ArrayDeque<SFTPClient>();
+
+    private boolean sftpClientPoolClosed;
+
+    protected int sftpClientPoolSize;
+
+    protected int sftpMaxOutstandingRequests;
+
+    protected int sftpParallelChannels;
+
+    protected int sftpParallelChunkSize;
+
+    protected int sftpParallelThreshold;
+
+    protected boolean sftpParallelSeparateTransports;
+
+    protected boolean sftpResumableUpload;
+
+    protected String sftpResumeChecksumCommand;
 
     public SshSftpConnection(String type, ConnectionOptions options, AddressPortMapper mapper) {
         super(type, options, mapper);
-    }
-
-    @Override
-    protected void connect() {
-        super.connect();
+        sftpClientPoolSize = options.getInteger(SFTP_CLIENT_POOL_SIZE, SFTP_CLIENT_POOL_SIZE_DEFAULT);
+        sftpMaxOutstandingRequests = options.getInteger(SFTP_MAX_OUTSTANDING_REQUESTS, SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT);
+        sftpParallelChannels = options.getInteger(SFTP_PARALLEL_CHANNELS, SFTP_PARALLEL_CHANNELS_DEFAULT);
+        sftpParallelChunkSize = options.getInteger(SFTP_PARALLEL_CHUNK_SIZE, SFTP_PARALLEL_CHUNK_SIZE_DEFAULT);
+        sftpParallelThreshold = options.getInteger(SFTP_PARALLEL_THRESHOLD, SFTP_PARALLEL_THRESHOLD_DEFAULT);
+        sftpParallelSeparateTransports = options.getBoolean(SFTP_PARALLEL_SEPARATE_TRANSPORTS, SFTP_PARALLEL_SEPARATE_TRANSPORTS_DEFAULT);
+        sftpResumableUpload = options.getBoolean(SFTP_RESUMABLE_UPLOAD, SFTP_RESUMABLE_UPLOAD_DEFAULT);
+        sftpResumeChecksumCommand = options.get(SFTP_RESUME_CHECKSUM_COMMAND, SFTP_RESUME_CHECKSUM_COMMAND_DEFAULT);
     }
 
     @Override
     public void doClose() {
-        if (sharedSftpClient != null) {
-            disconnectSftp(sharedSftpClient);
-            sharedSftpClient = null;
+        synchronized (idleSftpClients) {
+            sftpClientPoolClosed = true;
         }
+        closeIdleChannels();
 
         super.doClose();
     }
@@ -68,19 +110,101 @@ abstract class SshSftpConnection extends SshConnection {
         return new SshSftpFile(this, hostPath);
     }
 
-    SFTPClient getSharedSftpClient() {
-        if ( sharedSftpClient == null ) {
-            sharedSftpClient = connectSftp();
+    /**
+     * Leases an idle SFTP client from the pool of this connection, or opens a new one if none is idle. Leases are not
+     * limited, so that an operation never waits for a stream that another operation, or the same one, keeps open. The
+     * client must be returned with {@link #releaseSftp(SFTPClient)} when it is no longer used.
+     */
+    SFTPClient leaseSftp() {
+        SFTPClient client = pollIdleSftp();
+        return client != null ? client : connectSftp();
+    }
+
+    /**
+     * Leases an SFTP client like {@link #leaseSftp()}, but returns <code>null</code> instead of waiting if no client is
+     * idle and all {@link SshConnectionBuilder#MAX_CHANNELS maxChannels} channels are in use.
+     */
+    SFTPClient tryLeaseSftp() {
+        SFTPClient client = pollIdleSftp();
+        if (client != null) {
+            return client;
+        }
+        if (!hasAvailableChannel()) {
+            return null;
+        }
+        return connectSftp();
+    }
+
+    private SFTPClient pollIdleSftp() {
+        for (;;) {
+            SFTPClient client;
+            synchronized (idleSftpClients) {
+                client = idleSftpClients.pollFirst();
+            }
+            if (client == null || isUsable(client)) {
+                return client;
+            }
+            disconnectSftp(client);
+        }
+    }
+
+    /**
+     * Returns a leased SFTP client to the pool. The client is closed instead if it can no longer be used, or if no more
+     * clients may be kept idle. At most {@link SshConnectionBuilder#SFTP_CLIENT_POOL_SIZE sftpClientPoolSize} clients
+     * are kept idle, and when {@link SshConnectionBuilder#MAX_CHANNELS maxChannels} is set, fewer than that many, so that
+     * idle clients never take up all channels. Clients that were opened while the pooled ones were all leased are
+     * therefore closed when they are returned.
+     */
+    void releaseSftp(SFTPClient client) {
+        if (isUsable(client)) {
+            synchronized (idleSftpClients) {
+                if (!sftpClientPoolClosed && idleSftpClients.size() < getMaxIdleSftpClients()) {
+                    idleSftpClients.addFirst(client);
+                    return;
+                }
+            }
+        }
+        disconnectSftp(client);
+    }
+
+    private int getMaxIdleSftpClients() {
+        if (maxChannels > 0) {
+            return Math.min(sftpClientPoolSize, maxChannels - 1);
         }
-        return sharedSftpClient;
+        return sftpClientPoolSize;
+    }
+
+    @Override
+    protected void closeIdleChannels() {
+        List<SFTPClient> clients;
+        synchronized (idleSftpClients) {
+            clients = new ArrayList<SFTPClient>(idleSftpClients);
+            idleSftpClients.clear();
+        }
+        if (!clients.isEmpty()) {
+            logger.debug("Closing {} idle SFTP clients to {} to free their channels", clients.size(), this);
+        }
+        for (SFTPClient client : clients) {
+            disconnectSftp(client);
+        }
+    }
+
+    private static boolean isUsable(SFTPClient client) {
+        return client.getSFTPEngine().getSubsystem().isOpen();
     }
 
     SFTPClient connectSftp() {
         logger.debug("Opening SFTP client to {}", this);
+        long start = System.nanoTime();
+        boolean successful = false;
         try {
-            return getSshClient().newSFTPClient();
+            SFTPClient client = newSftpClient();
+            successful = true;
+            return client;
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot start SFTP session for %s", this), e);
+        } finally {
+            recordOperation(CHANNEL_OPEN, start, successful);
         }
     }
 
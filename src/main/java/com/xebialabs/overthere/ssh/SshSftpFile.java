@@ -22,13 +22,18 @@
  */
 package com.xebialabs.overthere.ssh;
 
+import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.PositionalReadable;
+import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.sftp.*;
 import net.schmizz.sshj.xfer.FilePermission;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,13 +42,27 @@ import java.util.EnumSet;
 import java.util.List;
 
 import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static com.xebialabs.overthere.metrics.OverthereOperation.LIST;
+import static com.xebialabs.overthere.metrics.OverthereOperation.STAT;
+import static com.xebialabs.overthere.ssh.SshConnection.NOCD_PSEUDO_COMMAND;
+import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
+import static com.xebialabs.overthere.util.LoggingOverthereExecutionOutputHandler.loggingErrorHandler;
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * A file on a host connected through SSH that is accessed using SFTP.
  */
 class SshSftpFile extends SshFile<SshSftpConnection> {
 
+    /**
+     * The suffix of the file that a {@link SshConnectionBuilder#SFTP_RESUMABLE_UPLOAD resumable upload} writes to before it is
+     * renamed to the target file.
+     */
+    static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    private volatile AttributesSnapshot attributes;
+
     public SshSftpFile(SshSftpConnection connection, String path) {
         super(connection, path);
     }
@@ -54,12 +73,24 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 
     @Override
     public boolean exists() {
+        if (getCachedAttributes() != null) {
+            return true;
+        }
+
         logger.debug("Checking {} for existence", this);
 
+        SFTPClient sftp = connection.leaseSftp();
         try {
-            return connection.getSharedSftpClient().statExistence(getSftpPath()) != null;
+            long generation = connection.getFileSystemGeneration();
+            FileAttributes fileAttributes = sftp.statExistence(getSftpPath());
+            if (fileAttributes != null) {
+                attributes = new AttributesSnapshot(fileAttributes, generation);
+            }
+            return fileAttributes != null;
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot check existence of file %s", this), e);
+        } finally {
+            connection.releaseSftp(sftp);
         }
     }
 
@@ -102,13 +133,58 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
         return stat().getPermissions().contains(perm);
     }
 
+    /**
+     * Returns the attributes of the file. The attributes are kept and reused until a command is executed on or a file is
+     * changed through the connection, or until {@link #refresh()} is invoked.
+     */
     protected FileAttributes stat() {
+        FileAttributes cached = getCachedAttributes();
+        if (cached != null) {
+            return cached;
+        }
+
         logger.debug("Statting {}", this);
 
+        SFTPClient sftp = connection.leaseSftp();
+        long start = System.nanoTime();
+        boolean successful = false;
         try {
-            return connection.getSharedSftpClient().stat(getSftpPath());
+            long generation = connection.getFileSystemGeneration();
+            FileAttributes fileAttributes = sftp.stat(getSftpPath());
+            attributes = new AttributesSnapshot(fileAttributes, generation);
+            successful = true;
+            return fileAttributes;
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot stat %s", this), e);
+        } finally {
+            connection.releaseSftp(sftp);
+            recordOperation(STAT, start, successful);
+        }
+    }
+
+    private FileAttributes getCachedAttributes() {
+        AttributesSnapshot snapshot = attributes;
+        if (snapshot != null && snapshot.generation == connection.getFileSystemGeneration()) {
+            return snapshot.attributes;
+        }
+        return null;
+    }
+
+    /**
+     * Discards the attributes of the file that were retrieved earlier, so that the next query retrieves them again.
+     * Needed only when the file was changed by a process that is still running or by another connection.
+     */
+    public void refresh() {
+        attributes = null;
+    }
+
+    private static class AttributesSnapshot {
+        final FileAttributes attributes;
+        final long generation;
+
+        AttributesSnapshot(FileAttributes attributes, long generation) {
+            this.attributes = attributes;
+            this.generation = generation;
         }
     }
 
@@ -118,7 +194,18 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 
         try {
             // read files from host
-            List<RemoteResourceInfo> ls = connection.getSharedSftpClient().ls(getSftpPath());
+            long start = System.nanoTime();
+            boolean successful = false;
+            long generation = connection.getFileSystemGeneration();
+            List<RemoteResourceInfo> ls;
+            SFTPClient sftp = connection.leaseSftp();
+            try {
+                ls = sftp.ls(getSftpPath());
+                successful = true;
+            } finally {
+                connection.releaseSftp(sftp);
+                recordOperation(LIST, start, successful);
+            }
 
             // copy files to list, skipping . and ..
             List<OverthereFile> files = new ArrayList<OverthereFile>();
@@ -127,7 +214,12 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
                 if (filename.equals(".") || filename.equals("..")) {
                     continue;
                 }
-                files.add(getFile(filename));
+                SshSftpFile file = (SshSftpFile) getFile(filename);
+                // The attributes of a symbolic link describe the link, not the file it points to
+                if (l.getAttributes().getType() != FileMode.Type.SYMLINK) {
+                    file.attributes = new AttributesSnapshot(l.getAttributes(), generation);
+                }
+                files.add(file);
             }
 
             return files;
@@ -138,32 +230,224 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
 
     @Override
     protected void copyFrom(OverthereFile source) {
-        SFTPFileTransfer fileTransfer = connection.getSharedSftpClient().getFileTransfer();
         try {
-            fileTransfer.upload(new OverthereFileLocalSourceFile(source), getSftpPath());
+            boolean resumable = connection.sftpResumableUpload && source.isFile();
+            if ((resumable || shouldUploadInParallel(source)) && isDirectory()) {
+                ((SshSftpFile) getFile(source.getName())).copyFrom(source);
+            } else if (resumable) {
+                uploadResumably(source);
+            } else if (shouldUploadInParallel(source)) {
+                uploadInParallel((PositionalReadable) source, source.length());
+            } else {
+                SFTPClient sftp = connection.leaseSftp();
+                try {
+                    sftp.getFileTransfer().upload(new OverthereFileLocalSourceFile(source), getSftpPath());
+                } finally {
+                    connection.releaseSftp(sftp);
+                }
+            }
         } catch (IOException ioe) {
             throw new RuntimeIOException(format("Cannot upload %s to %s", source, this), ioe);
+        } finally {
+            connection.fileSystemChanged();
+        }
+    }
+
+    private void uploadResumably(OverthereFile source) throws IOException {
+        SshSftpFile partialFile = (SshSftpFile) getParentFile().getFile(getName() + PARTIAL_FILE_SUFFIX);
+        logger.debug("Uploading {} to {} via partial file {}", source, this, partialFile);
+
+        final SFTPClient sftp = connection.leaseSftp();
+        try {
+            uploadResumably(source, sftp, partialFile);
+        } finally {
+            connection.releaseSftp(sftp);
+        }
+    }
+
+    private void uploadResumably(OverthereFile source, final SFTPClient sftp, final SshSftpFile partialFile) throws IOException {
+        final String partialPath = partialFile.getSftpPath();
+        new SshSftpResumableUpload(source) {
+            @Override
+            protected long getPartialLength() throws IOException {
+                FileAttributes attributes = sftp.statExistence(partialPath);
+                return attributes == null ? -1 : attributes.getSize();
+            }
+
+            @Override
+            protected String getPartialChecksum(long prefixLength) {
+                if (connection.sftpResumeChecksumCommand == null || connection.sftpResumeChecksumCommand.trim().isEmpty()) {
+                    return null;
+                }
+
+                CmdLine checksumCmdLine = CmdLine.build(NOCD_PSEUDO_COMMAND).addTemplatedFragment(connection.sftpResumeChecksumCommand, partialFile.getPath(), Long.toString(prefixLength));
+                CapturingOverthereExecutionOutputHandler capturedOutput = capturingHandler();
+                try {
+                    int errno = connection.execute(capturedOutput, loggingErrorHandler(logger), checksumCmdLine);
+                    if (errno == 0 && !capturedOutput.getOutputLines().isEmpty()) {
+                        return capturedOutput.getOutputLines().get(0).trim().split("\\s+")[0];
+                    }
+                    logger.warn("Cannot determine checksum of partial file {}, command exited with {}", partialFile, errno);
+                } catch (RuntimeException e) {
+                    logger.warn(format("Cannot determine checksum of partial file %s", partialFile), e);
+                }
+                // Not matching any checksum makes the upload start over
+                return "";
+            }
+
+            @Override
+            protected OutputStream openPartial(long offset) throws IOException {
+                EnumSet<OpenMode> modes = offset == 0 ? EnumSet.of(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC) : EnumSet.of(OpenMode.WRITE);
+                final SshSftpRemoteFile remoteFile = SshSftpRemoteFile.open(sftp.getSFTPEngine(), partialPath, modes);
+                final OutputStream wrapped;
+                if (connection.sftpMaxOutstandingRequests > 1) {
+                    wrapped = remoteFile.new WriteBehindOutputStream(connection.sftpMaxOutstandingRequests, offset);
+                } else {
+                    wrapped = remoteFile.new RemoteFileOutputStream(offset);
+                }
+                return new FilterOutputStream(wrapped) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        wrapped.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            wrapped.close();
+                        } finally {
+                            closeQuietly(remoteFile);
+                        }
+                    }
+                };
+            }
+
+            @Override
+            protected void publish() throws IOException {
+                String path = getSftpPath();
+                try {
+                    posixRename(sftp.getSFTPEngine(), partialPath, path);
+                } catch (SFTPException e) {
+                    if (e.getStatusCode() != Response.StatusCode.OP_UNSUPPORTED) {
+                        throw e;
+                    }
+                    logger.debug("Server does not support atomic renames, removing {} before renaming {} to it", SshSftpFile.this, partialFile);
+                    if (sftp.statExistence(path) != null) {
+                        sftp.rm(path);
+                    }
+                    sftp.rename(partialPath, path);
+                }
+                sftp.chmod(path, 0644);
+            }
+        }.upload();
+    }
+
+    /**
+     * Renames a file with the <code>posix-rename@openssh.com</code> SFTP extension, which replaces the target in one step.
+     */
+    private static void posixRename(SFTPEngine engine, String from, String to) throws IOException {
+        Request request = engine.newExtendedRequest("posix-rename@openssh.com");
+        request.putString(from, engine.getSubsystem().getRemoteCharset());
+        request.putString(to, engine.getSubsystem().getRemoteCharset());
+        engine.request(request).retrieve(engine.getTimeoutMs(), MILLISECONDS).ensureStatusPacketIsOK();
+    }
+
+    private boolean shouldUploadInParallel(OverthereFile source) {
+        return connection.sftpParallelChannels > 1 && source instanceof PositionalReadable && source.isFile()
+                && source.length() >= connection.sftpParallelThreshold;
+    }
+
+    private void uploadInParallel(PositionalReadable source, long length) throws IOException {
+        logger.debug("Uploading {} to {} over {} SFTP channels", source, this, connection.sftpParallelChannels);
+
+        final String path = getSftpPath();
+        final SFTPClient sftp = connection.leaseSftp();
+        try {
+            uploadInParallel(source, length, sftp, path);
+        } finally {
+            connection.releaseSftp(sftp);
         }
     }
 
+    private void uploadInParallel(PositionalReadable source, long length, final SFTPClient sftp, final String path) throws IOException {
+        closeQuietly(sftp.open(path, EnumSet.of(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC)));
+
+        final SFTPClient[] sftps = new SFTPClient[connection.sftpParallelChannels];
+        final SSHClient[] transports = new SSHClient[connection.sftpParallelChannels];
+        new SshSftpParallelUpload(source, length, connection.sftpParallelChannels, connection.sftpParallelChunkSize, connection.sftpMaxOutstandingRequests) {
+            @Override
+            protected SshSftpRemoteFile openChannel(int channel) throws IOException {
+                try {
+                    // Channel 0 uses the client leased for the whole upload. The other channels do not wait for a
+                    // channel, because uploads holding some channels while waiting for more could block each other.
+                    SFTPClient channelSftp;
+                    if (channel == 0) {
+                        channelSftp = sftp;
+                    } else if (connection.sftpParallelSeparateTransports) {
+                        transports[channel] = connection.connectClient();
+                        channelSftp = sftps[channel] = transports[channel].newSFTPClient();
+                    } else {
+                        channelSftp = sftps[channel] = connection.tryLeaseSftp();
+                        if (channelSftp == null) {
+                            throw new IOException(format("All %d channels to %s are in use", connection.maxChannels, connection));
+                        }
+                    }
+                    return SshSftpRemoteFile.open(channelSftp.getSFTPEngine(), path, EnumSet.of(OpenMode.WRITE));
+                } catch (RuntimeIOException e) {
+                    closeChannel(channel, null);
+                    throw new IOException(e);
+                } catch (IOException e) {
+                    closeChannel(channel, null);
+                    throw e;
+                }
+            }
+
+            @Override
+            protected void closeChannel(int channel, SshSftpRemoteFile target) {
+                closeQuietly(target);
+                if (transports[channel] != null) {
+                    closeQuietly(sftps[channel]);
+                    closeQuietly(transports[channel]);
+                } else if (sftps[channel] != null) {
+                    connection.releaseSftp(sftps[channel]);
+                }
+            }
+
+            @Override
+            protected long getUploadedLength() throws IOException {
+                return sftp.size(path);
+            }
+        }.upload();
+
+        sftp.chmod(path, 0644);
+    }
+
     @Override
     public void mkdir() {
         logger.debug("Creating directory {}", this);
 
+        SFTPClient sftp = connection.leaseSftp();
         try {
-            connection.getSharedSftpClient().mkdir(getSftpPath());
+            sftp.mkdir(getSftpPath());
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot create directory %s", this), e);
+        } finally {
+            connection.releaseSftp(sftp);
+            connection.fileSystemChanged();
         }
     }
 
     @Override
     public void mkdirs() {
         logger.debug("Creating directories {}", this);
+        SFTPClient sftp = connection.leaseSftp();
         try {
-            connection.getSharedSftpClient().mkdirs(getSftpPath());
+            sftp.mkdirs(getSftpPath());
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot create directories %s", this), e);
+        } finally {
+            connection.releaseSftp(sftp);
+            connection.fileSystemChanged();
         }
     }
 
@@ -174,10 +458,14 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
         if (dest instanceof SshSftpFile) {
             SshSftpFile sftpDest = (SshSftpFile) dest;
             if (sftpDest.getConnection() == getConnection()) {
+                SFTPClient sftp = connection.leaseSftp();
                 try {
-                    connection.getSharedSftpClient().rename(getSftpPath(), sftpDest.getSftpPath());
+                    sftp.rename(getSftpPath(), sftpDest.getSftpPath());
                 } catch (IOException e) {
                     throw new RuntimeIOException(format("Cannot move/rename file/directory %s to %s", this, dest), e);
+                } finally {
+                    connection.releaseSftp(sftp);
+                    connection.fileSystemChanged();
                 }
             } else {
                 throw new RuntimeIOException(format(
@@ -194,16 +482,20 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
     public void setExecutable(boolean executable) {
         logger.debug("Setting execute permission on {} to {}", this, executable);
 
+        SFTPClient sftp = connection.leaseSftp();
         try {
-            int permissionsMask = connection.getSharedSftpClient().stat(getSftpPath()).getMode().getPermissionsMask();
+            int permissionsMask = sftp.stat(getSftpPath()).getMode().getPermissionsMask();
             if (executable) {
                 permissionsMask |= 0111;
             } else {
                 permissionsMask &= ~0111;
             }
-            connection.getSharedSftpClient().chmod(getPath(), permissionsMask);
+            sftp.chmod(getPath(), permissionsMask);
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot set execute permission on %s to %b", this, executable), e);
+        } finally {
+            connection.releaseSftp(sftp);
+            connection.fileSystemChanged();
         }
     }
 
@@ -211,10 +503,14 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
     protected void deleteFile() {
         logger.debug("Deleting file {}", this);
 
+        SFTPClient sftp = connection.leaseSftp();
         try {
-            connection.getSharedSftpClient().rm(getSftpPath());
+            sftp.rm(getSftpPath());
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot delete file %s", this), e);
+        } finally {
+            connection.releaseSftp(sftp);
+            connection.fileSystemChanged();
         }
     }
 
@@ -222,10 +518,14 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
     protected void deleteDirectory() {
         logger.debug("Deleting directory {}", this);
 
+        SFTPClient sftp = connection.leaseSftp();
         try {
-            connection.getSharedSftpClient().rmdir(getSftpPath());
+            sftp.rmdir(getSftpPath());
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot delete directory %s", this), e);
+        } finally {
+            connection.releaseSftp(sftp);
+            connection.fileSystemChanged();
         }
     }
 
@@ -233,10 +533,18 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
     public InputStream getInputStream() {
         logger.debug("Opening SFTP input stream for {}", this);
 
+        final SFTPClient sftp = connection.leaseSftp();
         try {
-            final SFTPClient sftp = connection.connectSftp();
-            final RemoteFile remoteFile = sftp.open(getSftpPath(), EnumSet.of(OpenMode.READ));
-            final InputStream wrapped = remoteFile.new RemoteFileInputStream();
+            final RemoteFile remoteFile;
+            final InputStream wrapped;
+            if (connection.sftpMaxOutstandingRequests > 1) {
+                SshSftpRemoteFile pipelinedFile = SshSftpRemoteFile.open(sftp.getSFTPEngine(), getSftpPath(), EnumSet.of(OpenMode.READ));
+                remoteFile = pipelinedFile;
+                wrapped = pipelinedFile.new ReadAheadInputStream(connection.sftpMaxOutstandingRequests);
+            } else {
+                remoteFile = sftp.open(getSftpPath(), EnumSet.of(OpenMode.READ));
+                wrapped = remoteFile.new RemoteFileInputStream();
+            }
 
             return asBuffered(new InputStream() {
 
@@ -287,11 +595,12 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
                         wrapped.close();
                     } finally {
                         closeQuietly(remoteFile);
-                        connection.disconnectSftp(sftp);
+                        connection.releaseSftp(sftp);
                     }
                 }
             });
         } catch (IOException e) {
+            connection.releaseSftp(sftp);
             throw new RuntimeIOException("Cannot read from file " + this, e);
         }
     }
@@ -300,10 +609,19 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
     public OutputStream getOutputStream() {
         logger.debug("Opening SFTP ouput stream for {}", this);
 
+        final SFTPClient sftp = connection.leaseSftp();
         try {
-            final SFTPClient sftp = connection.connectSftp();
-            final RemoteFile remoteFile = sftp.open(getSftpPath(), EnumSet.of(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC));
-            final OutputStream wrapped = remoteFile.new RemoteFileOutputStream();
+            final RemoteFile remoteFile;
+            final OutputStream wrapped;
+            if (connection.sftpMaxOutstandingRequests > 1) {
+                SshSftpRemoteFile pipelinedFile = SshSftpRemoteFile.open(sftp.getSFTPEngine(), getSftpPath(), EnumSet.of(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC));
+                remoteFile = pipelinedFile;
+                wrapped = pipelinedFile.new WriteBehindOutputStream(connection.sftpMaxOutstandingRequests);
+            } else {
+                remoteFile = sftp.open(getSftpPath(), EnumSet.of(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC));
+                wrapped = remoteFile.new RemoteFileOutputStream();
+            }
+            connection.fileSystemChanged();
 
             return asBuffered(new OutputStream() {
 
@@ -334,11 +652,13 @@ class SshSftpFile extends SshFile<SshSftpConnection> {
                         wrapped.close();
                     } finally {
                         closeQuietly(remoteFile);
-                        connection.disconnectSftp(sftp);
+                        connection.releaseSftp(sftp);
+                        connection.fileSystemChanged();
                     }
                 }
             });
         } catch (IOException e) {
+            connection.releaseSftp(sftp);
             throw new RuntimeIOException(format("Cannot write to %s", this), e);
         }
     }
@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.spi.OverthereRuntime;
+import com.xebialabs.overthere.spi.PositionalReadable;
+
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static java.lang.String.format;
+
+/**
+ * Uploads a file by splitting it into chunks that are written at their own offsets over several SFTP channels at once.
+ * Each channel takes the next chunk when it has written the previous one, so that a slow channel does not hold up the
+ * others. Subclasses open the channels.
+ */
+abstract class SshSftpParallelUpload {
+
+    private final PositionalReadable source;
+
+    private final long length;
+
+    private final int channels;
+
+    private final int chunkSize;
+
+    private final int maxOutstandingRequests;
+
+    private final AtomicLong nextOffset = new AtomicLong();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    SshSftpParallelUpload(PositionalReadable source, long length, int channels, int chunkSize, int maxOutstandingRequests) {
+        this.source = source;
+        this.length = length;
+        this.channels = channels;
+        this.chunkSize = chunkSize;
+        this.maxOutstandingRequests = Math.max(maxOutstandingRequests, 1);
+    }
+
+    /**
+     * Opens the target file for writing, without truncating it, over the given channel. Channel <code>0</code> is opened
+     * first; if another channel cannot be opened, the upload continues over the channels opened before it.
+     */
+    protected abstract SshSftpRemoteFile openChannel(int channel) throws IOException;
+
+    /**
+     * Closes the target file and the channel it was opened over.
+     */
+    protected abstract void closeChannel(int channel, SshSftpRemoteFile target);
+
+    /**
+     * Returns the size of the target file after all chunks have been written.
+     */
+    protected abstract long getUploadedLength() throws IOException;
+
+    void upload() throws IOException {
+        List<SshSftpRemoteFile> targets = new ArrayList<SshSftpRemoteFile>();
+        try {
+            targets.add(openChannel(0));
+            for (int i = 1; i < channels; i++) {
+                try {
+                    targets.add(openChannel(i));
+                } catch (IOException e) {
+                    logger.warn(format("Cannot open SFTP channel %d of %d for a parallel upload, continuing with %d channels", i + 1, channels, i), e);
+                    break;
+                }
+            }
+
+            logger.debug("Uploading {} bytes over {} SFTP channels in chunks of {} bytes", length, targets.size(), chunkSize);
+            List<OverthereRuntime.Pump> workers = new ArrayList<OverthereRuntime.Pump>();
+            for (int i = 0; i < targets.size(); i++) {
+                workers.add(OverthereRuntime.start("SFTP parallel upload channel " + i, new ChunkWriter(targets.get(i))));
+            }
+            awaitWorkers(workers);
+        } finally {
+            for (int i = 0; i < targets.size(); i++) {
+                closeChannel(i, targets.get(i));
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t != null) {
+            throw new IOException("Parallel upload failed", t);
+        }
+
+        long uploadedLength = getUploadedLength();
+        if (uploadedLength != length) {
+            throw new IOException(format("Uploaded file has %d bytes instead of %d", uploadedLength, length));
+        }
+    }
+
+    /**
+     * Waits for the workers to finish. When interrupted, the workers are told to stop, and are waited for until they have
+     * done so, because the channels they write to must not be closed before that.
+     */
+    private void awaitWorkers(List<OverthereRuntime.Pump> workers) {
+        boolean interrupted = false;
+        for (OverthereRuntime.Pump worker : workers) {
+            for (;;) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        failure.compareAndSet(null, e);
+                        for (OverthereRuntime.Pump w : workers) {
+                            w.interrupt();
+                        }
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ChunkWriter implements Runnable {
+
+        private final SshSftpRemoteFile target;
+
+        ChunkWriter(SshSftpRemoteFile target) {
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[SshSftpRemoteFile.CHUNK_SIZE];
+            try {
+                long offset;
+                while (failure.get() == null && (offset = nextOffset.getAndAdd(chunkSize)) < length) {
+                    writeChunk(offset, Math.min(chunkSize, length - offset), buffer);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }
+
+        private void writeChunk(long offset, long chunkLength, byte[] buffer) throws IOException {
+            InputStream in = source.getInputStream(offset);
+            try {
+                OutputStream out = target.new WriteBehindOutputStream(maxOutstandingRequests, offset);
+                long remaining = chunkLength;
+                while (remaining > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n == -1) {
+                        throw new IOException(format("Source ended at offset %d, before the expected length of %d bytes", offset + chunkLength - remaining, length));
+                    }
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+                out.close();
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshSftpParallelUpload.class);
+
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPEngine;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A remote file that can be read and written with several SFTP requests in flight, so that the throughput is not
+ * limited to one request per round trip.
+ */
+class SshSftpRemoteFile extends RemoteFile {
+
+    /**
+     * The number of bytes requested per SFTP READ or sent per SFTP WRITE. This is the size that OpenSSH uses too.
+     */
+    static final int CHUNK_SIZE = 32 * 1024;
+
+    SshSftpRemoteFile(SFTPEngine requester, String path, byte[] handle) {
+        super(requester, path, handle);
+    }
+
+    /**
+     * Opens a remote file, like {@link SFTPEngine#open(String, Set)} does.
+     */
+    static SshSftpRemoteFile open(SFTPEngine engine, String path, Set<OpenMode> modes) throws IOException {
+        Request request = engine.newRequest(PacketType.OPEN);
+        request.putString(path, engine.getSubsystem().getRemoteCharset());
+        request.putUInt32(OpenMode.toMask(modes));
+        request.putFileAttributes(FileAttributes.EMPTY);
+        Response response = engine.request(request).retrieve(engine.getTimeoutMs(), MILLISECONDS);
+        return new SshSftpRemoteFile(engine, path, response.ensurePacketTypeIs(PacketType.HANDLE).readBytes());
+    }
+
+    /**
+     * Reads the file from the start or from an offset with a {@link ReadAheadRemoteFileInputStream}, keeping up to a
+     * number of READ requests in flight. That stream requests as many bytes as the caller asks for, so the reads are
+     * passed on in chunks of {@link #CHUNK_SIZE}, which every server returns in one response.
+     */
+    class ReadAheadInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        private int chunkPos;
+
+        private int chunkLen;
+
+        ReadAheadInputStream(int maxOutstandingRequests) {
+            this(maxOutstandingRequests, 0);
+        }
+
+        ReadAheadInputStream(int maxOutstandingRequests, long offset) {
+            // The stream sends one more request than the number of unconfirmed reads it is given
+            this.in = new ReadAheadRemoteFileInputStream(Math.max(maxOutstandingRequests - 1, 0), offset);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (chunkPos == chunkLen) {
+                if (len >= CHUNK_SIZE) {
+                    return in.read(b, off, CHUNK_SIZE);
+                }
+                int n = in.read(chunk, 0, CHUNK_SIZE);
+                if (n == -1) {
+                    return -1;
+                }
+                chunkPos = 0;
+                chunkLen = n;
+            }
+
+            int n = Math.min(len, chunkLen - chunkPos);
+            System.arraycopy(chunk, chunkPos, b, off, n);
+            chunkPos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return chunkLen - chunkPos;
+        }
+    }
+
+    /**
+     * Writes the file from the start or from an offset with a {@link RemoteFileOutputStream}, keeping up to a number of
+     * WRITE requests in flight. That stream sends every write as one request, so the writes are passed on in chunks of
+     * at most {@link #CHUNK_SIZE}, which every server accepts. Flushing or closing the stream waits for all requests to
+     * be acknowledged.
+     */
+    class WriteBehindOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        WriteBehindOutputStream(int maxOutstandingRequests) {
+            this(maxOutstandingRequests, 0);
+        }
+
+        WriteBehindOutputStream(int maxOutstandingRequests, long offset) {
+            // The stream sends one more request than the number of unconfirmed writes it is given
+            this.out = new RemoteFileOutputStream(offset, Math.max(maxOutstandingRequests - 1, 0));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.spi.PositionalReadable;
+
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static java.lang.String.format;
+
+/**
+ * Uploads a file to a partial file that is published under its real name once it is complete. If a previous upload of
+ * the same file was interrupted, the upload continues at the end of the partial file that it left behind, after
+ * optionally checking that the partial file has the same SHA-256 checksum as the start of the source. Subclasses access
+ * the partial file.
+ */
+abstract class SshSftpResumableUpload {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final OverthereFile source;
+
+    private final long length;
+
+    SshSftpResumableUpload(OverthereFile source) {
+        this.source = source;
+        this.length = source.length();
+    }
+
+    /**
+     * Returns the size of the partial file, or <code>-1</code> if it does not exist.
+     */
+    protected abstract long getPartialLength() throws IOException;
+
+    /**
+     * Returns the hexadecimal SHA-256 checksum of the first bytes of the partial file, or <code>null</code> if it cannot be
+     * determined, in which case only the size of the partial file is used to decide whether to resume.
+     */
+    protected abstract String getPartialChecksum(long prefixLength) throws IOException;
+
+    /**
+     * Opens the partial file for writing at the given offset, truncating it if the offset is <code>0</code>.
+     */
+    protected abstract OutputStream openPartial(long offset) throws IOException;
+
+    /**
+     * Renames the partial file to the target file, replacing the target file if it exists.
+     */
+    protected abstract void publish() throws IOException;
+
+    void upload() throws IOException {
+        long offset = getResumeOffset();
+        if (offset > 0) {
+            logger.info("Resuming upload of {} at byte {} of {}", source, offset, length);
+        }
+
+        InputStream in = openSource(offset);
+        try {
+            OutputStream out = openPartial(offset);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = length - offset;
+                while (remaining > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n == -1) {
+                        throw new IOException(format("Source ended %d bytes before the expected length of %d bytes", remaining, length));
+                    }
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            closeQuietly(in);
+        }
+
+        long uploadedLength = getPartialLength();
+        if (uploadedLength != length) {
+            throw new IOException(format("Uploaded file has %d bytes instead of %d", uploadedLength, length));
+        }
+        publish();
+    }
+
+    long getResumeOffset() throws IOException {
+        long partialLength = getPartialLength();
+        if (partialLength <= 0) {
+            return 0;
+        }
+        if (partialLength > length) {
+            logger.debug("Partial file of {} is larger than the source, starting over", source);
+            return 0;
+        }
+
+        String remoteChecksum = getPartialChecksum(partialLength);
+        if (remoteChecksum != null && !remoteChecksum.equalsIgnoreCase(checksum(partialLength))) {
+            logger.info("Partial file of {} does not match the start of the source, starting over", source);
+            return 0;
+        }
+        return partialLength;
+    }
+
+    private String checksum(long prefixLength) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        InputStream in = source.getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = prefixLength;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    break;
+                }
+                digest.update(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            closeQuietly(in);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private InputStream openSource(long offset) throws IOException {
+        if (source instanceof PositionalReadable) {
+            return ((PositionalReadable) source).getInputStream(offset);
+        }
+
+        InputStream in = source.getInputStream();
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = in.skip(offset - skipped);
+            if (n <= 0) {
+                closeQuietly(in);
+                throw new IOException(format("Cannot skip to byte %d of %s", offset, source));
+            }
+            skipped += n;
+        }
+        return in;
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshSftpResumableUpload.class);
+
+}
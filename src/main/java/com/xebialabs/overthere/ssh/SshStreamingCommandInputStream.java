@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.spi.OverthereRuntime;
+
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static java.lang.String.format;
+
+/**
+ * Input stream that reads the stdout of a shell script, such as <code>cat</code> of a file or <code>tar -cf -</code>
+ * of a directory, over the exec channel of a single command. A pty would mangle binary data, so when the command runs
+ * in a pty the output is base64-encoded on the remote side and decoded line by line as it arrives. The command then
+ * prints a marker line first, so that a password prompt and its answer are not mistaken for data, and an end marker
+ * followed by the error output and exit code of the script last, because its stderr would otherwise be mixed with the
+ * data. Without a pty the error output is read from stderr while the data is read, so that a command that writes a lot
+ * of errors does not block on a full stderr channel.
+ */
+class SshStreamingCommandInputStream extends InputStream {
+
+    static final String MARKER = "OVERTHERE-STREAM-BEGIN";
+
+    static final String END_MARKER = "OVERTHERE-STREAM-END";
+
+    private static final int MAX_TRANSCRIPT_LENGTH = 4096;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final SshProcess process;
+
+    private final InputStream stdout;
+
+    private final boolean encoded;
+
+    private final String remotePath;
+
+    private final StringBuilder errorOutput = new StringBuilder();
+
+    private final OverthereRuntime.Pump errorPump;
+
+    private byte[] decoded = new byte[0];
+
+    private int decodedPos;
+
+    private boolean completed;
+
+    private boolean closed;
+
+    private SshStreamingCommandInputStream(SshProcess process, InputStream stdout, boolean encoded, String remotePath) {
+        this.process = process;
+        this.stdout = stdout;
+        this.encoded = encoded;
+        this.remotePath = remotePath;
+        this.errorPump = encoded ? null : OverthereRuntime.start("Errors of streaming read from " + remotePath, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String captured = readFully(SshStreamingCommandInputStream.this.process.getStderr());
+                    synchronized (errorOutput) {
+                        errorOutput.append(captured);
+                    }
+                } catch (IOException exc) {
+                    logger.debug("Cannot read errors of streaming read from " + SshStreamingCommandInputStream.this.remotePath, exc);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wraps a shell script so that its output survives a pty, see {@link #open(SshProcess, boolean, String)}. The
+     * script should be run with <code>sh -c</code>.
+     *
+     * @param script the script that writes the data to its stdout.
+     * @param encoded whether the command will run in a pty.
+     * @return the script to run.
+     */
+    static CmdLine streamingScript(CmdLine script, boolean encoded) {
+        if (!encoded) {
+            return script;
+        }
+        return new CmdLine().addRaw(format("echo %s ; exec 4>&1 ; s=$( { { ( %s ) 2>&3 ; echo $? >&3 ; } | base64 >&4 ; } 3>&1 ) ; echo %s ; echo \"$s\"",
+                MARKER, script.toCommandLine(UNIX, false), END_MARKER));
+    }
+
+    /**
+     * Waits for the command to start sending its output. The process is destroyed when the stream is closed, or when
+     * the command fails before it starts sending.
+     *
+     * @param process the process running the {@link #streamingScript(CmdLine, boolean) streaming script}.
+     * @param encoded whether the command runs in a pty.
+     * @param remotePath the path of the file or directory being read, used in error messages.
+     * @return the stream to read the output of the script from.
+     * @throws IOException if the command exits before it starts sending.
+     */
+    static SshStreamingCommandInputStream open(SshProcess process, boolean encoded, String remotePath) throws IOException {
+        try {
+            InputStream stdout = process.getStdout();
+            if (encoded) {
+                awaitMarker(stdout, remotePath);
+                stdout = new BufferedInputStream(stdout, BUFFER_SIZE);
+            }
+            return new SshStreamingCommandInputStream(process, stdout, encoded, remotePath);
+        } catch (IOException exc) {
+            process.destroy();
+            throw exc;
+        }
+    }
+
+    /**
+     * Reads the output of a command that runs in a pty up to and including the {@link #MARKER} line. Reading the output
+     * through the stream returned by {@link SshProcess#getStdout()} answers any password prompt on the way.
+     */
+    static void awaitMarker(InputStream stdout, String remotePath) throws IOException {
+        ByteArrayOutputStream transcript = new ByteArrayOutputStream();
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int c = stdout.read();
+            if (c == -1) {
+                throw new EOFException(format("Cannot stream %s: command exited before it started streaming: %s", remotePath,
+                        transcript.toString().trim()));
+            }
+            if (c == '\n') {
+                if (line.toString().trim().equals(MARKER)) {
+                    logger.debug("Found marker, streaming {}", remotePath);
+                    return;
+                }
+                line.setLength(0);
+            } else {
+                line.append((char) c);
+            }
+            if (transcript.size() < MAX_TRANSCRIPT_LENGTH) {
+                transcript.write(c);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!encoded) {
+            int b = stdout.read();
+            if (b == -1) {
+                completeUnencoded();
+            }
+            return b;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+        return decoded[decodedPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!encoded) {
+            int n = stdout.read(b, off, len);
+            if (n == -1) {
+                completeUnencoded();
+            }
+            return n;
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, decoded.length - decodedPos);
+        System.arraycopy(decoded, decodedPos, b, off, n);
+        decodedPos += n;
+        return n;
+    }
+
+    /**
+     * Decodes base64 lines until there is data to return, or until the end marker has been reached.
+     */
+    private boolean fill() throws IOException {
+        while (decodedPos == decoded.length) {
+            if (completed) {
+                return false;
+            }
+            String line = readLine(stdout);
+            if (line == null) {
+                process.waitFor();
+                throw new EOFException(format("Cannot read %s: command exited before it finished streaming", remotePath));
+            }
+            if (line.equals(END_MARKER)) {
+                readTrailer();
+                return false;
+            }
+            decoded = Base64.decodeBase64(line);
+            decodedPos = 0;
+        }
+        return true;
+    }
+
+    private void readTrailer() throws IOException {
+        String trailer = readFully(stdout);
+        process.waitFor();
+
+        int lastLine = trailer.lastIndexOf('\n');
+        String errors = lastLine == -1 ? "" : trailer.substring(0, lastLine).trim();
+        try {
+            complete(errors, Integer.parseInt(trailer.substring(lastLine + 1).trim()));
+        } catch (NumberFormatException exc) {
+            throw new IOException(format("Cannot read %s: unexpected output after end marker: %s", remotePath, trailer));
+        }
+    }
+
+    private void completeUnencoded() throws IOException {
+        if (completed) {
+            return;
+        }
+        try {
+            errorPump.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(format("Interrupted while reading %s", remotePath));
+        }
+        String errors;
+        synchronized (errorOutput) {
+            errors = errorOutput.toString();
+        }
+        complete(errors, process.waitFor());
+    }
+
+    private void complete(String errors, int errno) throws IOException {
+        if (completed) {
+            return;
+        }
+        completed = true;
+
+        if (errno != 0) {
+            throw new IOException(format("Cannot read %s: %s (errno=%d)", remotePath, errors, errno));
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int c = in.read();
+            if (c == -1) {
+                return line.length() == 0 ? null : line.toString().trim();
+            }
+            if (c == '\n') {
+                return line.toString().trim();
+            }
+            line.append((char) c);
+        }
+    }
+
+    static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        for (int n; (n = in.read(buf)) != -1; ) {
+            if (out.size() < MAX_TRANSCRIPT_LENGTH) {
+                out.write(buf, 0, Math.min(n, MAX_TRANSCRIPT_LENGTH - out.size()));
+            }
+        }
+        return out.toString().trim();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (!completed) {
+            logger.debug("Closing stream before the end of the output for {}, destroying the process", remotePath);
+        }
+        process.destroy();
+        if (errorPump != null) {
+            errorPump.interrupt();
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshStreamingCommandInputStream.class);
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.spi.OverthereRuntime;
+
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.ssh.SshStreamingCommandInputStream.MARKER;
+import static com.xebialabs.overthere.ssh.SshStreamingCommandInputStream.awaitMarker;
+import static com.xebialabs.overthere.ssh.SshStreamingCommandInputStream.readFully;
+import static java.lang.String.format;
+
+/**
+ * Output stream that writes to the stdin of a shell script, such as <code>cat &gt;</code> a file or <code>tar -xf -</code>
+ * in a directory, over the exec channel of a single command. When the command runs in a pty the data is sent as
+ * base64-encoded lines that are decoded with <code>base64 -d</code>, after the command has printed a marker line, which it
+ * only does once the password prompt has been answered and echo has been turned off. The end of the data is then
+ * signalled with <code>^D</code> instead of end-of-file on the channel.
+ */
+class SshStreamingCommandOutputStream extends OutputStream {
+
+    private static final int LINE_LENGTH = 76;
+
+    private static final byte[] LINE_SEPARATOR = { '\n' };
+
+    private static final byte[] END_OF_TRANSMISSION = { '\n', 0x04 };
+
+    private final SshProcess process;
+
+    private final boolean encoded;
+
+    private final OutputStream stdin;
+
+    private final OutputStream out;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private final OverthereRuntime.Pump pump;
+
+    private final String remotePath;
+
+    private boolean closed;
+
+    private SshStreamingCommandOutputStream(SshProcess process, boolean encoded, final InputStream stdout, String remotePath) {
+        this.process = process;
+        this.encoded = encoded;
+        this.remotePath = remotePath;
+        this.stdin = process.getStdin();
+        this.out = encoded ? new Base64OutputStream(new UnclosableOutputStream(stdin), true, LINE_LENGTH, LINE_SEPARATOR) : stdin;
+        this.pump = OverthereRuntime.start("Output of streaming write to " + remotePath, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String captured = readFully(stdout);
+                    synchronized (output) {
+                        output.write(captured.getBytes());
+                    }
+                } catch (IOException exc) {
+                    logger.debug("Cannot read output of streaming write to " + SshStreamingCommandOutputStream.this.remotePath, exc);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wraps a shell script so that its input survives a pty, see {@link #open(SshProcess, boolean, String)}. The script
+     * should be run with <code>sh -c</code>.
+     *
+     * @param script the script that reads the data from its stdin.
+     * @param encoded whether the command will run in a pty.
+     * @return the script to run.
+     */
+    static CmdLine streamingScript(CmdLine script, boolean encoded) {
+        if (!encoded) {
+            return script;
+        }
+        return new CmdLine().addRaw(format("stty -echo ; echo %s ; base64 -d | ( %s )", MARKER, script.toCommandLine(UNIX, false)));
+    }
+
+    /**
+     * Waits for the command to be ready to receive its input. The process is destroyed when the stream is closed, or when
+     * the command fails before it is ready.
+     *
+     * @param process the process running the {@link #streamingScript(CmdLine, boolean) streaming script}.
+     * @param encoded whether the command runs in a pty.
+     * @param remotePath the path of the file or directory being written, used in error messages.
+     * @return the stream to write the input of the script to.
+     * @throws IOException if the command exits before it is ready to receive the data.
+     */
+    static SshStreamingCommandOutputStream open(SshProcess process, boolean encoded, String remotePath) throws IOException {
+        try {
+            InputStream stdout = process.getStdout();
+            if (encoded) {
+                awaitMarker(stdout, remotePath);
+            }
+            return new SshStreamingCommandOutputStream(process, encoded, stdout, remotePath);
+        } catch (IOException exc) {
+            process.destroy();
+            throw exc;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (encoded) {
+                out.close();
+                stdin.write(END_OF_TRANSMISSION);
+                stdin.flush();
+            } else {
+                process.closeStdin();
+            }
+
+            pump.join();
+            String errors = readFully(process.getStderr());
+            int errno = process.waitFor();
+            if (errno != 0) {
+                synchronized (output) {
+                    throw new IOException(format("Cannot write %s: %s (errno=%d)", remotePath, (output.toString() + " " + errors).trim(), errno));
+                }
+            }
+            logger.debug("Finished streaming write to {}", remotePath);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new IOException(format("Interrupted while writing %s", remotePath), exc);
+        } finally {
+            pump.interrupt();
+            process.destroy();
+        }
+    }
+
+    /**
+     * Passes everything on to the stdin of the process, but does not close it, because the end of the contents still has
+     * to be signalled after the base64 encoder has been flushed.
+     */
+    private static class UnclosableOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        UnclosableOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SshStreamingCommandOutputStream.class);
+
+}
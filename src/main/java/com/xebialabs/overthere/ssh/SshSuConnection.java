@@ -49,6 +49,8 @@ import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_PRESERVE_ATTRI
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_PRESERVE_ATTRIBUTES_ON_COPY_TO_TEMP_FILE_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_QUOTE_COMMAND;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_QUOTE_COMMAND_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_STREAMING_FILE_TRANSFER;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_STREAMING_FILE_TRANSFER_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_TEMP_MKDIRS_COMMAND;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_TEMP_MKDIRS_COMMAND_DEFAULT;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SU_TEMP_MKDIR_COMMAND;
@@ -72,6 +74,7 @@ class SshSuConnection extends SshElevatedUserConnection {
         preserveAttributesOnCopyFromTempFile = options.getBoolean(SU_PRESERVE_ATTRIBUTES_ON_COPY_FROM_TEMP_FILE, SU_PRESERVE_ATTRIBUTES_ON_COPY_FROM_TEMP_FILE_DEFAULT);
         preserveAttributesOnCopyToTempFile = options.getBoolean(SU_PRESERVE_ATTRIBUTES_ON_COPY_TO_TEMP_FILE, SU_PRESERVE_ATTRIBUTES_ON_COPY_TO_TEMP_FILE_DEFAULT);
         overrideUmask = options.getBoolean(SU_OVERRIDE_UMASK, SU_OVERRIDE_UMASK_DEFAULT);
+        streamingFileTransfer = options.getBoolean(SU_STREAMING_FILE_TRANSFER, SU_STREAMING_FILE_TRANSFER_DEFAULT);
 
         copyFromTempFileCommand = options.get(SU_COPY_FROM_TEMP_FILE_COMMAND, preserveAttributesOnCopyFromTempFile ? SU_COPY_FROM_TEMP_FILE_COMMAND_DEFAULT_PRESERVE_ATTRIBUTES : SU_COPY_FROM_TEMP_FILE_COMMAND_DEFAULT_NO_PRESERVE_ATTRIBUTES);
         copyToTempFileCommand = options.get(SU_COPY_TO_TEMP_FILE_COMMAND, preserveAttributesOnCopyToTempFile ? SU_COPY_TO_TEMP_FILE_COMMAND_DEFAULT_PRESERVE_ATTRIBUTES : SU_COPY_TO_TEMP_FILE_COMMAND_DEFAULT_NO_PRESERVE_ATTRIBUTES);
@@ -24,14 +24,17 @@ package com.xebialabs.overthere.ssh;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -45,8 +48,13 @@ import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.OverthereProcess;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.spi.OverthereRuntime;
+import com.xebialabs.overthere.spi.SocketFactoryMapper;
 
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Message;
+import net.schmizz.sshj.common.SSHPacket;
+import net.schmizz.sshj.connection.channel.Channel;
 import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
 import net.schmizz.sshj.connection.channel.direct.Session;
@@ -54,9 +62,13 @@ import net.schmizz.sshj.transport.TransportException;
 
 import javax.net.SocketFactory;
 
+import static com.xebialabs.overthere.metrics.OverthereOperation.CHANNEL_OPEN;
+import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
 import static com.xebialabs.overthere.util.OverthereUtils.checkState;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PORT_ALLOCATION_RANGE_START;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PORT_ALLOCATION_RANGE_START_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.TUNNEL_DIRECT_CHANNELS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.TUNNEL_DIRECT_CHANNELS_DEFAULT;
 import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
 import static java.lang.String.format;
 import static java.net.InetSocketAddress.createUnresolved;
@@ -64,7 +76,7 @@ import static java.net.InetSocketAddress.createUnresolved;
 /**
  * A connection to a 'jump station' host using SSH w/ local port forwards.
  */
-public class SshTunnelConnection extends SshConnection implements AddressPortMapper {
+public class SshTunnelConnection extends SshConnection implements AddressPortMapper, SocketFactoryMapper {
 
     private static final AtomicReference<TunnelPortManager> PORT_MANAGER = new AtomicReference<TunnelPortManager>(new TunnelPortManager());
 
@@ -74,13 +86,18 @@ public class SshTunnelConnection extends SshConnection implements AddressPortMap
 
     private List<PortForwarder> portForwarders = new ArrayList<PortForwarder>();
 
+    private Map<InetSocketAddress, ServerSocket> unforwardedSockets = new HashMap<InetSocketAddress, ServerSocket>();
+
     private int startPortRange;
 
+    private boolean directChannels;
+
     private final ReentrantLock lock = new ReentrantLock();
 
     public SshTunnelConnection(final String protocol, final ConnectionOptions options, final AddressPortMapper mapper) {
         super(protocol, options, mapper);
         this.startPortRange = options.getInteger(PORT_ALLOCATION_RANGE_START, PORT_ALLOCATION_RANGE_START_DEFAULT);
+        this.directChannels = options.getBoolean(TUNNEL_DIRECT_CHANNELS, TUNNEL_DIRECT_CHANNELS_DEFAULT);
     }
 
     @Override
@@ -95,6 +112,12 @@ public class SshTunnelConnection extends SshConnection implements AddressPortMap
         for (PortForwarder portForwarder : portForwarders) {
             closeQuietly(portForwarder);
         }
+        for (ServerSocket serverSocket : unforwardedSockets.values()) {
+            closeQuietly(serverSocket);
+            if (startPortRange > 0) {
+                PORT_MANAGER.get().release(serverSocket.getLocalPort());
+            }
+        }
 
         super.doClose();
     }
@@ -103,36 +126,161 @@ public class SshTunnelConnection extends SshConnection implements AddressPortMap
     public InetSocketAddress map(InetSocketAddress address) {
         lock.lock();
         try {
-            if (localPortForwards.containsKey(address)) {
-                return localPortForwards.get(address);
+            InetSocketAddress localAddress = reserveLocalPort(address);
+            ServerSocket serverSocket = unforwardedSockets.remove(address);
+            if (serverSocket != null) {
+                portForwarders.add(startForwarder(address, serverSocket));
             }
+            return localAddress;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            ServerSocket serverSocket = PORT_MANAGER.get().bindToNextFreePort(startPortRange);
-            portForwarders.add(startForwarder(address, serverSocket));
+    /**
+     * Maps an address to a local port without starting a local port forward for it, if
+     * {@link SshConnectionBuilder#TUNNEL_DIRECT_CHANNELS tunnelDirectChannels} is enabled: the sockets of the
+     * {@link #socketFactory() socket factory} open a <code>direct-tcpip</code> channel instead. The port is bound, so
+     * that it is not handed out twice, but connections to it are only accepted once {@link #map(InetSocketAddress)} has
+     * been invoked for the address too.
+     */
+    @Override
+    public InetSocketAddress mapForSocketFactory(InetSocketAddress address) {
+        if (!directChannels) {
+            return map(address);
+        }
 
-            InetSocketAddress localAddress = createUnresolved("localhost", serverSocket.getLocalPort());
-            localPortForwards.put(address, localAddress);
-            return localAddress;
+        lock.lock();
+        try {
+            return reserveLocalPort(address);
         } finally {
             lock.unlock();
         }
     }
 
+    private InetSocketAddress reserveLocalPort(InetSocketAddress address) {
+        InetSocketAddress localAddress = localPortForwards.get(address);
+        if (localAddress == null) {
+            ServerSocket serverSocket = PORT_MANAGER.get().bindToNextFreePort(startPortRange);
+            localAddress = createUnresolved("localhost", serverSocket.getLocalPort());
+            localPortForwards.put(address, localAddress);
+            unforwardedSockets.put(address, serverSocket);
+        }
+        return localAddress;
+    }
+
+    /**
+     * Returns a factory for sockets that connect through the tunnel. If
+     * {@link SshConnectionBuilder#TUNNEL_DIRECT_CHANNELS tunnelDirectChannels} is enabled, a socket connected to an
+     * address returned by {@link #map(InetSocketAddress)} opens a <code>direct-tcpip</code> channel to the original
+     * address, bypassing the local port forward. Clients that do not use this factory still go through the local port
+     * forward, clients that do can map their address with {@link #mapForSocketFactory(InetSocketAddress)} so that no
+     * local port forward is started for it.
+     */
     @Override
     public SocketFactory socketFactory() {
-        return SocketFactory.getDefault();
+        if (!directChannels) {
+            return SocketFactory.getDefault();
+        }
+
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                return new DirectChannelSocket();
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return connected(createUnresolved(host, port));
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+                return connected(createUnresolved(host, port));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return connected(new InetSocketAddress(host, port));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+                return connected(new InetSocketAddress(address, port));
+            }
+
+            private Socket connected(InetSocketAddress endpoint) throws IOException {
+                Socket socket = createSocket();
+                socket.connect(endpoint);
+                return socket;
+            }
+        };
+    }
+
+    /**
+     * Returns the address that was mapped to a local port forward, or the address itself if it is not one of the local
+     * port forwards of this tunnel.
+     */
+    InetSocketAddress unmap(InetSocketAddress endpoint) {
+        if (isLoopback(endpoint)) {
+            lock.lock();
+            try {
+                for (Map.Entry<InetSocketAddress, InetSocketAddress> forward : localPortForwards.entrySet()) {
+                    if (forward.getValue().getPort() == endpoint.getPort()) {
+                        return forward.getKey();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return endpoint;
+    }
+
+    private static boolean isLoopback(InetSocketAddress address) {
+        if (address.getAddress() != null) {
+            return address.getAddress().isLoopbackAddress();
+        }
+        return "localhost".equalsIgnoreCase(address.getHostString());
+    }
+
+    private class DirectChannelSocket extends SshChannelSocket {
+
+        @Override
+        protected Channel openChannel(InetSocketAddress endpoint) throws IOException {
+            InetSocketAddress remoteAddress = unmap(endpoint);
+            logger.debug("Opening direct-tcpip channel to {} for {}", remoteAddress, endpoint);
+            LocalPortForwarder.Parameters params = new LocalPortForwarder.Parameters("127.0.0.1", 0,
+                    remoteAddress.getHostString(), remoteAddress.getPort());
+
+            long start = System.nanoTime();
+            boolean successful = false;
+            try {
+                LocalPortForwarder.DirectTCPIPChannel channel = new LocalPortForwarder.DirectTCPIPChannel(getSshClient().getConnection(), null, params);
+                channel.open();
+                successful = true;
+                return channel;
+            } finally {
+                recordOperation(CHANNEL_OPEN, start, successful);
+            }
+        }
+
+        @Override
+        protected void sendEof(Channel channel) throws IOException {
+            getSshClient().getTransport().write(new SSHPacket(Message.CHANNEL_EOF).putUInt32(channel.getRecipient()));
+        }
     }
 
     private PortForwarder startForwarder(InetSocketAddress remoteAddress, ServerSocket serverSocket) {
-        PortForwarder forwarderThread = new PortForwarder(sshClient, remoteAddress, serverSocket);
-        logger.info("Starting {}", forwarderThread.getName());
-        forwarderThread.start();
+        PortForwarder forwarder = new PortForwarder(sshClient, remoteAddress, serverSocket, startPortRange > 0);
+        logger.info("Starting {}", forwarder.getName());
+        forwarder.start();
         try {
-            forwarderThread.latch.await();
+            forwarder.latch.await();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
-        return forwarderThread;
+        return forwarder;
     }
 
     @Override
@@ -170,24 +318,36 @@ public class SshTunnelConnection extends SshConnection implements AddressPortMap
         throw new UnsupportedOperationException("Cannot execute a command on the tunnel.");
     }
 
-    private static class PortForwarder extends Thread implements Closeable {
+    private static class PortForwarder implements Runnable, Closeable {
+        private final String name;
         private final SSHClient sshClient;
         private final InetSocketAddress remoteAddress;
         private final ServerSocket localSocket;
+        private final boolean claimedPort;
         private CountDownLatch latch = new CountDownLatch(1);
         private LocalPortForwarder forwarder;
+        private OverthereRuntime.Pump pump;
 
-        public PortForwarder(SSHClient sshClient, InetSocketAddress remoteAddress, ServerSocket localSocket) {
-            super(buildName(remoteAddress, localSocket.getLocalPort()));
+        public PortForwarder(SSHClient sshClient, InetSocketAddress remoteAddress, ServerSocket localSocket, boolean claimedPort) {
+            this.name = buildName(remoteAddress, localSocket.getLocalPort());
             this.sshClient = sshClient;
             this.remoteAddress = remoteAddress;
             this.localSocket = localSocket;
+            this.claimedPort = claimedPort;
         }
 
         private static String buildName(InetSocketAddress remoteAddress, Integer localPort) {
             return format("SSH local port forward thread %d:%s", localPort, remoteAddress.toString());
         }
 
+        public String getName() {
+            return name;
+        }
+
+        public void start() {
+            pump = OverthereRuntime.start(name, this);
+        }
+
         @Override
         public void run() {
             LocalPortForwarder.Parameters params = new LocalPortForwarder.Parameters("localhost", localSocket.getLocalPort(),
@@ -203,47 +363,85 @@ public class SshTunnelConnection extends SshConnection implements AddressPortMap
 
         @Override
         public void close() throws IOException {
-            forwarder.close();
-            localSocket.close();
+            try {
+                forwarder.close();
+                localSocket.close();
+            } finally {
+                if (claimedPort) {
+                    PORT_MANAGER.get().release(localSocket.getLocalPort());
+                }
+            }
 
             try {
-                this.join();
+                pump.join();
             } catch (InterruptedException e) {
                 // OK.
             }
         }
     }
 
+    /**
+     * Hands out server sockets for local port forwards. If the range starts at <code>0</code>, the operating system
+     * picks an ephemeral port. Otherwise the ports in the range that were handed out by this JVM are kept in a bitmap, so
+     * that concurrent tunnels can claim ports without a lock and a port is not handed out twice on platforms where a
+     * bound port still seems to be free.
+     */
     static class TunnelPortManager {
-        private AtomicInteger lastBoundPort = new AtomicInteger(0);
-        private ReentrantLock lock = new ReentrantLock();
+        private final AtomicLongArray claimedPorts = new AtomicLongArray((MAX_PORT >> 6) + 1);
+        private final AtomicInteger cursor = new AtomicInteger(0);
 
         ServerSocket bindToNextFreePort(int startFrom) {
-            lock.lock();
-            try {
-                int firstPort = Math.max(startFrom, lastBoundPort.get() + 1);
-                int port = firstPort;
-                for (; ; ) {
-                    logger.trace("Trying to bind to port {}", port);
-                    ServerSocket socket = tryBind(port);
-                    if (socket != null) {
-                        logger.debug("Successfully bound to port {}.", port);
-                        lastBoundPort.set(port);
-                        return socket;
-                    }
+            if (startFrom <= 0) {
+                ServerSocket socket = tryBind(0);
+                if (socket == null) {
+                    throw new IllegalStateException("Could not bind to an ephemeral port");
+                }
+                logger.debug("Successfully bound to ephemeral port {}.", socket.getLocalPort());
+                return socket;
+            }
 
-                    if (port == MAX_PORT) {
-                        port = startFrom;
-                    } else {
-                        port++;
-                    }
+            checkArgument(startFrom <= MAX_PORT, "Port allocation range start %d is larger than %d", startFrom, MAX_PORT);
+            int span = MAX_PORT - startFrom + 1;
+            for (int attempt = 0; attempt < span; attempt++) {
+                int port = startFrom + (cursor.getAndIncrement() & Integer.MAX_VALUE) % span;
+                if (!claim(port)) {
+                    continue;
+                }
 
-                    if (port == firstPort) {
-                        throw new IllegalStateException(format("Could not find a single free port in the range [%s-%s]...", startFrom, MAX_PORT));
-                    }
+                logger.trace("Trying to bind to port {}", port);
+                ServerSocket socket = tryBind(port);
+                if (socket != null) {
+                    logger.debug("Successfully bound to port {}.", port);
+                    return socket;
+                }
+                release(port);
+            }
+            throw new IllegalStateException(format("Could not find a single free port in the range [%s-%s]...", startFrom, MAX_PORT));
+        }
+
+        void release(int port) {
+            if (port <= 0 || port > MAX_PORT) {
+                return;
+            }
+            long bit = 1L << (port & 63);
+            for (; ; ) {
+                long bits = claimedPorts.get(port >> 6);
+                if (claimedPorts.compareAndSet(port >> 6, bits, bits & ~bit)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean claim(int port) {
+            long bit = 1L << (port & 63);
+            for (; ; ) {
+                long bits = claimedPorts.get(port >> 6);
+                if ((bits & bit) != 0) {
+                    return false;
+                }
+                if (claimedPorts.compareAndSet(port >> 6, bits, bits | bit)) {
+                    return true;
                 }
-            } finally {
-                lock.unlock();
             }
         }
 
@@ -26,6 +26,7 @@ import com.xebialabs.overthere.*;
 import com.xebialabs.overthere.cifs.CifsConnectionType;
 import com.xebialabs.overthere.spi.ProcessConnection;
 import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.spi.OverthereRuntime;
 import org.apache.commons.net.telnet.InvalidTelnetOptionException;
 import org.apache.commons.net.telnet.TelnetClient;
 import org.apache.commons.net.telnet.WindowSizeOptionHandler;
@@ -41,6 +42,7 @@ import static com.xebialabs.overthere.cifs.ConnectionValidator.checkNotNewStyleW
 import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
 import static com.xebialabs.overthere.util.OverthereUtils.checkNotNull;
 import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static com.xebialabs.overthere.util.OverthereUtils.mapForSocketFactory;
 import static java.lang.String.format;
 import static java.net.InetSocketAddress.createUnresolved;
 /**
@@ -77,7 +79,7 @@ public class TelnetConnection implements ProcessConnection {
     public TelnetConnection(ConnectionOptions options, AddressPortMapper mapper, OverthereFile workingDirectory) {
         String unmappedAddress = options.get(ADDRESS);
         int unmappedPort = options.get(PORT, connectionType.getDefaultPort(options));
-        InetSocketAddress addressPort = mapper.map(createUnresolved(unmappedAddress, unmappedPort));
+        InetSocketAddress addressPort = mapForSocketFactory(mapper, createUnresolved(unmappedAddress, unmappedPort));
 
         this.os = options.getEnum(OPERATING_SYSTEM, OperatingSystemFamily.class);
         this.connectionTimeoutMillis = options.getInteger(CONNECTION_TIMEOUT_MILLIS, CONNECTION_TIMEOUT_MILLIS_DEFAULT);
@@ -120,7 +122,7 @@ public class TelnetConnection implements ProcessConnection {
             final int[] exitValue = new int[1];
             exitValue[0] = -1;
 
-            final Thread outputReaderThread = new Thread("Telnet output reader") {
+            final OverthereRuntime.Pump outputReaderPump = OverthereRuntime.start("Telnet output reader", new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -172,9 +174,7 @@ public class TelnetConnection implements ProcessConnection {
                         closeQuietly(toCallersStdout);
                     }
                 }
-            };
-            outputReaderThread.setDaemon(true);
-            outputReaderThread.start();
+            });
 
             return new OverthereProcess() {
                 @Override
@@ -200,7 +200,7 @@ public class TelnetConnection implements ProcessConnection {
 
                     try {
                         try {
-                            outputReaderThread.join();
+                            outputReaderPump.join();
                         } finally {
                             disconnect();
                         }
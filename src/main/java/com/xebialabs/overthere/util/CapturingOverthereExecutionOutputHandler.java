@@ -22,7 +22,7 @@
  */
 package com.xebialabs.overthere.util;
 
-import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereExecutionOutputBulkHandler;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -34,7 +34,7 @@ import static java.util.Collections.unmodifiableList;
 /**
  * An implementation of the {@link com.xebialabs.overthere.OverthereExecutionOutputHandler} that captures the output in variables.
  */
-public class CapturingOverthereExecutionOutputHandler implements OverthereExecutionOutputHandler {
+public class CapturingOverthereExecutionOutputHandler implements OverthereExecutionOutputBulkHandler {
 
     private List<String> outputLines = Collections.synchronizedList(new ArrayList<String>());
 
@@ -46,6 +46,11 @@ public class CapturingOverthereExecutionOutputHandler implements OverthereExecut
         // no-op
     }
 
+    @Override
+    public void handleChars(final char[] chars, final int offset, final int length) {
+        // no-op
+    }
+
     @Override
     public void handleLine(final String line) {
         outputLines.add(line);
@@ -24,7 +24,7 @@ package com.xebialabs.overthere.util;
 
 import java.io.PrintStream;
 
-import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereExecutionOutputBulkHandler;
 
 import static java.lang.System.err;
 import static java.lang.System.out;
@@ -33,7 +33,7 @@ import static java.lang.System.out;
  * Implementation of the {@link com.xebialabs.overthere.OverthereExecutionOutputHandler} interface that prints the output to the console (either
  * {@link System#out} or {@link System#err}).
  */
-public class ConsoleOverthereExecutionOutputHandler implements OverthereExecutionOutputHandler {
+public class ConsoleOverthereExecutionOutputHandler implements OverthereExecutionOutputBulkHandler {
 
     private PrintStream stream;
 
@@ -46,6 +46,11 @@ public class ConsoleOverthereExecutionOutputHandler implements OverthereExecutio
         // no-op
     }
 
+    @Override
+    public void handleChars(final char[] chars, final int offset, final int length) {
+        // no-op
+    }
+
     @Override
     public void handleLine(final String line) {
         stream.println(line);
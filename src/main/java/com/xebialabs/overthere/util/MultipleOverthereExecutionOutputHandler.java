@@ -22,13 +22,14 @@
  */
 package com.xebialabs.overthere.util;
 
+import com.xebialabs.overthere.OverthereExecutionOutputBulkHandler;
 import com.xebialabs.overthere.OverthereExecutionOutputHandler;
 
 /**
  * Implementation of the {@link com.xebialabs.overthere.OverthereExecutionOutputHandler} interface that sends the output to one or more other
  * {@link com.xebialabs.overthere.OverthereProcessOutputHandler handlers}.
  */
-public class MultipleOverthereExecutionOutputHandler implements OverthereExecutionOutputHandler {
+public class MultipleOverthereExecutionOutputHandler implements OverthereExecutionOutputBulkHandler {
 
     private final OverthereExecutionOutputHandler[] handlers;
 
@@ -50,6 +51,19 @@ public class MultipleOverthereExecutionOutputHandler implements OverthereExecuti
         }
     }
 
+    @Override
+    public void handleChars(final char[] chars, final int offset, final int length) {
+        for (OverthereExecutionOutputHandler h : handlers) {
+            if (h instanceof OverthereExecutionOutputBulkHandler) {
+                ((OverthereExecutionOutputBulkHandler) h).handleChars(chars, offset, length);
+            } else {
+                for (int i = offset; i < offset + length; i++) {
+                    h.handleChar(chars[i]);
+                }
+            }
+        }
+    }
+
     /**
      * Creates a {@link com.xebialabs.overthere.util.MultipleOverthereExecutionOutputHandler}.
      *
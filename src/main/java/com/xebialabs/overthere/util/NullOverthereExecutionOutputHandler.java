@@ -22,9 +22,9 @@
  */
 package com.xebialabs.overthere.util;
 
-import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereExecutionOutputBulkHandler;
 
-public class NullOverthereExecutionOutputHandler implements OverthereExecutionOutputHandler {
+public class NullOverthereExecutionOutputHandler implements OverthereExecutionOutputBulkHandler {
 
     private NullOverthereExecutionOutputHandler() {
     }
@@ -34,6 +34,11 @@ public class NullOverthereExecutionOutputHandler implements OverthereExecutionOu
         // no-op
     }
 
+    @Override
+    public void handleChars(final char[] chars, final int offset, final int length) {
+        // no-op
+    }
+
     @Override
     public void handleLine(final String line) {
         // no-op
@@ -24,6 +24,7 @@ package com.xebialabs.overthere.util;
 
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.TarReadable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -114,13 +115,30 @@ public final class OverthereFileCopier extends OverthereFileDirectoryWalker {
     }
 
     /**
-     * Copies a directory recursively.
+     * Copies a directory recursively. If the source directory can send its contents as a {@link TarReadable tar archive},
+     * the archive is extracted into the destination directory instead of reading the files one by one.
      *
      * @param srcDir the source directory. Must exist and must not be a directory.
      * @param dstDir the destination directory. May exists but must a directory. Its parent directory must exist.
      * @throws RuntimeIOException if an I/O error occurred
      */
     private static void copyDirectory(OverthereFile srcDir, OverthereFile dstDir) throws RuntimeIOException {
+        if (srcDir instanceof TarReadable) {
+            InputStream tar = ((TarReadable) srcDir).getTarInputStream();
+            if (tar != null) {
+                logger.debug("Copying directory {} to {} as a tar archive", srcDir, dstDir);
+                try {
+                    OverthereFileTarArchiver.extract(tar, dstDir);
+                    tar.close();
+                } catch (IOException exc) {
+                    throw new RuntimeIOException("Cannot copy " + srcDir + " to " + dstDir, exc);
+                } finally {
+                    closeQuietly(tar);
+                }
+                return;
+            }
+        }
+
         OverthereFileCopier dirCopier = new OverthereFileCopier(srcDir, dstDir);
         dirCopier.startCopy();
     }
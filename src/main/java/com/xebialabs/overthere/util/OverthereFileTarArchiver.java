@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.local.LocalFile;
+
+import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static com.xebialabs.overthere.util.OverthereUtils.write;
+import static java.lang.String.format;
+
+/**
+ * Converts directory trees of {@link OverthereFile}s to and from tar archives, one entry at a time, so that a tree can
+ * be sent over a single stream without holding the archive in memory or on disk.
+ */
+public final class OverthereFileTarArchiver {
+
+    private static final int DIRECTORY_MODE = 0755;
+
+    private static final int FILE_MODE = 0644;
+
+    private static final int EXECUTABLE_MODE = 0755;
+
+    private static final int OWNER_EXECUTE = 0100;
+
+    private static final int BLOCK_SIZE = 10240;
+
+    private static final int MAX_DEPTH = 128;
+
+    private OverthereFileTarArchiver() {
+    }
+
+    /**
+     * Writes a tar archive of the contents of a directory. The entries are relative to the directory. Files that can be
+     * executed get mode <code>0755</code>, other files <code>0644</code>. The entries have no owner, so that a
+     * <code>tar</code> that extracts them as root does not hand the files to root or to a local user id. Symbolic links
+     * are followed; a link back to a directory that is being archived is rejected. The stream is not closed.
+     *
+     * @param srcDir the directory to archive.
+     * @param out the stream to write the archive to.
+     * @throws RuntimeIOException if the directory cannot be read or the archive cannot be written.
+     */
+    public static void archive(OverthereFile srcDir, OutputStream out) {
+        logger.debug("Archiving directory {}", srcDir);
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        try {
+            archiveChildren(srcDir, "", tar);
+            tar.finish();
+            tar.flush();
+        } catch (IOException exc) {
+            throw new RuntimeIOException(format("Cannot archive directory %s", srcDir), exc);
+        }
+    }
+
+    private static void archiveChildren(OverthereFile dir, String prefix, TarArchiveOutputStream tar) throws IOException {
+        archiveChildren(dir, prefix, tar, new HashSet<String>(), 0);
+    }
+
+    private static void archiveChildren(OverthereFile dir, String prefix, TarArchiveOutputStream tar, Set<String> ancestors, int depth) throws IOException {
+        String id = identify(dir);
+        if (depth > MAX_DEPTH || !ancestors.add(id)) {
+            throw new RuntimeIOException(format("Cannot archive directory %s, it is nested more than %d levels deep or is a symbolic link to one of its parents", dir, MAX_DEPTH));
+        }
+        for (OverthereFile file : dir.listFiles()) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                TarArchiveEntry entry = newEntry(name + "/", file);
+                entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE & ~0777 | DIRECTORY_MODE);
+                tar.putArchiveEntry(entry);
+                tar.closeArchiveEntry();
+                archiveChildren(file, name + "/", tar, ancestors, depth + 1);
+            } else {
+                TarArchiveEntry entry = newEntry(name, file);
+                entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~0777 | (file.canExecute() ? EXECUTABLE_MODE : FILE_MODE));
+                entry.setSize(file.length());
+                tar.putArchiveEntry(entry);
+                InputStream in = file.getInputStream();
+                try {
+                    write(in, tar);
+                } finally {
+                    closeQuietly(in);
+                }
+                tar.closeArchiveEntry();
+            }
+        }
+        ancestors.remove(id);
+    }
+
+    /**
+     * Creates an entry without the local user name that {@link TarArchiveEntry} fills in, and with the modification time
+     * of the file if it is known.
+     */
+    private static TarArchiveEntry newEntry(String name, OverthereFile file) {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setUserName("");
+        entry.setGroupName("");
+        try {
+            entry.setModTime(file.lastModified());
+        } catch (UnsupportedOperationException ignored) {
+            // Leave the modification time of the entry at the time it was created
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the real path of a local directory, so that a symbolic link back to one of its parents is recognized. Other
+     * files can only be told apart by their path, the depth limit stops a loop through links between them.
+     */
+    private static String identify(OverthereFile dir) {
+        if (dir instanceof LocalFile) {
+            try {
+                return ((LocalFile) dir).getFile().getCanonicalPath();
+            } catch (IOException ignored) {
+                // Fall back to the path
+            }
+        }
+        return dir.getPath();
+    }
+
+    /**
+     * Extracts a tar archive into a directory, which is created if it does not exist. Directories and regular files are
+     * extracted, hard links are extracted as copies of the file they link to and other entries are skipped. Entries that
+     * would end up outside the directory are rejected. The stream is read to its end, but not closed.
+     *
+     * @param in the stream to read the archive from.
+     * @param dstDir the directory to extract the archive into.
+     * @throws RuntimeIOException if the archive cannot be read or a file cannot be written.
+     */
+    public static void extract(InputStream in, OverthereFile dstDir) {
+        logger.debug("Extracting archive into directory {}", dstDir);
+        if (dstDir.exists()) {
+            if (!dstDir.isDirectory()) {
+                throw new RuntimeIOException(format("Destination directory %s exists but is not a directory", dstDir));
+            }
+        } else {
+            dstDir.mkdir();
+        }
+
+        TarArchiveInputStream tar = new TarArchiveInputStream(in);
+        try {
+            for (TarArchiveEntry entry; (entry = tar.getNextTarEntry()) != null; ) {
+                OverthereFile target = resolve(dstDir, entry.getName());
+                if (target == null) {
+                    continue;
+                }
+
+                if (entry.isDirectory()) {
+                    if (!target.exists()) {
+                        target.mkdirs();
+                    }
+                } else if (entry.isLink()) {
+                    OverthereFile linkTarget = resolve(dstDir, entry.getLinkName());
+                    if (linkTarget == null) {
+                        throw new RuntimeIOException(format("Cannot extract hard link %s to %s into %s", entry.getName(), entry.getLinkName(), dstDir));
+                    }
+                    linkTarget.copyTo(target);
+                } else if (isRegularFile(entry)) {
+                    OutputStream out = target.getOutputStream();
+                    try {
+                        write(tar, out);
+                    } finally {
+                        out.close();
+                    }
+                    if ((entry.getMode() & OWNER_EXECUTE) != 0) {
+                        target.setExecutable(true);
+                    }
+                } else {
+                    logger.warn("Skipping entry {} of archive, only directories, files and hard links are extracted into {}", entry.getName(), dstDir);
+                }
+            }
+
+            // Read the padding after the end of the archive, so that the source can report errors when it reaches its end
+            byte[] buf = new byte[BLOCK_SIZE];
+            while (in.read(buf) != -1) {
+                // Discard the padding
+            }
+        } catch (IOException exc) {
+            throw new RuntimeIOException(format("Cannot extract archive into directory %s", dstDir), exc);
+        }
+    }
+
+    /**
+     * Returns whether an entry is a regular file. {@link TarArchiveEntry#isFile()} is also true for links and special
+     * files.
+     */
+    private static boolean isRegularFile(TarArchiveEntry entry) {
+        return entry.isFile() && !entry.isSymbolicLink() && !entry.isCharacterDevice() && !entry.isBlockDevice() && !entry.isFIFO();
+    }
+
+    /**
+     * Returns the file for an entry name, or <code>null</code> if the name refers to the directory itself.
+     */
+    private static OverthereFile resolve(OverthereFile dir, String name) {
+        OverthereFile file = dir;
+        if (name.startsWith("/")) {
+            throw new RuntimeIOException(format("Cannot extract absolute path %s into %s", name, dir));
+        }
+        for (String component : name.split("/")) {
+            if (component.isEmpty() || component.equals(".")) {
+                continue;
+            }
+            if (component.equals("..")) {
+                throw new RuntimeIOException(format("Cannot extract path %s outside of %s", name, dir));
+            }
+            file = file.getFile(component);
+        }
+        return file == dir ? null : file;
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(OverthereFileTarArchiver.class);
+
+}
@@ -25,10 +25,13 @@ package com.xebialabs.overthere.util;
 import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.spi.SocketFactoryMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
@@ -44,6 +47,21 @@ import static java.lang.String.format;
 public class OverthereUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(OverthereUtils.class);
+    /**
+     * Maps an address for a client that connects to it with sockets from {@link AddressPortMapper#socketFactory()} only.
+     *
+     * @param mapper  the mapper.
+     * @param address the address to map.
+     * @return the address to connect to.
+     * @see SocketFactoryMapper
+     */
+    public static InetSocketAddress mapForSocketFactory(AddressPortMapper mapper, InetSocketAddress address) {
+        if (mapper instanceof SocketFactoryMapper) {
+            return ((SocketFactoryMapper) mapper).mapForSocketFactory(address);
+        }
+        return mapper.map(address);
+    }
+
     /**
      * Reads the contents of an {@link OverthereFile} into a byte array.
      *
@@ -28,6 +28,7 @@ import com.xebialabs.overthere.cifs.WinrmHttpsCertificateTrustStrategy;
 import com.xebialabs.overthere.cifs.WinrmHttpsHostnameVerificationStrategy;
 import com.xebialabs.overthere.spi.ProcessConnection;
 import com.xebialabs.overthere.spi.AddressPortMapper;
+import com.xebialabs.overthere.spi.OverthereRuntime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +44,7 @@ import static com.xebialabs.overthere.cifs.ConnectionValidator.checkNotOldStyleW
 import static com.xebialabs.overthere.util.OverthereUtils.checkArgument;
 import static com.xebialabs.overthere.util.OverthereUtils.checkNotNull;
 import static com.xebialabs.overthere.util.OverthereUtils.closeQuietly;
+import static com.xebialabs.overthere.util.OverthereUtils.mapForSocketFactory;
 import static java.lang.String.format;
 import static java.net.InetSocketAddress.createUnresolved;
 
@@ -78,7 +80,7 @@ public class WinRmConnection implements ProcessConnection {
 
         unmappedAddress = options.get(ADDRESS);
         unmappedPort = options.get(PORT, connectionType.getDefaultPort(options));
-        InetSocketAddress addressPort = mapper.map(createUnresolved(unmappedAddress, unmappedPort));
+        InetSocketAddress addressPort = mapForSocketFactory(mapper, createUnresolved(unmappedAddress, unmappedPort));
         this.address = addressPort.getHostName();
         this.port = addressPort.getPort();
         this.username = options.get(USERNAME);
@@ -115,7 +117,7 @@ public class WinRmConnection implements ProcessConnection {
             final String commandId = winRmClient.executeCommand(cmdString);
 
             final Exception inputReaderTheaException[] = new Exception[1];
-            final Thread inputReaderThead = new Thread(format("WinRM input reader for command [%s]", commandId)) {
+            OverthereRuntime.start(format("WinRM input reader for command [%s]", commandId), new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -137,12 +139,10 @@ public class WinRmConnection implements ProcessConnection {
                         closeQuietly(fromCallersStdin);
                     }
                 }
-            };
-            inputReaderThead.setDaemon(true);
-            inputReaderThead.start();
+            });
 
             final Exception outputReaderThreadException[] = new Exception[1];
-            final Thread outputReaderThread = new Thread(format("WinRM output reader for command [%s]", commandId)) {
+            final OverthereRuntime.Pump outputReaderPump = OverthereRuntime.start(format("WinRM output reader for command [%s]", commandId), new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -157,9 +157,7 @@ public class WinRmConnection implements ProcessConnection {
                         closeQuietly(toCallersStderr);
                     }
                 }
-            };
-            outputReaderThread.setDaemon(true);
-            outputReaderThread.start();
+            });
 
             return new OverthereProcess() {
                 boolean processTerminated = false;
@@ -187,7 +185,7 @@ public class WinRmConnection implements ProcessConnection {
 
                     try {
                         try {
-                            outputReaderThread.join();
+                            outputReaderPump.join();
                         } finally {
                             closeQuietly(callersStdin);
                             processTerminated = true;
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+import org.testng.annotations.Test;
+import nl.javadude.scannit.Configuration;
+import nl.javadude.scannit.Scannit;
+import nl.javadude.scannit.scanner.TypeAnnotationScanner;
+
+import com.xebialabs.overthere.spi.OverthereConnectionBuilder;
+import com.xebialabs.overthere.spi.ProtocolIndexProcessor;
+
+import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+
+public class ProtocolIndexTest {
+
+    @Test
+    public void shouldIndexSameProtocolsAsClasspathScan() {
+        Map<String, Class<? extends OverthereConnectionBuilder>> indexed = Overthere.loadProtocolIndex(getClass().getClassLoader());
+        Map<String, Class<? extends OverthereConnectionBuilder>> scanned = Overthere.scanProtocols(new Scannit(Configuration.config().scan("com.xebialabs").with(new TypeAnnotationScanner())));
+
+        assertThat(indexed, hasKey(LOCAL_PROTOCOL));
+        assertThat(indexed, hasKey(SSH_PROTOCOL));
+        assertThat(indexed, equalTo(scanned));
+    }
+
+    @Test
+    public void shouldScanClasspathForProtocolsThatAreNotIndexed() {
+        Map<String, Class<? extends OverthereConnectionBuilder>> registered = Overthere.protocols.get();
+        boolean scanned = Overthere.protocolsScanned;
+        try {
+            Map<String, Class<? extends OverthereConnectionBuilder>> incompleteIndex = new HashMap<String, Class<? extends OverthereConnectionBuilder>>();
+            incompleteIndex.put(LOCAL_PROTOCOL, registered.get(LOCAL_PROTOCOL));
+            Overthere.protocols.set(incompleteIndex);
+            Overthere.protocolsScanned = false;
+
+            assertThat(Overthere.findProtocol(SSH_PROTOCOL), notNullValue());
+            assertThat(Overthere.protocolsScanned, equalTo(true));
+            assertThat(Overthere.findProtocol("no-such-protocol"), nullValue());
+        } finally {
+            Overthere.protocols.set(registered);
+            Overthere.protocolsScanned = scanned;
+        }
+    }
+
+    @Test
+    public void shouldClaimProtocolAnnotation() {
+        TypeElement annotation = mock(TypeElement.class);
+        RoundEnvironment roundEnv = mock(RoundEnvironment.class);
+        assertThat(new ProtocolIndexProcessor().process(Collections.singleton(annotation), roundEnv), equalTo(true));
+    }
+
+    @Test
+    public void shouldIgnoreCommentsAndBlankLinesInIndex() throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader("# comment\n\n  com.example.FooConnectionBuilder  \n"));
+        assertThat(ProtocolIndexProcessor.readIndex(reader), contains("com.example.FooConnectionBuilder"));
+    }
+
+}
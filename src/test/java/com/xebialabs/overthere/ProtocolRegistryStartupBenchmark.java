@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere;
+
+import java.util.Map;
+import nl.javadude.scannit.Configuration;
+import nl.javadude.scannit.Scannit;
+import nl.javadude.scannit.scanner.TypeAnnotationScanner;
+
+import com.xebialabs.overthere.spi.OverthereConnectionBuilder;
+
+/**
+ * Compares the time it takes to discover the available protocols from the protocol index with the time it takes to
+ * scan the classpath for them. Run it from a fresh JVM, because the first iteration shows the cold start cost:
+ * <pre>
+ * java -cp &lt;test classpath&gt; com.xebialabs.overthere.ProtocolRegistryStartupBenchmark [iterations]
+ * </pre>
+ */
+public class ProtocolRegistryStartupBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        ClassLoader classLoader = ProtocolRegistryStartupBenchmark.class.getClassLoader();
+        // Initialize Overthere (and logging) up front so that it is not attributed to the first mode measured
+        Overthere.getConnectionPool();
+
+        long[] index = new long[iterations];
+        long[] scan = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            Map<String, Class<? extends OverthereConnectionBuilder>> indexed = Overthere.loadProtocolIndex(classLoader);
+            index[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Map<String, Class<? extends OverthereConnectionBuilder>> scanned = Overthere.scanProtocols(new Scannit(Configuration.config().scan("com.xebialabs").with(new TypeAnnotationScanner())));
+            scan[i] = System.nanoTime() - start;
+
+            if (!indexed.equals(scanned)) {
+                throw new IllegalStateException("Protocol index " + indexed + " differs from classpath scan " + scanned);
+            }
+        }
+
+        report("index", index);
+        report("scan", scan);
+    }
+
+    private static void report(String mode, long[] timings) {
+        long total = 0;
+        for (int i = 1; i < timings.length; i++) {
+            total += timings[i];
+        }
+        long warm = timings.length > 1 ? total / (timings.length - 1) : timings[0];
+        System.out.printf("%-6s cold: %8.3f ms, warm average: %8.3f ms%n", mode, timings[0] / 1e6, warm / 1e6);
+    }
+
+}
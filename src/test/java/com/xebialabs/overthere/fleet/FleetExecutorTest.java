@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.fleet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.RuntimeIOException;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FleetExecutorTest {
+
+    private static final CmdLine COMMAND = CmdLine.build("hostname");
+
+    private final ConcurrentMap<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, Integer> maxRunning = new ConcurrentHashMap<String, Integer>();
+    private final List<OverthereConnection> connections = new ArrayList<OverthereConnection>();
+    private FleetExecutor executor;
+
+    @BeforeMethod
+    public void setup() {
+        executor = new FleetExecutor(4, 4, 2) {
+            @Override
+            protected OverthereConnection connect(String protocol, ConnectionOptions options) {
+                String address = options.get(ADDRESS);
+                if (address.startsWith("unreachable")) {
+                    throw new RuntimeIOException("Cannot connect to " + address);
+                }
+                return mockConnection(address);
+            }
+        };
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        executor.close();
+    }
+
+    @Test
+    public void shouldReturnResultOfEveryHost() {
+        FleetExecution execution = executor.execute("ssh", hosts("host1", "host2", "host3"), COMMAND);
+
+        List<FleetResult> results = execution.awaitAll();
+        assertThat(results.size(), equalTo(3));
+        for (FleetResult result : results) {
+            assertThat(result.isSuccessful(), equalTo(true));
+            assertThat(result.getOutputLines(), contains((String) result.getOptions().get(ADDRESS)));
+        }
+        synchronized (connections) {
+            for (OverthereConnection connection : connections) {
+                verify(connection).close();
+            }
+        }
+    }
+
+    @Test
+    public void shouldReturnResultsAsTheyComplete() {
+        FleetExecution execution = executor.execute("ssh", hosts("host1", "host2"), COMMAND);
+
+        assertThat(execution.next(), instanceOf(FleetResult.class));
+        assertThat(execution.next(), instanceOf(FleetResult.class));
+        assertThat(execution.next(), nullValue());
+        assertThat(execution.isDone(), equalTo(true));
+    }
+
+    @Test
+    public void shouldRecordConnectionFailure() {
+        List<FleetResult> results = executor.execute("ssh", hosts("unreachable"), COMMAND).awaitAll();
+
+        assertThat(results.get(0).isSuccessful(), equalTo(false));
+        assertThat(results.get(0).getExitCode(), equalTo(-1));
+        assertThat(results.get(0).getException(), instanceOf(RuntimeIOException.class));
+    }
+
+    @Test
+    public void shouldNotExceedPerHostLimit() {
+        executor.execute("ssh", hosts("host1", "host1", "host1", "host1", "host1", "host1", "host2"), COMMAND).awaitAll();
+
+        assertThat(maxRunning.get("host1"), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void shouldConnectToOtherHostsWhileHostIsAtItsLimit() throws InterruptedException {
+        final CountDownLatch host1Connected = new CountDownLatch(1);
+        final CountDownLatch host2Connected = new CountDownLatch(1);
+        final CountDownLatch host1Done = new CountDownLatch(1);
+        FleetExecutor limited = new FleetExecutor(1, 1, 1) {
+            @Override
+            protected OverthereConnection connect(String protocol, ConnectionOptions options) {
+                String address = options.get(ADDRESS);
+                if (address.equals("host2")) {
+                    host2Connected.countDown();
+                    return mockConnection(address);
+                }
+                host1Connected.countDown();
+                return blockingConnection(host1Done);
+            }
+        };
+        try {
+            FleetExecution execution = limited.execute("ssh", hosts("host1", "host1", "host2"), COMMAND);
+
+            assertThat(host1Connected.await(5, TimeUnit.SECONDS), equalTo(true));
+            assertThat(host2Connected.await(5, TimeUnit.SECONDS), equalTo(true));
+            host1Done.countDown();
+            List<FleetResult> results = execution.awaitAll();
+            assertThat(results.size(), equalTo(3));
+            for (FleetResult result : results) {
+                assertThat(result.isSuccessful(), equalTo(true));
+            }
+        } finally {
+            host1Done.countDown();
+            limited.close();
+        }
+    }
+
+    @Test
+    public void shouldNotConnectToHostsAfterClose() throws InterruptedException {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        FleetExecutor closing = new FleetExecutor(1, 1, 1) {
+            @Override
+            protected OverthereConnection connect(String protocol, ConnectionOptions options) {
+                connecting.countDown();
+                try {
+                    closed.await();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                return mockConnection((String) options.get(ADDRESS));
+            }
+        };
+        FleetExecution execution = closing.execute("ssh", hosts("host1", "host2", "host3"), COMMAND);
+
+        assertThat(connecting.await(5, TimeUnit.SECONDS), equalTo(true));
+        closing.close();
+        closed.countDown();
+
+        List<FleetResult> results = execution.awaitAll();
+        assertThat(results.size(), equalTo(3));
+        int cancelled = 0;
+        for (FleetResult result : results) {
+            if (result.getException() instanceof CancellationException) {
+                cancelled++;
+            }
+        }
+        assertThat(cancelled, equalTo(2));
+    }
+
+    @Test
+    public void shouldRecordErrorsAndCompleteTheExecution() {
+        FleetExecutor failing = new FleetExecutor(1, 1, 1) {
+            @Override
+            protected OverthereConnection connect(String protocol, ConnectionOptions options) {
+                throw new NoClassDefFoundError("com/example/Missing");
+            }
+        };
+        try {
+            List<FleetResult> results = failing.execute("ssh", hosts("host1", "host2"), COMMAND).awaitAll();
+
+            assertThat(results.size(), equalTo(2));
+            assertThat(results.get(0).getException(), instanceOf(ExecutionException.class));
+            assertThat(results.get(0).getException().getCause(), instanceOf(NoClassDefFoundError.class));
+        } finally {
+            failing.close();
+        }
+    }
+
+    private OverthereConnection blockingConnection(final CountDownLatch done) {
+        OverthereConnection connection = mock(OverthereConnection.class);
+        when(connection.execute(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                done.await();
+                return 0;
+            }
+        });
+        return connection;
+    }
+
+    private List<ConnectionOptions> hosts(String... addresses) {
+        List<ConnectionOptions> hosts = new ArrayList<ConnectionOptions>();
+        for (String address : addresses) {
+            ConnectionOptions options = new ConnectionOptions();
+            options.set(ADDRESS, address);
+            hosts.add(options);
+        }
+        return hosts;
+    }
+
+    private OverthereConnection mockConnection(final String address) {
+        OverthereConnection connection = mock(OverthereConnection.class);
+        when(connection.execute(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                running.putIfAbsent(address, new AtomicInteger());
+                int current = running.get(address).incrementAndGet();
+                synchronized (maxRunning) {
+                    Integer max = maxRunning.get(address);
+                    maxRunning.put(address, max == null ? current : Math.max(max, current));
+                }
+                Thread.sleep(20);
+                running.get(address).decrementAndGet();
+                ((OverthereExecutionOutputHandler) invocation.getArguments()[0]).handleLine(address);
+                return 0;
+            }
+        });
+        synchronized (connections) {
+            connections.add(connection);
+        }
+        return connection;
+    }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.Overthere;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.TemporaryFolder;
+
+import static com.xebialabs.overthere.ConnectionOptions.METRICS_LISTENER;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.TEMPORARY_DIRECTORY_PATH;
+import static com.xebialabs.overthere.OperatingSystemFamily.getLocalHostOperatingSystemFamily;
+import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+import static com.xebialabs.overthere.metrics.OverthereOperation.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class InMemoryMetricsListenerTest {
+
+    private TemporaryFolder temp = new TemporaryFolder();
+    private InMemoryMetricsListener metrics;
+    private ConnectionOptions options;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        temp.create();
+        metrics = new InMemoryMetricsListener();
+        options = new ConnectionOptions();
+        options.set(OPERATING_SYSTEM, getLocalHostOperatingSystemFamily());
+        options.set(TEMPORARY_DIRECTORY_PATH, temp.getRoot().getPath());
+        options.set(METRICS_LISTENER, metrics);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        temp.delete();
+    }
+
+    @Test
+    public void shouldRecordConnectTransfersAndDisconnect() throws IOException {
+        OverthereConnection connection = Overthere.getConnection(LOCAL_PROTOCOL, options);
+        try {
+            OverthereFile file = connection.getTempFile("metrics.txt");
+            OutputStream os = file.getOutputStream();
+            try {
+                os.write(new byte[1000]);
+            } finally {
+                os.close();
+            }
+            InputStream is = file.getInputStream();
+            try {
+                while (is.read(new byte[128]) >= 0) {
+                    // read it all
+                }
+            } finally {
+                is.close();
+            }
+        } finally {
+            connection.close();
+        }
+
+        assertThat(metrics.getStats("localhost", CONNECT).getCount(), equalTo(1L));
+        assertThat(metrics.getStats("localhost", DISCONNECT).getCount(), equalTo(1L));
+        assertThat(metrics.getStats(WRITE).getCount(), equalTo(1L));
+        assertThat(metrics.getStats(WRITE).getBytes(), equalTo(1000L));
+        assertThat(metrics.getStats(READ).getBytes(), equalTo(1000L));
+    }
+
+    @Test
+    public void shouldKeepStatisticsPerHostAndOperation() {
+        metrics.operationCompleted("ssh", "host1", EXECUTE, 1000, true);
+        metrics.operationCompleted("ssh", "host1", EXECUTE, 3000, false);
+        metrics.operationCompleted("ssh", "host2", EXECUTE, 100000, true);
+        metrics.bytesTransferred("ssh", "host2", READ, 42);
+
+        InMemoryMetricsListener.Stats host1 = metrics.getStats("host1", EXECUTE);
+        assertThat(host1.getCount(), equalTo(2L));
+        assertThat(host1.getFailures(), equalTo(1L));
+        assertThat(host1.getMeanNanos(), equalTo(2000L));
+        assertThat(host1.getMaxNanos(), equalTo(3000L));
+
+        InMemoryMetricsListener.Stats all = metrics.getStats(EXECUTE);
+        assertThat(all.getCount(), equalTo(3L));
+        assertThat(all.getPercentileNanos(50), lessThanOrEqualTo(4095L));
+        assertThat(all.getPercentileNanos(100), equalTo(100000L));
+        assertThat(metrics.getStats("host2", READ).getBytes(), equalTo(42L));
+        assertThat(metrics.getStats("unknown", READ).getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void shouldUseGlobalListenerWhenNoneConfigured() {
+        ConnectionOptions plain = new ConnectionOptions(options);
+        plain.set(METRICS_LISTENER, null);
+        OverthereMetrics.setGlobalListener(metrics);
+        try {
+            Overthere.getConnection(LOCAL_PROTOCOL, plain).close();
+        } finally {
+            OverthereMetrics.setGlobalListener(null);
+        }
+
+        assertThat(metrics.getStats("localhost", CONNECT).getCount(), greaterThanOrEqualTo(1L));
+        assertThat(OverthereMetrics.getGlobalListener(), equalTo(OverthereMetrics.NO_OP));
+    }
+
+}
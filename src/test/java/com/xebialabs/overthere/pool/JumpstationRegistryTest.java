@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.pool;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.SocketFactory;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.spi.AddressPortMapper;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class JumpstationRegistryTest {
+
+    private List<FakeJumpstation> created;
+    private CountDownLatch createLatch;
+    private JumpstationRegistry registry;
+    private ConnectionOptions bastion;
+
+    @BeforeMethod
+    public void setup() {
+        created = new ArrayList<FakeJumpstation>();
+        createLatch = new CountDownLatch(0);
+        bastion = new ConnectionOptions();
+        bastion.set(ADDRESS, "bastion");
+        registry = new JumpstationRegistry(new JumpstationRegistry.JumpstationFactory() {
+            @Override
+            public AddressPortMapper create(String protocol, ConnectionOptions options) {
+                try {
+                    createLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if ("fail".equals(options.getOptional(ADDRESS))) {
+                    throw new RuntimeIOException("Cannot connect");
+                }
+                FakeJumpstation jumpstation = new FakeJumpstation();
+                synchronized (created) {
+                    created.add(jumpstation);
+                }
+                return jumpstation;
+            }
+        });
+    }
+
+    @Test
+    public void shouldShareJumpstationWithEqualOptions() {
+        AddressPortMapper first = registry.acquire("ssh-jumpstation", bastion);
+        AddressPortMapper second = registry.acquire("ssh-jumpstation", new ConnectionOptions(bastion));
+
+        first.map(createUnresolved());
+        second.map(createUnresolved());
+
+        assertThat(created.size(), equalTo(1));
+        assertThat(created.get(0).mapped.get(), equalTo(2));
+        assertThat(registry.getReferenceCount("ssh-jumpstation", bastion), equalTo(2));
+    }
+
+    @Test
+    public void shouldNotShareJumpstationWithDifferentOptions() {
+        ConnectionOptions otherBastion = new ConnectionOptions();
+        otherBastion.set(ADDRESS, "other-bastion");
+
+        registry.acquire("ssh-jumpstation", bastion);
+        registry.acquire("ssh-jumpstation", otherBastion);
+
+        assertThat(created.size(), equalTo(2));
+        assertThat(registry.getJumpstationCount(), equalTo(2));
+    }
+
+    @Test
+    public void shouldCloseJumpstationWhenLastHandleIsClosed() {
+        AddressPortMapper first = registry.acquire("ssh-jumpstation", bastion);
+        AddressPortMapper second = registry.acquire("ssh-jumpstation", bastion);
+
+        first.close();
+        first.close();
+        assertThat(created.get(0).closed.get(), equalTo(0));
+
+        second.close();
+        assertThat(created.get(0).closed.get(), equalTo(1));
+        assertThat(registry.getJumpstationCount(), equalTo(0));
+
+        registry.acquire("ssh-jumpstation", bastion);
+        assertThat(created.size(), equalTo(2));
+    }
+
+    @Test(expectedExceptions = RuntimeIOException.class)
+    public void shouldNotRegisterJumpstationThatCannotConnect() {
+        ConnectionOptions failing = new ConnectionOptions();
+        failing.set(ADDRESS, "fail");
+        try {
+            registry.acquire("ssh-jumpstation", failing);
+        } finally {
+            assertThat(registry.getJumpstationCount(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void shouldConnectOnceForConcurrentAcquires() throws Exception {
+        createLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<AddressPortMapper>> futures = new ArrayList<Future<AddressPortMapper>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<AddressPortMapper>() {
+                    @Override
+                    public AddressPortMapper call() {
+                        return registry.acquire("ssh-jumpstation", bastion);
+                    }
+                }));
+            }
+            Thread.sleep(100);
+            createLatch.countDown();
+            for (Future<AddressPortMapper> future : futures) {
+                future.get().close();
+            }
+
+            assertThat(created.size(), equalTo(1));
+            assertThat(created.get(0).closed.get(), equalTo(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static InetSocketAddress createUnresolved() {
+        return InetSocketAddress.createUnresolved("target", 22);
+    }
+
+    private static class FakeJumpstation implements AddressPortMapper {
+        final AtomicInteger mapped = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public InetSocketAddress map(InetSocketAddress address) {
+            mapped.incrementAndGet();
+            return address;
+        }
+
+        @Override
+        public SocketFactory socketFactory() {
+            return SocketFactory.getDefault();
+        }
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+
+}
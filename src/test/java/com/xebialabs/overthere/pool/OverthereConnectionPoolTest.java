@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.pool;
+
+import java.io.IOException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.Overthere;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.TemporaryFolder;
+
+import static com.xebialabs.overthere.ConnectionOptions.*;
+import static com.xebialabs.overthere.OperatingSystemFamily.getLocalHostOperatingSystemFamily;
+import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class OverthereConnectionPoolTest {
+
+    private TemporaryFolder temp = new TemporaryFolder();
+    private ConnectionOptions options;
+    private OverthereConnectionPool pool;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        temp.create();
+        options = new ConnectionOptions();
+        options.set(OPERATING_SYSTEM, getLocalHostOperatingSystemFamily());
+        options.set(TEMPORARY_DIRECTORY_PATH, temp.getRoot().getPath());
+        pool = new OverthereConnectionPool(new OverthereConnectionPool.ConnectionFactory() {
+            @Override
+            public OverthereConnection create(String protocol, ConnectionOptions options) {
+                return Overthere.getConnection(protocol, options);
+            }
+        });
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        pool.closeIdleConnections();
+        temp.delete();
+    }
+
+    @Test
+    public void shouldReuseReturnedConnection() {
+        PooledOverthereConnection first = (PooledOverthereConnection) pool.borrow(LOCAL_PROTOCOL, options);
+        OverthereConnection delegate = first.getDelegate();
+        first.close();
+
+        PooledOverthereConnection second = (PooledOverthereConnection) pool.borrow(LOCAL_PROTOCOL, options);
+        assertThat(second.getDelegate(), sameInstance(delegate));
+        assertThat(pool.getMisses(), equalTo(1L));
+        assertThat(pool.getHits(), equalTo(1L));
+        second.close();
+    }
+
+    @Test
+    public void shouldHandOutDistinctConnectionsWhileLeased() {
+        PooledOverthereConnection first = (PooledOverthereConnection) pool.borrow(LOCAL_PROTOCOL, options);
+        PooledOverthereConnection second = (PooledOverthereConnection) pool.borrow(LOCAL_PROTOCOL, options);
+        assertThat(second.getDelegate(), not(sameInstance(first.getDelegate())));
+        assertThat(pool.getLeasedCount(), equalTo(2));
+        first.close();
+        second.close();
+        assertThat(pool.getLeasedCount(), equalTo(0));
+        assertThat(pool.getIdleCount(), equalTo(2));
+    }
+
+    @Test
+    public void shouldNotReturnConnectionTwice() {
+        OverthereConnection connection = pool.borrow(LOCAL_PROTOCOL, options);
+        connection.close();
+        connection.close();
+        assertThat(pool.getIdleCount(), equalTo(1));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotAllowUseAfterClose() {
+        OverthereConnection connection = pool.borrow(LOCAL_PROTOCOL, options);
+        connection.close();
+        connection.getFile(temp.getRoot().getPath());
+    }
+
+    @Test
+    public void shouldTimeOutWhenMaximumNumberOfConnectionsIsLeased() {
+        options.set(CONNECTION_POOL_MAX_PER_KEY, 1);
+        options.set(CONNECTION_POOL_MAX_WAIT_MILLIS, 10);
+        OverthereConnection first = pool.borrow(LOCAL_PROTOCOL, options);
+        try {
+            pool.borrow(LOCAL_PROTOCOL, options);
+            throw new AssertionError("Expected RuntimeIOException");
+        } catch (RuntimeIOException expected) {
+            assertThat(pool.getWaits(), equalTo(1L));
+        } finally {
+            first.close();
+        }
+        pool.borrow(LOCAL_PROTOCOL, options).close();
+        assertThat(pool.getHits(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldNotHandOutDisconnectedConnection() {
+        PooledOverthereConnection first = (PooledOverthereConnection) pool.borrow(LOCAL_PROTOCOL, options);
+        OverthereConnection delegate = first.getDelegate();
+        first.close();
+        delegate.close();
+
+        PooledOverthereConnection second = (PooledOverthereConnection) pool.borrow(LOCAL_PROTOCOL, options);
+        assertThat(second.getDelegate(), not(sameInstance(delegate)));
+        assertThat(pool.getEvictions(), equalTo(1L));
+        second.close();
+    }
+
+    @Test
+    public void shouldEvictIdleConnections() {
+        options.set(CONNECTION_POOL_IDLE_TIMEOUT_MILLIS, 0);
+        pool.borrow(LOCAL_PROTOCOL, options).close();
+        pool.evictIdleConnections();
+        assertThat(pool.getIdleCount(), equalTo(0));
+        assertThat(pool.getEvictions(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldRemovePoolWithoutConnections() {
+        OverthereConnection connection = pool.borrow(LOCAL_PROTOCOL, options);
+        assertThat(pool.getKeyCount(), equalTo(1));
+        connection.close();
+        assertThat(pool.getKeyCount(), equalTo(1));
+
+        pool.closeIdleConnections();
+        assertThat(pool.getKeyCount(), equalTo(0));
+
+        pool.borrow(LOCAL_PROTOCOL, options).close();
+        assertThat(pool.getKeyCount(), equalTo(1));
+        assertThat(pool.getIdleCount(), equalTo(1));
+    }
+
+    @Test
+    public void shouldRemovePoolAfterEvictingLastIdleConnection() {
+        options.set(CONNECTION_POOL_IDLE_TIMEOUT_MILLIS, 0);
+        pool.borrow(LOCAL_PROTOCOL, options).close();
+        pool.evictIdleConnections();
+        assertThat(pool.getKeyCount(), equalTo(0));
+    }
+
+    @Test
+    public void shouldRemovePoolWhenBorrowFails() {
+        options.set(CONNECTION_POOL_MAX_PER_KEY, 1);
+        options.set(CONNECTION_POOL_MAX_WAIT_MILLIS, 10);
+        OverthereConnection first = pool.borrow(LOCAL_PROTOCOL, options);
+        try {
+            pool.borrow(LOCAL_PROTOCOL, options);
+            throw new AssertionError("Expected RuntimeIOException");
+        } catch (RuntimeIOException expected) {
+            assertThat(pool.getKeyCount(), equalTo(1));
+        }
+        first.close();
+        pool.closeIdleConnections();
+        assertThat(pool.getKeyCount(), equalTo(0));
+    }
+
+    @Test
+    public void shouldUsePoolFromOverthereWhenEnabled() {
+        options.set(CONNECTION_POOL, true);
+        OverthereConnection connection = Overthere.getConnection(LOCAL_PROTOCOL, options);
+        try {
+            assertThat(connection, instanceOf(PooledOverthereConnection.class));
+        } finally {
+            connection.close();
+            Overthere.getConnectionPool().closeIdleConnections();
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.SocketFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.local.LocalConnection;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ConnectionLeakDetectorTest {
+
+    private ConnectionLeakDetector.Level level;
+
+    @BeforeMethod
+    public void saveLevel() {
+        level = ConnectionLeakDetector.getLevel();
+        ConnectionLeakDetector.detectLeaks();
+    }
+
+    @AfterMethod
+    public void restoreLevel() {
+        ConnectionLeakDetector.setLevel(level);
+    }
+
+    @Test
+    public void shouldCleanUpCollectedConnection() throws InterruptedException {
+        ConnectionLeakDetector.setLevel(ConnectionLeakDetector.Level.PARANOID);
+        RecordingCleanup cleanup = new RecordingCleanup();
+        trackUnreachableConnection(cleanup);
+
+        assertThat(awaitCleanup(cleanup), equalTo(true));
+    }
+
+    @Test
+    public void shouldCleanUpCollectedConnectionWithoutBeingAsked() throws InterruptedException {
+        ConnectionLeakDetector.setLevel(ConnectionLeakDetector.Level.SIMPLE);
+        RecordingCleanup cleanup = new RecordingCleanup();
+        trackUnreachableConnection(cleanup);
+
+        for (int i = 0; i < 50 && !cleanup.closed.get(); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertThat(cleanup.closed.get(), equalTo(true));
+    }
+
+    @Test
+    public void shouldNotCleanUpClosedConnection() throws InterruptedException {
+        ConnectionLeakDetector.setLevel(ConnectionLeakDetector.Level.SIMPLE);
+        RecordingCleanup cleanup = new RecordingCleanup();
+        Object connection = new Object();
+        ConnectionLeakDetector.Leak leak = ConnectionLeakDetector.track(connection, "closed", true);
+        leak.addCleanup(cleanup);
+        leak.close();
+        connection = null;
+
+        assertThat(awaitCleanup(cleanup), equalTo(false));
+    }
+
+    @Test
+    public void shouldRunCleanupsInReverseOrder() throws InterruptedException {
+        ConnectionLeakDetector.setLevel(ConnectionLeakDetector.Level.SIMPLE);
+        final List<String> order = new CopyOnWriteArrayList<String>();
+        RecordingCleanup last = new RecordingCleanup();
+        ConnectionLeakDetector.Leak leak = ConnectionLeakDetector.track(new Object(), "leaked", true);
+        leak.addCleanup(last);
+        leak.addCleanup(new Closeable() {
+            @Override
+            public void close() {
+                order.add("registered last");
+            }
+        });
+        leak.addCleanup(new Closeable() {
+            @Override
+            public void close() {
+                order.add("registered second");
+            }
+        });
+        leak = null;
+
+        assertThat(awaitCleanup(last), equalTo(true));
+        assertThat(order, contains("registered second", "registered last"));
+    }
+
+    @Test
+    public void shouldReleaseAddressPortMapperOfCollectedConnection() throws InterruptedException {
+        ConnectionLeakDetector.setLevel(ConnectionLeakDetector.Level.SIMPLE);
+        RecordingMapper mapper = new RecordingMapper();
+        new LocalConnection(LOCAL_PROTOCOL, new ConnectionOptions(), mapper).connect();
+
+        assertThat(awaitCleanup(mapper.closed), equalTo(true));
+    }
+
+    @Test
+    public void shouldNotTrackWhenDisabled() {
+        ConnectionLeakDetector.setLevel(ConnectionLeakDetector.Level.DISABLED);
+        int tracked = ConnectionLeakDetector.getTrackedCount();
+
+        assertThat(ConnectionLeakDetector.track(new Object(), "disabled", true), nullValue());
+        assertThat(ConnectionLeakDetector.getTrackedCount(), equalTo(tracked));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectNonPositiveSamplingInterval() {
+        ConnectionLeakDetector.setSamplingInterval(0);
+    }
+
+    private static void trackUnreachableConnection(Closeable cleanup) {
+        ConnectionLeakDetector.track(new Object(), "leaked", true).addCleanup(cleanup);
+    }
+
+    private static boolean awaitCleanup(RecordingCleanup cleanup) throws InterruptedException {
+        return awaitCleanup(cleanup.closed);
+    }
+
+    private static boolean awaitCleanup(AtomicBoolean closed) throws InterruptedException {
+        for (int i = 0; i < 50 && !closed.get(); i++) {
+            System.gc();
+            ConnectionLeakDetector.detectLeaks();
+            Thread.sleep(20);
+        }
+        return closed.get();
+    }
+
+    private static class RecordingCleanup implements Closeable {
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public void close() throws IOException {
+            closed.set(true);
+        }
+    }
+
+    private static class RecordingMapper implements AddressPortMapper {
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public InetSocketAddress map(InetSocketAddress address) {
+            return address;
+        }
+
+        @Override
+        public SocketFactory socketFactory() {
+            return SocketFactory.getDefault();
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.OverthereExecutionOutputBulkHandler;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+public class OutputPumpTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void shouldSplitLinesAndStripCarriageReturns() throws IOException {
+        RecordingHandler handler = new RecordingHandler();
+        new OutputPump(stream("one\r\ntwo\nthree", false), UTF8, handler).pump();
+
+        assertThat(handler.lines, contains("one", "two", "three"));
+        assertThat(handler.chars.toString(), equalTo("one\r\ntwo\nthree"));
+    }
+
+    @Test
+    public void shouldDecodeMultiByteCharactersSplitAcrossReads() throws IOException {
+        RecordingBulkHandler handler = new RecordingBulkHandler();
+        new OutputPump(stream("caf\u00e9\n\u20ac 10\n", true), UTF8, handler).pump();
+
+        assertThat(handler.lines, contains("caf\u00e9", "\u20ac 10"));
+        assertThat(handler.chars.toString(), equalTo("caf\u00e9\n\u20ac 10\n"));
+    }
+
+    @Test
+    public void shouldHandleOutputLargerThanBuffer() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            expected.append("line ").append(i).append(i % 7 == 0 ? " \u00fc" : "").append('\n');
+        }
+        RecordingBulkHandler handler = new RecordingBulkHandler();
+        new OutputPump(new ByteArrayInputStream(expected.toString().getBytes(UTF8)), UTF8, handler).pump();
+
+        assertThat(handler.lines.size(), equalTo(5000));
+        assertThat(handler.chars.toString(), equalTo(expected.toString()));
+    }
+
+    @Test
+    public void shouldUseConfiguredCharset() throws IOException {
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        RecordingHandler handler = new RecordingHandler();
+        new OutputPump(new ByteArrayInputStream("gr\u00fc\u00df".getBytes(latin1)), latin1, handler).pump();
+
+        assertThat(handler.lines, contains("gr\u00fc\u00df"));
+    }
+
+    @Test
+    public void shouldOnlyUseAsciiFastPathForCompatibleCharsets() {
+        assertThat(OutputPump.isAsciiCompatible(UTF8), equalTo(true));
+        assertThat(OutputPump.isAsciiCompatible(Charset.forName("ISO-8859-1")), equalTo(true));
+        assertThat(OutputPump.isAsciiCompatible(Charset.forName("UTF-16")), equalTo(false));
+    }
+
+    private static InputStream stream(String s, final boolean byteByByte) {
+        return new ByteArrayInputStream(s.getBytes(UTF8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, byteByByte ? Math.min(len, 1) : len);
+            }
+        };
+    }
+
+    private static class RecordingHandler implements OverthereExecutionOutputHandler {
+        final StringBuilder chars = new StringBuilder();
+        final List<String> lines = new ArrayList<String>();
+
+        @Override
+        public void handleChar(char c) {
+            chars.append(c);
+        }
+
+        @Override
+        public void handleLine(String line) {
+            lines.add(line);
+        }
+    }
+
+    private static class RecordingBulkHandler extends RecordingHandler implements OverthereExecutionOutputBulkHandler {
+        @Override
+        public void handleChar(char c) {
+            throw new AssertionError("handleChar should not be invoked on a bulk handler");
+        }
+
+        @Override
+        public void handleChars(char[] buf, int offset, int length) {
+            chars.append(buf, offset, length);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class OverthereRuntimeTest {
+
+    @Test
+    public void shouldCountActivePumps() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        int before = OverthereRuntime.getActivePumps();
+
+        OverthereRuntime.Pump pump = OverthereRuntime.start("test pump", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        started.await();
+        assertThat(OverthereRuntime.getActivePumps(), equalTo(before + 1));
+
+        release.countDown();
+        pump.join();
+        assertThat(pump.isDone(), equalTo(true));
+        assertThat(OverthereRuntime.getActivePumps(), equalTo(before));
+    }
+
+    @Test
+    public void shouldNameThreadAfterPumpWhileRunning() throws InterruptedException {
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        OverthereRuntime.start("named pump", new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+            }
+        }).join();
+
+        assertThat(threadName.get(), equalTo("named pump"));
+    }
+
+    @Test
+    public void shouldInterruptBlockedPump() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        OverthereRuntime.Pump pump = OverthereRuntime.start("blocked pump", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException exc) {
+                    interrupted.set(true);
+                }
+            }
+        });
+        started.await();
+        pump.interrupt();
+        pump.join();
+
+        assertThat(interrupted.get(), equalTo(true));
+    }
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.spi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.Overthere;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.TemporaryFolder;
+import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
+
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.TEMPORARY_DIRECTORY_PATH;
+import static com.xebialabs.overthere.OperatingSystemFamily.getLocalHostOperatingSystemFamily;
+import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+
+public class TemporaryFileAllocationTest {
+
+    public TemporaryFolder temp = new TemporaryFolder();
+    private OverthereConnection connection;
+
+    @BeforeMethod
+    public void connect() throws IOException {
+        temp.create();
+        ConnectionOptions options = new ConnectionOptions();
+        options.set(OPERATING_SYSTEM, getLocalHostOperatingSystemFamily());
+        options.set(TEMPORARY_DIRECTORY_PATH, temp.getRoot().getPath());
+        connection = Overthere.getConnection(LOCAL_PROTOCOL, options);
+    }
+
+    @AfterMethod
+    public void disconnect() {
+        connection.close();
+        temp.delete();
+    }
+
+    @Test
+    public void shouldPlaceTemporaryFilesInOneHolderDirectory() {
+        OverthereFile file1 = connection.getTempFile("file1.txt");
+        OverthereFile file2 = connection.getTempFile("file2.txt");
+
+        assertThat(file1.getName(), equalTo("file1.txt"));
+        assertThat(file1.getParentFile().getPath(), equalTo(file2.getParentFile().getPath()));
+        assertThat(temp.getRoot().list().length, equalTo(1));
+    }
+
+    @Test
+    public void shouldHandOutUniqueFilesForTheSameName() {
+        OverthereFile file1 = connection.getTempFile("same.txt");
+        OverthereFile file2 = connection.getTempFile("same.txt");
+        OverthereFile file3 = connection.getTempFile("SAME.txt");
+
+        assertThat(file2.getName(), equalTo("same.txt"));
+        assertThat(file1.getPath(), not(equalTo(file2.getPath())));
+        assertThat(file2.getPath(), not(equalTo(file3.getPath())));
+        assertThat(file1.getPath(), not(equalTo(file3.getPath())));
+        assertThat(file2.getParentFile().exists(), equalTo(true));
+        assertThat(file3.getParentFile().exists(), equalTo(true));
+    }
+
+    @Test
+    public void shouldNotHandOutNamesOfCollisionDirectories() {
+        connection.getTempFile("clash");
+        OverthereFile collision = connection.getTempFile("clash").getParentFile();
+        OverthereFile file = connection.getTempFile(collision.getName());
+
+        assertThat(file.getPath(), not(equalTo(collision.getPath())));
+        file.mkdir();
+        assertThat(file.isDirectory(), equalTo(true));
+    }
+
+    @Test
+    public void shouldHandOutUniqueFilesConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final String name = "file" + (i % 5);
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        OverthereFile file = connection.getTempFile(name);
+                        file.mkdir();
+                        return file.getPath();
+                    }
+                }));
+            }
+
+            Set<String> paths = new HashSet<String>();
+            for (Future<String> future : futures) {
+                paths.add(future.get());
+            }
+            assertThat(paths.size(), equalTo(200));
+            assertThat(temp.getRoot().list().length, equalTo(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldPlaceTemporaryFilesInOneRandomDirectoryWhenHolderIsWorldWritable() {
+        ConnectionOptions options = new ConnectionOptions();
+        options.set(OPERATING_SYSTEM, getLocalHostOperatingSystemFamily());
+        options.set(TEMPORARY_DIRECTORY_PATH, temp.getRoot().getPath());
+        OverthereConnection shared = new LocalConnection(LOCAL_PROTOCOL, options, DefaultAddressPortMapper.INSTANCE) {
+            @Override
+            protected boolean isTemporaryFileHolderDirectoryWorldWritable() {
+                return true;
+            }
+        };
+        try {
+            OverthereFile file1 = shared.getTempFile("same.txt");
+            OverthereFile file2 = shared.getTempFile("same.txt");
+            OverthereFile file3 = shared.getTempFile("other.txt");
+
+            OverthereFile privateDir = file1.getParentFile();
+            assertThat(privateDir.getName(), startsWith("otp-"));
+            assertThat(privateDir.isDirectory(), equalTo(true));
+            assertThat(privateDir.getParentFile().listFiles().size(), equalTo(1));
+            assertThat(file2.getParentFile().getParentFile().getPath(), equalTo(privateDir.getPath()));
+            assertThat(file3.getParentFile().getPath(), equalTo(privateDir.getPath()));
+            assertThat(file1.exists(), equalTo(false));
+        } finally {
+            shared.close();
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.common.Buffer;
+import net.schmizz.sshj.common.LoggerFactory;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * A remote file that answers SFTP READ and WRITE requests from memory after a simulated round trip time.
+ */
+class SimulatedSftpRemoteFile extends SshSftpRemoteFile {
+
+    private static final int STATUS_OK = 0;
+
+    private static final int STATUS_EOF = 1;
+
+    private static final int STATUS_FAILURE = 4;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long roundTripMillis;
+
+    private final int maxReadLength;
+
+    private final AtomicInteger requestId = new AtomicInteger();
+
+    private final List<Integer> readLengths = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private volatile boolean failWrites;
+
+    private byte[] contents;
+
+    SimulatedSftpRemoteFile(ScheduledExecutorService scheduler, long roundTripMillis, int maxReadLength, byte[] contents) {
+        super(newEngine(), "/simulated", new byte[] { 1 });
+        this.scheduler = scheduler;
+        this.roundTripMillis = roundTripMillis;
+        this.maxReadLength = maxReadLength;
+        this.contents = contents;
+    }
+
+    private static SFTPEngine newEngine() {
+        return mock(SFTPEngine.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                if (invocation.getMethod().getName().equals("getLoggerFactory")) {
+                    return LoggerFactory.DEFAULT;
+                } else if (invocation.getMethod().getName().equals("getTimeoutMs")) {
+                    return 30000;
+                }
+                return null;
+            }
+        });
+    }
+
+    synchronized byte[] getContents() {
+        return contents;
+    }
+
+    List<Integer> getReadLengths() {
+        return readLengths;
+    }
+
+    void failWrites() {
+        failWrites = true;
+    }
+
+    @Override
+    protected Promise<Response, SFTPException> asyncRead(final long offset, final int len) {
+        final int id = requestId.incrementAndGet();
+        readLengths.add(len);
+        return respondLater(new Reply() {
+            @Override
+            public Response answer() throws SFTPException {
+                synchronized (SimulatedSftpRemoteFile.this) {
+                    if (offset >= contents.length) {
+                        return status(id, STATUS_EOF);
+                    }
+                    int n = (int) Math.min(Math.min(len, maxReadLength), contents.length - offset);
+                    Buffer.PlainBuffer buf = packet(PacketType.DATA, id);
+                    buf.putUInt32(n);
+                    buf.putRawBytes(contents, (int) offset, n);
+                    return response(buf);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected Promise<Response, SFTPException> asyncWrite(final long offset, byte[] data, int off, int len) {
+        final int id = requestId.incrementAndGet();
+        final byte[] copy = Arrays.copyOfRange(data, off, off + len);
+        return respondLater(new Reply() {
+            @Override
+            public Response answer() throws SFTPException {
+                if (failWrites) {
+                    return status(id, STATUS_FAILURE);
+                }
+                synchronized (SimulatedSftpRemoteFile.this) {
+                    int end = (int) offset + copy.length;
+                    if (end > contents.length) {
+                        contents = Arrays.copyOf(contents, end);
+                    }
+                    System.arraycopy(copy, 0, contents, (int) offset, copy.length);
+                }
+                return status(id, STATUS_OK);
+            }
+        });
+    }
+
+    private Promise<Response, SFTPException> respondLater(final Reply reply) {
+        final Promise<Response, SFTPException> promise = new Promise<Response, SFTPException>("simulated", SFTPException.chainer, LoggerFactory.DEFAULT);
+        // Requests are answered in the order they are sent, like an SFTP server does
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promise.deliver(reply.answer());
+                } catch (SFTPException e) {
+                    promise.deliverError(e);
+                }
+            }
+        }, roundTripMillis, MILLISECONDS);
+        return promise;
+    }
+
+    private static Buffer.PlainBuffer packet(PacketType type, int id) {
+        Buffer.PlainBuffer buf = new Buffer.PlainBuffer();
+        buf.putByte(type.toByte());
+        buf.putUInt32(id);
+        return buf;
+    }
+
+    private static Response status(int id, int code) throws SFTPException {
+        Buffer.PlainBuffer buf = packet(PacketType.STATUS, id);
+        buf.putUInt32(code);
+        buf.putString("simulated status " + code);
+        buf.putString("");
+        return response(buf);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Response response(Buffer.PlainBuffer buf) throws SFTPException {
+        return new Response((Buffer) buf, 3);
+    }
+
+    private interface Reply {
+        Response answer() throws SFTPException;
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.RuntimeIOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class SshChannelLimiterTest {
+
+    @Test
+    public void shouldHandOutUpToMaxChannels() {
+        SshChannelLimiter limiter = new SshChannelLimiter(2, 100);
+
+        assertThat(limiter.tryAcquire(), equalTo(true));
+        assertThat(limiter.tryAcquire(), equalTo(true));
+        assertThat(limiter.tryAcquire(), equalTo(false));
+
+        limiter.release();
+        assertThat(limiter.getAvailableChannels(), equalTo(1));
+        assertThat(limiter.tryAcquire(), equalTo(true));
+    }
+
+    @Test(expectedExceptions = RuntimeIOException.class, expectedExceptionsMessageRegExp = "Timed out after 50 ms .*")
+    public void shouldTimeOutWaitingForChannel() {
+        SshChannelLimiter limiter = new SshChannelLimiter(1, 50);
+        limiter.tryAcquire();
+
+        limiter.acquire("host");
+    }
+
+    @Test
+    public void shouldHandReleasedChannelToWaitingCaller() throws InterruptedException {
+        final SshChannelLimiter limiter = new SshChannelLimiter(1, 10000);
+        limiter.tryAcquire();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                limiter.acquire("host");
+                acquired.countDown();
+            }
+        });
+        waiter.start();
+        while (limiter.getWaitingCount() == 0) {
+            Thread.sleep(5);
+        }
+
+        limiter.release();
+        assertThat(acquired.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(limiter.tryAcquire(), equalTo(false));
+        waiter.join();
+    }
+
+}
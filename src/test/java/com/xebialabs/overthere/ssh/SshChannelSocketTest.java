@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.schmizz.sshj.connection.channel.Channel;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SshChannelSocketTest {
+
+    private Channel channel;
+    private PipedOutputStream remoteOut;
+    private ByteArrayOutputStream remoteIn;
+    private TestSocket socket;
+
+    @BeforeMethod
+    public void init() throws IOException {
+        channel = mock(Channel.class);
+        remoteOut = new PipedOutputStream();
+        remoteIn = new ByteArrayOutputStream();
+        when(channel.getInputStream()).thenReturn(new PipedInputStream(remoteOut));
+        when(channel.getOutputStream()).thenReturn(remoteIn);
+        when(channel.isOpen()).thenReturn(true);
+        socket = new TestSocket();
+    }
+
+    @Test
+    public void shouldCarryDataOverChannel() throws IOException {
+        InetSocketAddress endpoint = InetSocketAddress.createUnresolved("target.example.com", 5985);
+        socket.connect(endpoint, 1000);
+
+        assertThat(socket.openedFor, equalTo(endpoint));
+        assertThat(socket.isConnected(), equalTo(true));
+
+        socket.getOutputStream().write("ping".getBytes("UTF-8"));
+        assertThat(remoteIn.toString("UTF-8"), equalTo("ping"));
+
+        remoteOut.write("pong".getBytes("UTF-8"));
+        byte[] buf = new byte[4];
+        assertThat(socket.getInputStream().read(buf), equalTo(4));
+        assertThat(new String(buf, "UTF-8"), equalTo("pong"));
+    }
+
+    @Test
+    public void shouldTimeOutReadWithoutBreakingSocket() throws IOException {
+        socket.connect(new InetSocketAddress("localhost", 2222));
+        socket.setSoTimeout(20);
+        InputStream in = socket.getInputStream();
+
+        try {
+            in.read();
+            throw new AssertionError("Expected read to time out");
+        } catch (SocketTimeoutException expected) {
+            // expected
+        }
+
+        remoteOut.write(42);
+        // Wakes up the reader of the pipe, which otherwise only checks for data every second
+        remoteOut.flush();
+        assertThat(in.read(), equalTo(42));
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldCarryMoreDataThanTheReadBufferInOrder() throws Exception {
+        socket.connect(new InetSocketAddress("localhost", 2222));
+        socket.setSoTimeout(5000);
+        final byte[] sent = new byte[SshChannelSocket.READ_BUFFER_SIZE * 3 + 123];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = (byte) (i * 31);
+        }
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    remoteOut.write(sent);
+                    remoteOut.close();
+                } catch (IOException exc) {
+                    throw new IllegalStateException(exc);
+                }
+            }
+        });
+        writer.start();
+
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        for (int n; (n = in.read(buf)) != -1; ) {
+            received.write(buf, 0, n);
+        }
+        writer.join();
+
+        assertThat(received.toByteArray(), equalTo(sent));
+    }
+
+    @Test
+    public void shouldReturnEndOfStreamWhenChannelIsAtEof() throws IOException {
+        socket.connect(new InetSocketAddress("localhost", 2222));
+        socket.setSoTimeout(1000);
+        remoteOut.close();
+        when(channel.isEOF()).thenReturn(true);
+
+        assertThat(socket.getInputStream().read(), equalTo(-1));
+    }
+
+    @Test
+    public void shouldSendEofWhenOutputIsShutdown() throws IOException {
+        socket.connect(new InetSocketAddress("localhost", 2222));
+        socket.shutdownOutput();
+
+        assertThat(socket.eofSent, equalTo(true));
+        assertThat(socket.isOutputShutdown(), equalTo(true));
+        try {
+            socket.getOutputStream().write(1);
+            throw new AssertionError("Expected write to fail");
+        } catch (SocketException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldCloseChannelWhenSocketIsClosed() throws IOException {
+        socket.connect(new InetSocketAddress("localhost", 2222));
+        socket.close();
+
+        verify(channel).close();
+        assertThat(socket.isClosed(), equalTo(true));
+        try {
+            socket.getInputStream();
+            throw new AssertionError("Expected closed socket to be unusable");
+        } catch (SocketException expected) {
+            // expected
+        }
+    }
+
+    @Test(expectedExceptions = SocketException.class)
+    public void shouldNotReturnStreamsBeforeConnected() throws IOException {
+        socket.getInputStream();
+    }
+
+    private class TestSocket extends SshChannelSocket {
+
+        InetSocketAddress openedFor;
+
+        boolean eofSent;
+
+        @Override
+        protected Channel openChannel(InetSocketAddress endpoint) {
+            openedFor = endpoint;
+            return channel;
+        }
+
+        @Override
+        protected void sendEof(Channel channel) {
+            eofSent = true;
+        }
+    }
+
+}
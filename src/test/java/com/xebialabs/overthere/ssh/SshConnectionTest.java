@@ -28,12 +28,11 @@ import net.schmizz.keepalive.KeepAlive;
 import net.schmizz.sshj.MockitoFriendlySSHClient;
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.connection.Connection;
-import net.schmizz.sshj.connection.ConnectionException;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.transport.Transport;
-import net.schmizz.sshj.transport.TransportException;
 import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 import net.schmizz.sshj.userauth.method.AuthMethod;
+import net.schmizz.sshj.userauth.password.PasswordFinder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -46,6 +45,7 @@ import static com.xebialabs.overthere.ConnectionOptions.*;
 import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
 import static com.xebialabs.overthere.ssh.SshConnectionBuilder.*;
 import static com.xebialabs.overthere.ssh.SshConnectionType.SFTP;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -67,7 +67,7 @@ public class SshConnectionTest {
     private KeepAlive keepAlive;
 
     @BeforeMethod
-    public void init() throws ConnectionException, TransportException {
+    public void init() throws IOException {
         MockitoAnnotations.initMocks(this);
         connectionOptions = new ConnectionOptions();
         connectionOptions.set(CONNECTION_TYPE, SFTP);
@@ -80,6 +80,10 @@ public class SshConnectionTest {
         keepAlive = mock(KeepAlive.class);
         when(client.getConnection()).thenReturn(conn);
         when(conn.getKeepAlive()).thenReturn(keepAlive);
+        KeyProvider keys = mock(KeyProvider.class);
+        when(client.loadKeys(anyString())).thenReturn(keys);
+        when(client.loadKeys(anyString(), anyString(), any(PasswordFinder.class))).thenReturn(keys);
+        SshKeyProviderCache.clear();
     }
 
     @Test
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.OperatingSystemFamily.getLocalHostOperatingSystemFamily;
+import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
+import static com.xebialabs.overthere.util.NullOverthereExecutionOutputHandler.swallow;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the persistent shell protocol against a local <code>sh</code> process.
+ */
+public class SshPersistentShellTest {
+
+    private Process process;
+    private SshPersistentShell shell;
+
+    @BeforeMethod
+    public void startShell() throws IOException {
+        if (getLocalHostOperatingSystemFamily() != UNIX) {
+            throw new SkipException("Needs a local sh");
+        }
+        process = new ProcessBuilder(SshPersistentShell.SHELL_COMMAND).start();
+        Session session = mock(Session.class);
+        Session.Command command = mock(Session.Command.class);
+        when(session.exec(SshPersistentShell.SHELL_COMMAND)).thenReturn(command);
+        when(session.isOpen()).thenReturn(true);
+        when(command.getOutputStream()).thenReturn(process.getOutputStream());
+        when(command.getInputStream()).thenReturn(process.getInputStream());
+        when(command.getErrorStream()).thenReturn(process.getErrorStream());
+        shell = new SshPersistentShell(session, Charset.forName("UTF-8"));
+    }
+
+    @AfterMethod
+    public void stopShell() {
+        if (shell != null) {
+            shell.close();
+        }
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void shouldReturnOutputAndExitCodes() throws IOException {
+        CapturingOverthereExecutionOutputHandler stdout = capturingHandler();
+        CapturingOverthereExecutionOutputHandler stderr = capturingHandler();
+
+        assertThat(shell.execute(stdout, stderr, "echo one; echo two; echo err >&2; exit 3"), equalTo(3));
+        assertThat(stdout.getOutputLines(), contains("one", "two"));
+        assertThat(stderr.getOutputLines(), contains("err"));
+
+        CapturingOverthereExecutionOutputHandler second = capturingHandler();
+        assertThat(shell.execute(second, swallow(), "echo three"), equalTo(0));
+        assertThat(second.getOutputLines(), contains("three"));
+    }
+
+    @Test
+    public void shouldKeepLastLineWithoutNewlineAndEmptyLines() throws IOException {
+        CapturingOverthereExecutionOutputHandler unterminated = capturingHandler();
+        shell.execute(unterminated, swallow(), "printf 'a\\nb'");
+        assertThat(unterminated.getOutputLines(), contains("a", "b"));
+
+        CapturingOverthereExecutionOutputHandler blank = capturingHandler();
+        shell.execute(blank, swallow(), "printf 'a\\n\\n'");
+        assertThat(blank.getOutputLines(), contains("a", ""));
+
+        CapturingOverthereExecutionOutputHandler none = capturingHandler();
+        shell.execute(none, swallow(), "true");
+        assertThat(none.getOutputLines().size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldNotLetCommandsChangeTheShell() throws IOException {
+        shell.execute(swallow(), swallow(), "cd /; X=1; exec true");
+        CapturingOverthereExecutionOutputHandler stdout = capturingHandler();
+
+        assertThat(shell.execute(stdout, swallow(), "echo \"[$X]\""), equalTo(0));
+        assertThat(stdout.getOutputLines(), contains("[]"));
+    }
+
+    @Test
+    public void shouldNotLetCommandsReadTheCommandStream() throws IOException {
+        CapturingOverthereExecutionOutputHandler stdout = capturingHandler();
+
+        shell.execute(swallow(), swallow(), "cat");
+        assertThat(shell.execute(stdout, swallow(), "echo still here"), equalTo(0));
+        assertThat(stdout.getOutputLines(), contains("still here"));
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldNotBlockOnErrorOutputWhileReadingOutput() throws IOException {
+        CapturingOverthereExecutionOutputHandler stdout = capturingHandler();
+        CapturingOverthereExecutionOutputHandler stderr = capturingHandler();
+
+        assertThat(shell.execute(stdout, stderr, "yes error | head -n 100000 >&2; echo done"), equalTo(0));
+        assertThat(stdout.getOutputLines(), contains("done"));
+        assertThat(stderr.getOutputLines().size(), equalTo(100000));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldFailWhenShellTerminates() throws IOException {
+        process.destroy();
+        shell.execute(swallow(), swallow(), "echo gone");
+    }
+
+}
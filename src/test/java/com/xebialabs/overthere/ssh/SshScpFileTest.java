@@ -22,11 +22,47 @@
  */
 package com.xebialabs.overthere.ssh;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
+import com.xebialabs.overthere.util.OverthereFileDirectoryWalker;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.GET_FILE_INFO_COMMAND_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.LIST_FILES_COMMAND_DEFAULT;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
+import static com.xebialabs.overthere.ssh.SshConnectionType.SCP;
+import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class SshScpFileTest {
 
@@ -78,4 +114,283 @@ public class SshScpFileTest {
         assertThat("Should be a directory", results.isDirectory);
         assertThat("Should be executable", results.canExecute);
     }
+
+    @Test
+    public void shouldParseLargeFileOnLs() {
+        SshScpFile.LsResults results = new SshScpFile.LsResults();
+        assertThat("Should parse", sshScpFile.parseLsOutputLine(results, "-rw-r--r-- 1 ajvanerp  staff    5368709120 Dec 17 15:28 build.tar"));
+        assertThat("Should be a file", results.isFile);
+        assertThat(results.length, equalTo(5368709120L));
+    }
+
+    @Test
+    public void shouldParseFileOnStat() {
+        SshScpFile.LsResults results = new SshScpFile.LsResults();
+        assertThat("Should parse", sshScpFile.parseStatOutputLine(results, "-rwxr-xr--:5368709120:1450362480"));
+        assertThat("Should be a file", results.isFile);
+        assertThat("Should be executable", results.canExecute);
+        assertThat(results.length, equalTo(5368709120L));
+        assertThat(results.lastModified, equalTo(1450362480000L));
+    }
+
+    @Test
+    public void shouldNotParseLsOutputAsStatOutput() {
+        SshScpFile.LsResults results = new SshScpFile.LsResults();
+        assertThat("Should not parse", !sshScpFile.parseStatOutputLine(results, "drwxr-xr-x 10 ajvanerp  staff    340 Dec 17 15:28 build"));
+    }
+
+    @Test
+    public void shouldReuseFileInfoUntilFileSystemChanges() {
+        SshScpConnection connection = mock(SshScpConnection.class);
+        connection.getFileInfoCommand = GET_FILE_INFO_COMMAND_DEFAULT;
+        when(connection.getHostOperatingSystem()).thenReturn(UNIX);
+        when(connection.executeFileQuery(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                OverthereExecutionOutputHandler outHandler = (OverthereExecutionOutputHandler) invocation.getArguments()[0];
+                outHandler.handleLine("drwxr-xr-x:4096:1450362480");
+                return 0;
+            }
+        });
+        SshScpFile file = new SshScpFile(connection, "/foo/baz");
+
+        assertThat("Should exist", file.exists());
+        assertThat("Should be a directory", file.isDirectory());
+        assertThat(file.lastModified(), equalTo(1450362480000L));
+        verify(connection, times(1)).executeFileQuery(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class));
+
+        when(connection.getFileSystemGeneration()).thenReturn(1L);
+        assertThat("Should exist", file.exists());
+        file.refresh();
+        assertThat("Should exist", file.exists());
+        verify(connection, times(3)).executeFileQuery(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class));
+    }
+
+    @Test
+    public void shouldKeepFileInfoWhenOtherFilesAreQueried() {
+        final List<String> commands = new ArrayList<String>();
+        SshScpConnection connection = newConnection(fileSystem(), commands, null);
+
+        OverthereFile source = connection.getFile("/root/d1/f");
+        OverthereFile target = connection.getFile("/root/d2/f");
+        assertThat("Should exist", source.exists());
+        assertThat("Should exist", target.exists());
+        assertThat("Should be a file", source.isFile());
+        assertThat("Should be a file", target.isFile());
+
+        assertThat(commands.size(), equalTo(2));
+    }
+
+    @Test
+    public void shouldNotReuseFileInfoWhenFileSystemChangesWhileItIsRetrieved() {
+        final List<String> commands = new ArrayList<String>();
+        final SshScpConnection[] connection = new SshScpConnection[1];
+        connection[0] = newConnection(fileSystem(), commands, new Runnable() {
+            @Override
+            public void run() {
+                if (commands.size() == 1) {
+                    // Another thread finishes a command that removes the file
+                    connection[0].fileSystemChanged();
+                }
+            }
+        });
+
+        OverthereFile file = connection[0].getFile("/root/d1/f");
+        assertThat("Should exist", file.exists());
+        assertThat("Should exist", file.exists());
+
+        assertThat(commands.size(), equalTo(2));
+    }
+
+    @Test
+    public void shouldWalkTreeWithOneCommandPerDirectory() {
+        final List<String> commands = new ArrayList<String>();
+        final SshScpConnection connection = newConnection(fileSystem(), commands, null);
+
+        final List<String> visited = new ArrayList<String>();
+        new OverthereFileDirectoryWalker() {
+            {
+                walk(connection.getFile("/root"));
+            }
+
+            @Override
+            protected void handleDirectoryStart(OverthereFile directory, int depth) {
+                visited.add(directory.getPath());
+            }
+
+            @Override
+            protected void handleFile(OverthereFile file, int depth) {
+                visited.add(file.getPath());
+            }
+        };
+
+        assertThat(visited, equalTo(asList("/root", "/root/d1", "/root/d1/f", "/root/d1/s", "/root/d1/s/f", "/root/d2", "/root/d2/f", "/root/d3",
+                "/root/d3/f")));
+        assertThat(commands.size(), equalTo(5));
+        for (String command : commands) {
+            assertThat(command, startsWith("find "));
+        }
+    }
+
+    private static Map<String, List<String>> fileSystem() {
+        Map<String, List<String>> directories = new HashMap<String, List<String>>();
+        directories.put("/root", asList("d1", "d2", "d3"));
+        directories.put("/root/d1", asList("f", "s"));
+        directories.put("/root/d1/s", asList("f"));
+        directories.put("/root/d2", asList("f"));
+        directories.put("/root/d3", asList("f"));
+        return directories;
+    }
+
+    /**
+     * Creates an SCP connection whose commands run against the given directories, which hold files named <code>f</code>
+     * and the directories listed for them. The real file system generation of the connection is used.
+     */
+    private static SshScpConnection newConnection(final Map<String, List<String>> directories, final List<String> commands, final Runnable onCommand) {
+        ConnectionOptions options = new ConnectionOptions();
+        options.set(CONNECTION_TYPE, SCP);
+        options.set(OPERATING_SYSTEM, UNIX);
+        options.set(ADDRESS, "nowhere.example.com");
+        options.set(USERNAME, "some-user");
+        return new SshScpConnection(SSH_PROTOCOL, options, new DefaultAddressPortMapper()) {
+            @Override
+            protected Session openSession() {
+                return mock(Session.class);
+            }
+
+            @Override
+            protected SshProcess createProcess(Session session, CmdLine commandLine) {
+                String command = commandLine.toCommandLine(UNIX, false);
+                commands.add(command);
+                if (onCommand != null) {
+                    onCommand.run();
+                }
+
+                StringBuilder output = new StringBuilder();
+                for (Map.Entry<String, List<String>> directory : directories.entrySet()) {
+                    if (command.startsWith("find " + directory.getKey() + " ")) {
+                        for (String name : directory.getValue()) {
+                            boolean isDirectory = directories.containsKey(directory.getKey() + "/" + name);
+                            output.append(isDirectory ? "drwxr-xr-x:4096" : "-rw-r--r--:12").append(":1450362480.5823835040:").append(name).append("\n");
+                        }
+                    } else if (command.startsWith("stat -c %A:%s:%Y " + directory.getKey() + "/")) {
+                        output.append("-rw-r--r--:12:1450362480\n");
+                        break;
+                    }
+                }
+
+                SshProcess process = mock(SshProcess.class);
+                when(process.getStdout()).thenReturn(new ByteArrayInputStream(output.toString().getBytes()));
+                when(process.getStderr()).thenReturn(new ByteArrayInputStream(new byte[0]));
+                return process;
+            }
+        };
+    }
+
+    @Test
+    public void shouldParseFileOnList() {
+        SshScpFile.LsResults results = new SshScpFile.LsResults();
+        assertThat(sshScpFile.parseListOutputLine(results, "-rw-r--r--:5368709120:1450362480.5823835040:build:1.tar"), equalTo("build:1.tar"));
+        assertThat("Should exist", results.exists);
+        assertThat("Should be a file", results.isFile);
+        assertThat(results.length, equalTo(5368709120L));
+        assertThat(results.lastModified, equalTo(1450362480000L));
+    }
+
+    @Test
+    public void shouldNotParseNameOnList() {
+        SshScpFile.LsResults results = new SshScpFile.LsResults();
+        assertThat(sshScpFile.parseListOutputLine(results, "build.tar"), equalTo(null));
+    }
+
+    @Test
+    public void shouldListFilesWithAttributes() {
+        SshScpConnection connection = mock(SshScpConnection.class);
+        connection.listFilesCommand = LIST_FILES_COMMAND_DEFAULT;
+        when(connection.getHostOperatingSystem()).thenReturn(UNIX);
+        when(connection.executeFileQuery(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                OverthereExecutionOutputHandler outHandler = (OverthereExecutionOutputHandler) invocation.getArguments()[0];
+                outHandler.handleLine("drwxr-xr-x:4096:1450362480.5823835040:a dir");
+                outHandler.handleLine("-rw-r--r--:12:1450362480.5823835040:a file");
+                return 0;
+            }
+        });
+        SshScpFile dir = new SshScpFile(connection, "/foo");
+        SshScpFile childDir = new SshScpFile(connection, "/foo/a dir");
+        SshScpFile childFile = new SshScpFile(connection, "/foo/a file");
+        when(connection.getFile(dir, "a dir")).thenReturn(childDir);
+        when(connection.getFile(dir, "a file")).thenReturn(childFile);
+
+        List<OverthereFile> files = dir.listFiles();
+        assertThat(files.size(), equalTo(2));
+        assertThat("Should be a directory", files.get(0).isDirectory());
+        assertThat("Should be a file", files.get(1).isFile());
+        assertThat(files.get(1).length(), equalTo(12L));
+        verify(connection, times(1)).executeFileQuery(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class));
+    }
+
+    @Test
+    public void shouldListFilesOnceWhenFindFailsHalfwayAndLsListsThemAgain() {
+        SshScpConnection connection = mock(SshScpConnection.class);
+        connection.listFilesCommand = LIST_FILES_COMMAND_DEFAULT;
+        when(connection.getHostOperatingSystem()).thenReturn(UNIX);
+        when(connection.executeFileQuery(any(OverthereExecutionOutputHandler.class), any(OverthereExecutionOutputHandler.class), any(CmdLine.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                OverthereExecutionOutputHandler outHandler = (OverthereExecutionOutputHandler) invocation.getArguments()[0];
+                outHandler.handleLine("-rw-r--r--:12:1450362480.5823835040:a file");
+                outHandler.handleLine(".");
+                outHandler.handleLine("..");
+                outHandler.handleLine("a file");
+                outHandler.handleLine("another file");
+                return 0;
+            }
+        });
+        SshScpFile dir = new SshScpFile(connection, "/foo");
+        SshScpFile file = new SshScpFile(connection, "/foo/a file");
+        SshScpFile anotherFile = new SshScpFile(connection, "/foo/another file");
+        when(connection.getFile(dir, "a file")).thenReturn(file);
+        when(connection.getFile(dir, "another file")).thenReturn(anotherFile);
+
+        List<OverthereFile> files = dir.listFiles();
+        assertThat(files.size(), equalTo(2));
+        assertThat(files.get(0).getName(), equalTo("a file"));
+        assertThat(files.get(0).length(), equalTo(12L));
+        assertThat(files.get(1).getName(), equalTo("another file"));
+    }
+
+    @Test
+    public void shouldNotTakeOwnersAndModesFromArchiveWhenExtractingTar() {
+        assertThat(SshScpFile.extractTarScript("/foo/bar").toString(), equalTo("mkdir -p /foo/bar && cd /foo/bar && tar --no-same-owner --no-same-permissions -xf -"));
+    }
+
+    @Test
+    public void shouldUploadContentsSpooledInMemoryWithTheirLength() throws IOException {
+        assertThat(uploadThroughSpool(1024), equalTo("C0644 11 bar.txt\nhello world\0"));
+    }
+
+    @Test
+    public void shouldUploadContentsSpooledToDiskWithTheirLength() throws IOException {
+        assertThat(uploadThroughSpool(4), equalTo("C0644 11 bar.txt\nhello world\0"));
+    }
+
+    private String uploadThroughSpool(int threshold) throws IOException {
+        SshScpConnection connection = mock(SshScpConnection.class);
+        when(connection.getHostOperatingSystem()).thenReturn(UNIX);
+        Session session = mock(Session.class);
+        Session.Command command = mock(Session.Command.class);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(connection.openSession()).thenReturn(session);
+        when(session.exec("scp -t /foo/bar.txt")).thenReturn(command);
+        when(command.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[3]));
+        when(command.getOutputStream()).thenReturn(sent);
+
+        OutputStream out = new SshScpSpoolingOutputStream(new SshScpFile(connection, "/foo/bar.txt"), threshold);
+        out.write("hello".getBytes("UTF-8"));
+        out.write(" world".getBytes("UTF-8"));
+        out.close();
+        return sent.toString("UTF-8");
+    }
 }
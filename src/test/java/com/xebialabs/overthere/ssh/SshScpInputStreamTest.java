@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SshScpInputStreamTest {
+
+    private static final String SCP_COMMAND_LINE = "scp -f /tmp/file";
+
+    private Session session;
+    private Session.Command command;
+    private ByteArrayOutputStream sent;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        session = mock(Session.class);
+        command = mock(Session.Command.class);
+        sent = new ByteArrayOutputStream();
+        when(session.exec(SCP_COMMAND_LINE)).thenReturn(command);
+        when(command.getOutputStream()).thenReturn(sent);
+    }
+
+    @Test
+    public void shouldStreamFileContents() throws IOException {
+        receive("T1450362480 0 1450362480 0\nC0644 5 file\nhello\0");
+
+        InputStream in = SshScpInputStream.open(session, SCP_COMMAND_LINE, "/tmp/file");
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] buf = new byte[2];
+        for (int n; (n = in.read(buf)) != -1; ) {
+            contents.write(buf, 0, n);
+        }
+        in.close();
+
+        assertThat(contents.toString("UTF-8"), equalTo("hello"));
+        assertThat(sent.toByteArray(), equalTo(new byte[4]));
+        verify(session).close();
+    }
+
+    @Test
+    public void shouldReportErrorOfScp() throws IOException {
+        receive("\1scp: /tmp/file: No such file or directory\n");
+
+        try {
+            SshScpInputStream.open(session, SCP_COMMAND_LINE, "/tmp/file");
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException expected) {
+            assertThat(expected.getMessage(), containsString("No such file or directory"));
+        }
+        verify(session).close();
+    }
+
+    @Test
+    public void shouldAbortWhenClosedBeforeEndOfFile() throws IOException {
+        receive("C0644 5 file\nhe");
+
+        InputStream in = SshScpInputStream.open(session, SCP_COMMAND_LINE, "/tmp/file");
+        assertThat(in.read(), equalTo((int) 'h'));
+        in.close();
+
+        assertThat(sent.toByteArray(), equalTo(new byte[2]));
+        verify(session).close();
+    }
+
+    private void receive(String data) throws IOException {
+        when(command.getInputStream()).thenReturn(new ByteArrayInputStream(data.getBytes("UTF-8")));
+    }
+
+}
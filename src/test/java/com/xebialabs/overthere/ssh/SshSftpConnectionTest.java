@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPEngine;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.CONNECTION_TYPE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.MAX_CHANNELS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_CLIENT_POOL_SIZE;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SSH_PROTOCOL;
+import static com.xebialabs.overthere.ssh.SshConnectionType.SFTP;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SshSftpConnectionTest {
+
+    private ConnectionOptions options;
+
+    private List<SFTPClient> opened;
+
+    @BeforeMethod
+    public void init() {
+        options = new ConnectionOptions();
+        options.set(CONNECTION_TYPE, SFTP);
+        options.set(OPERATING_SYSTEM, UNIX);
+        options.set(ADDRESS, "nowhere.example.com");
+        options.set(USERNAME, "some-user");
+        opened = new ArrayList<SFTPClient>();
+    }
+
+    @Test
+    public void shouldReuseReleasedClient() throws IOException {
+        SshSftpConnection connection = newConnection();
+
+        SFTPClient client = connection.leaseSftp();
+        connection.releaseSftp(client);
+
+        assertThat(connection.leaseSftp(), sameInstance(client));
+        assertThat(opened.size(), equalTo(1));
+        verify(client, never()).close();
+    }
+
+    @Test
+    public void shouldOpenAnotherClientWhenAllAreLeased() throws IOException {
+        SshSftpConnection connection = newConnection();
+
+        SFTPClient first = connection.leaseSftp();
+        SFTPClient second = connection.leaseSftp();
+
+        assertThat(second, not(sameInstance(first)));
+        assertThat(opened.size(), equalTo(2));
+    }
+
+    @Test
+    public void shouldOpenDedicatedClientsWhenAllPooledClientsAreLeased() throws IOException {
+        options.set(SFTP_CLIENT_POOL_SIZE, 2);
+        SshSftpConnection connection = newConnection();
+
+        List<SFTPClient> clients = new ArrayList<SFTPClient>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(connection.leaseSftp());
+        }
+        for (SFTPClient client : clients) {
+            connection.releaseSftp(client);
+        }
+
+        assertThat(opened.size(), equalTo(4));
+        verify(clients.get(0), never()).close();
+        verify(clients.get(1), never()).close();
+        verify(clients.get(2)).close();
+        verify(clients.get(3)).close();
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldOpenMoreStreamsThanPoolSizeOnOneThread() throws IOException {
+        options.set(SFTP_CLIENT_POOL_SIZE, 2);
+        options.set(SFTP_MAX_OUTSTANDING_REQUESTS, 1);
+        SshSftpConnection connection = newConnection();
+
+        List<InputStream> streams = new ArrayList<InputStream>();
+        for (int i = 0; i < 5; i++) {
+            streams.add(connection.getFile("/tmp/file" + i).getInputStream());
+        }
+        for (InputStream stream : streams) {
+            stream.close();
+        }
+
+        assertThat(opened.size(), equalTo(5));
+        assertThat(connection.leaseSftp(), sameInstance(opened.get(1)));
+        assertThat(connection.leaseSftp(), sameInstance(opened.get(0)));
+        assertThat(opened.size(), equalTo(5));
+    }
+
+    @Test
+    public void shouldNotOpenClientForParallelChannelWhenAllChannelsAreInUse() throws IOException {
+        options.set(MAX_CHANNELS, 1);
+        SshSftpConnection connection = new SshSftpUnixConnection(SSH_PROTOCOL, options, new DefaultAddressPortMapper()) {
+            @Override
+            protected boolean hasAvailableChannel() {
+                return false;
+            }
+        };
+
+        assertThat(connection.tryLeaseSftp(), nullValue());
+    }
+
+    @Test
+    public void shouldKeepFewerIdleClientsThanMaxChannels() throws IOException {
+        options.set(MAX_CHANNELS, 3);
+        SshSftpConnection connection = newConnection();
+
+        List<SFTPClient> clients = new ArrayList<SFTPClient>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(connection.leaseSftp());
+        }
+        for (SFTPClient client : clients) {
+            connection.releaseSftp(client);
+        }
+
+        verify(clients.get(0), never()).close();
+        verify(clients.get(1), never()).close();
+        verify(clients.get(2)).close();
+        verify(clients.get(3)).close();
+    }
+
+    @Test
+    public void shouldNotKeepIdleClientsWhenOnlyOneChannelIsAllowed() throws IOException {
+        options.set(MAX_CHANNELS, 1);
+        SshSftpConnection connection = newConnection();
+
+        SFTPClient client = connection.leaseSftp();
+        connection.releaseSftp(client);
+
+        verify(client).close();
+    }
+
+    @Test
+    public void shouldCloseIdleClientsToFreeChannels() throws IOException {
+        SshSftpConnection connection = newConnection();
+
+        SFTPClient idle = connection.leaseSftp();
+        SFTPClient leased = connection.leaseSftp();
+        connection.releaseSftp(idle);
+        connection.closeIdleChannels();
+
+        verify(idle).close();
+        verify(leased, never()).close();
+        assertThat(connection.leaseSftp(), not(sameInstance(idle)));
+    }
+
+    @Test
+    public void shouldNotReuseClosedClient() throws IOException {
+        SshSftpConnection connection = newConnection();
+
+        SFTPClient client = connection.leaseSftp();
+        connection.releaseSftp(client);
+        when(client.getSFTPEngine().getSubsystem().isOpen()).thenReturn(false);
+
+        assertThat(connection.leaseSftp(), not(sameInstance(client)));
+        verify(client).close();
+    }
+
+    @Test
+    public void shouldCloseIdleClientsAndLateReleasesWhenConnectionIsClosed() throws IOException {
+        SshSftpConnection connection = newConnection();
+
+        SFTPClient idle = connection.leaseSftp();
+        SFTPClient leased = connection.leaseSftp();
+        connection.releaseSftp(idle);
+        connection.doClose();
+        verify(idle).close();
+
+        connection.releaseSftp(leased);
+        verify(leased).close();
+    }
+
+    private SshSftpConnection newConnection() {
+        return new SshSftpUnixConnection(SSH_PROTOCOL, options, new DefaultAddressPortMapper()) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected SFTPClient newSftpClient() throws IOException {
+                SFTPClient client = mock(SFTPClient.class);
+                RemoteFile file = mock(RemoteFile.class);
+                when(client.open(anyString(), any(Set.class))).thenReturn(file);
+                SFTPEngine engine = mock(SFTPEngine.class);
+                Session.Subsystem subsystem = mock(Session.Subsystem.class);
+                when(client.getSFTPEngine()).thenReturn(engine);
+                when(engine.getSubsystem()).thenReturn(subsystem);
+                when(subsystem.isOpen()).thenReturn(true);
+                opened.add(client);
+                return client;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.OverthereFile;
+
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+import net.schmizz.sshj.sftp.PathComponents;
+import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SshSftpFileTest {
+
+    private SshSftpConnection connection;
+    private SFTPClient sftpClient;
+
+    @BeforeMethod
+    public void setup() {
+        connection = mock(SshSftpConnection.class);
+        sftpClient = mock(SFTPClient.class);
+        when(connection.getHostOperatingSystem()).thenReturn(UNIX);
+        when(connection.leaseSftp()).thenReturn(sftpClient);
+        when(connection.pathToSftpPath("/foo")).thenReturn("/foo");
+        when(connection.pathToSftpPath("/foo/bar")).thenReturn("/foo/bar");
+    }
+
+    @Test
+    public void shouldReuseAttributesUntilFileSystemChanges() throws IOException {
+        when(sftpClient.stat("/foo")).thenReturn(new FileAttributes.Builder().withType(FileMode.Type.DIRECTORY).withAtimeMtime(1, 2).build());
+        SshSftpFile file = new SshSftpFile(connection, "/foo");
+
+        assertThat("Should be a directory", file.isDirectory());
+        assertThat("Should not be a file", !file.isFile());
+        assertThat(file.lastModified(), equalTo(2000L));
+        verify(sftpClient, times(1)).stat("/foo");
+
+        when(connection.getFileSystemGeneration()).thenReturn(1L);
+        assertThat("Should be a directory", file.isDirectory());
+        file.refresh();
+        assertThat("Should be a directory", file.isDirectory());
+        verify(sftpClient, times(3)).stat("/foo");
+    }
+
+    @Test
+    public void shouldKeepAttributesReturnedByListing() throws IOException {
+        SshSftpFile dir = new SshSftpFile(connection, "/foo");
+        SshSftpFile child = new SshSftpFile(connection, "/foo/bar");
+        when(connection.getFile(dir, "bar")).thenReturn(child);
+        FileAttributes attributes = new FileAttributes.Builder().withType(FileMode.Type.REGULAR).withSize(12).build();
+        when(sftpClient.ls("/foo")).thenReturn(Arrays.asList(new RemoteResourceInfo(new PathComponents("/foo", "bar", "/"), attributes)));
+
+        List<OverthereFile> files = dir.listFiles();
+        assertThat(files.size(), equalTo(1));
+        assertThat("Should exist", files.get(0).exists());
+        assertThat("Should be a file", files.get(0).isFile());
+        assertThat(files.get(0).length(), equalTo(12L));
+        verify(sftpClient, never()).stat("/foo/bar");
+        verify(sftpClient, never()).statExistence("/foo/bar");
+    }
+
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.local.LocalFile;
+import com.xebialabs.overthere.spi.PositionalReadable;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class SshSftpParallelUploadTest {
+
+    private static final int CHUNK_SIZE = 100000;
+
+    private ScheduledExecutorService scheduler;
+    private byte[] contents;
+    private LocalFile source;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        scheduler = Executors.newScheduledThreadPool(2);
+        contents = new byte[10 * CHUNK_SIZE + 1234];
+        new Random(42).nextBytes(contents);
+
+        File file = File.createTempFile("parallel_upload", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        source = (LocalFile) LocalFile.valueOf(file);
+    }
+
+    @AfterClass
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldUploadChunksOverAllChannels() throws IOException {
+        SimulatedSftpRemoteFile target = new SimulatedSftpRemoteFile(scheduler, 1, Integer.MAX_VALUE, new byte[0]);
+        TestUpload upload = new TestUpload(target, 4, 4);
+        upload.upload();
+
+        assertThat(target.getContents(), equalTo(contents));
+        assertThat(upload.opened.get(), equalTo(4));
+        assertThat(upload.closed.get(), equalTo(4));
+    }
+
+    @Test
+    public void shouldContinueOverChannelsThatCouldBeOpened() throws IOException {
+        SimulatedSftpRemoteFile target = new SimulatedSftpRemoteFile(scheduler, 0, Integer.MAX_VALUE, new byte[0]);
+        TestUpload upload = new TestUpload(target, 4, 2);
+        upload.upload();
+
+        assertThat(target.getContents(), equalTo(contents));
+        assertThat(upload.opened.get(), equalTo(2));
+        assertThat(upload.closed.get(), equalTo(2));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldFailWhenFirstChannelCannotBeOpened() throws IOException {
+        SimulatedSftpRemoteFile target = new SimulatedSftpRemoteFile(scheduler, 0, Integer.MAX_VALUE, new byte[0]);
+        new TestUpload(target, 4, 0).upload();
+    }
+
+    @Test
+    public void shouldFailWhenWritesFail() throws IOException {
+        SimulatedSftpRemoteFile target = new SimulatedSftpRemoteFile(scheduler, 0, Integer.MAX_VALUE, new byte[0]);
+        target.failWrites();
+        TestUpload upload = new TestUpload(target, 3, 3);
+        try {
+            upload.upload();
+            throw new AssertionError("Expected upload to fail");
+        } catch (IOException expected) {
+            assertThat(upload.closed.get(), equalTo(3));
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "Uploaded file has .* bytes instead of .*")
+    public void shouldFailWhenUploadedFileHasWrongSize() throws IOException {
+        SimulatedSftpRemoteFile target = new SimulatedSftpRemoteFile(scheduler, 0, Integer.MAX_VALUE, new byte[0]);
+        new TestUpload(target, 2, 2) {
+            @Override
+            protected long getUploadedLength() {
+                return contents.length - 1;
+            }
+        }.upload();
+    }
+
+    @Test(timeOut = 20000)
+    public void shouldNotCloseChannelsWhileWorkersAreWritingWhenInterrupted() throws IOException {
+        SimulatedSftpRemoteFile target = new SimulatedSftpRemoteFile(scheduler, 0, Integer.MAX_VALUE, new byte[0]);
+        final AtomicInteger openChunks = new AtomicInteger();
+        final AtomicInteger openChunksAtClose = new AtomicInteger();
+        PositionalReadable slowSource = new PositionalReadable() {
+            @Override
+            public InputStream getInputStream(long offset) {
+                openChunks.incrementAndGet();
+                return new FilterInputStream(source.getInputStream(offset)) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        // Ignores interrupts, like a read that is blocked on I/O
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+                        while (System.nanoTime() < deadline) {
+                            LockSupport.parkNanos(deadline - System.nanoTime());
+                        }
+                        return super.read(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        openChunks.decrementAndGet();
+                        super.close();
+                    }
+                };
+            }
+        };
+        TestUpload upload = new TestUpload(slowSource, target, 3, 3) {
+            @Override
+            protected void closeChannel(int channel, SshSftpRemoteFile target) {
+                openChunksAtClose.addAndGet(openChunks.get());
+                super.closeChannel(channel, target);
+            }
+        };
+        final Thread uploader = Thread.currentThread();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                uploader.interrupt();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        try {
+            upload.upload();
+            throw new AssertionError("Expected upload to fail");
+        } catch (IOException expected) {
+            assertThat(Thread.interrupted(), equalTo(true));
+            assertThat(openChunksAtClose.get(), equalTo(0));
+            assertThat(upload.closed.get(), equalTo(3));
+        }
+    }
+
+    private class TestUpload extends SshSftpParallelUpload {
+
+        private final SimulatedSftpRemoteFile target;
+
+        private final int openableChannels;
+
+        final AtomicInteger opened = new AtomicInteger();
+
+        final AtomicInteger closed = new AtomicInteger();
+
+        TestUpload(SimulatedSftpRemoteFile target, int channels, int openableChannels) {
+            this(source, target, channels, openableChannels);
+        }
+
+        TestUpload(PositionalReadable source, SimulatedSftpRemoteFile target, int channels, int openableChannels) {
+            super(source, contents.length, channels, CHUNK_SIZE, 8);
+            this.target = target;
+            this.openableChannels = openableChannels;
+        }
+
+        @Override
+        protected SshSftpRemoteFile openChannel(int channel) throws IOException {
+            if (channel >= openableChannels) {
+                throw new IOException("Channel " + channel + " refused");
+            }
+            opened.incrementAndGet();
+            return target;
+        }
+
+        @Override
+        protected void closeChannel(int channel, SshSftpRemoteFile target) {
+            closed.incrementAndGet();
+        }
+
+        @Override
+        protected long getUploadedLength() throws IOException {
+            return target.getContents().length;
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT;
+import static java.lang.String.format;
+
+/**
+ * Compares the throughput of the SFTP streams of sshj, which have one request in flight, with the read-ahead and
+ * write-behind streams of {@link SshSftpRemoteFile}, against a file that answers after a simulated round trip time. Run
+ * it with <code>java -cp ... com.xebialabs.overthere.ssh.SshSftpRemoteFileBenchmark [size in MB]</code>.
+ */
+public class SshSftpRemoteFileBenchmark {
+
+    private static final long[] ROUND_TRIP_MILLIS = { 0, 5, 20, 50 };
+
+    public static void main(String[] args) throws IOException {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 4) * 1024 * 1024;
+        byte[] contents = new byte[size];
+        new Random().nextBytes(contents);
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            System.out.println(format("%-10s %-36s %10s", "RTT (ms)", "stream", "MB/s"));
+            for (long rtt : ROUND_TRIP_MILLIS) {
+                SimulatedSftpRemoteFile file = new SimulatedSftpRemoteFile(scheduler, rtt, Integer.MAX_VALUE, contents);
+                report(rtt, "RemoteFileInputStream", size, read(file.new RemoteFileInputStream()));
+                report(rtt, "ReadAheadInputStream(" + SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT + ")", size,
+                        read(file.new ReadAheadInputStream(SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT)));
+
+                file = new SimulatedSftpRemoteFile(scheduler, rtt, Integer.MAX_VALUE, new byte[0]);
+                report(rtt, "RemoteFileOutputStream", size, write(file.new RemoteFileOutputStream(), contents));
+                report(rtt, "WriteBehindOutputStream(" + SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT + ")", size,
+                        write(file.new WriteBehindOutputStream(SFTP_MAX_OUTSTANDING_REQUESTS_DEFAULT), contents));
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static long read(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        byte[] buf = new byte[SshSftpRemoteFile.CHUNK_SIZE];
+        while (in.read(buf) != -1) {
+            // Discard the contents
+        }
+        in.close();
+        return System.nanoTime() - start;
+    }
+
+    private static long write(OutputStream out, byte[] contents) throws IOException {
+        long start = System.nanoTime();
+        for (int off = 0; off < contents.length; off += SshSftpRemoteFile.CHUNK_SIZE) {
+            out.write(contents, off, Math.min(SshSftpRemoteFile.CHUNK_SIZE, contents.length - off));
+        }
+        out.close();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(long rtt, String stream, int size, long nanos) {
+        System.out.println(format("%-10d %-36s %10.1f", rtt, stream, size / (nanos / 1e9) / (1024 * 1024)));
+    }
+
+}
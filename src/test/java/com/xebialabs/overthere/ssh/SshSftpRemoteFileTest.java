@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+public class SshSftpRemoteFileTest {
+
+    private ScheduledExecutorService scheduler;
+    private byte[] contents;
+
+    @BeforeClass
+    public void setup() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        contents = new byte[10 * SshSftpRemoteFile.CHUNK_SIZE + 1234];
+        new Random(42).nextBytes(contents);
+    }
+
+    @AfterClass
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldReadFileWithRequestsInFlight() throws IOException {
+        SimulatedSftpRemoteFile file = new SimulatedSftpRemoteFile(scheduler, 1, Integer.MAX_VALUE, contents);
+        assertThat(readFully(file.new ReadAheadInputStream(8)), equalTo(contents));
+    }
+
+    @Test
+    public void shouldReadFileFromServerThatLimitsReadLength() throws IOException {
+        SimulatedSftpRemoteFile file = new SimulatedSftpRemoteFile(scheduler, 0, 10000, contents);
+        assertThat(readFully(file.new ReadAheadInputStream(8)), equalTo(contents));
+    }
+
+    @Test
+    public void shouldKeepRequestingFullChunksAfterShortRead() throws IOException {
+        SimulatedSftpRemoteFile file = new SimulatedSftpRemoteFile(scheduler, 0, 10000, contents);
+        readFully(file.new ReadAheadInputStream(8));
+
+        int fullChunks = 0;
+        for (int len : file.getReadLengths()) {
+            if (len == SshSftpRemoteFile.CHUNK_SIZE) {
+                fullChunks++;
+            }
+        }
+        assertThat(fullChunks, greaterThanOrEqualTo(contents.length / SshSftpRemoteFile.CHUNK_SIZE));
+    }
+
+    @Test
+    public void shouldReadEmptyFile() throws IOException {
+        SimulatedSftpRemoteFile file = new SimulatedSftpRemoteFile(scheduler, 0, Integer.MAX_VALUE, new byte[0]);
+        assertThat(file.new ReadAheadInputStream(8).read(), equalTo(-1));
+    }
+
+    @Test
+    public void shouldWriteFileWithRequestsInFlight() throws IOException {
+        SimulatedSftpRemoteFile file = new SimulatedSftpRemoteFile(scheduler, 1, Integer.MAX_VALUE, new byte[0]);
+        OutputStream out = file.new WriteBehindOutputStream(8);
+        for (int off = 0; off < contents.length; off += 50000) {
+            out.write(contents, off, Math.min(50000, contents.length - off));
+        }
+        out.close();
+        assertThat(file.getContents(), equalTo(contents));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldReportFailedWriteWhenClosed() throws IOException {
+        SimulatedSftpRemoteFile file = new SimulatedSftpRemoteFile(scheduler, 0, Integer.MAX_VALUE, new byte[0]);
+        file.failWrites();
+        OutputStream out = file.new WriteBehindOutputStream(8);
+        out.write(contents, 0, 100);
+        out.close();
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) != -1; ) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+}
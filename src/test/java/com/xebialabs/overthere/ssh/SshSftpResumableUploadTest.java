@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.local.LocalFile;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class SshSftpResumableUploadTest {
+
+    private byte[] contents;
+    private OverthereFile source;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        contents = new byte[300000];
+        new Random(42).nextBytes(contents);
+
+        File file = File.createTempFile("resumable_upload", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        source = LocalFile.valueOf(file);
+    }
+
+    @Test
+    public void shouldUploadToPartialFileAndPublishIt() throws IOException {
+        InMemoryUpload upload = new InMemoryUpload(null, false);
+        upload.upload();
+
+        assertThat(upload.published, equalTo(contents));
+        assertThat(upload.bytesWritten, equalTo((long) contents.length));
+    }
+
+    @Test
+    public void shouldResumeInterruptedUpload() throws IOException {
+        InMemoryUpload interrupted = new InMemoryUpload(null, false);
+        interrupted.failAfter = 100000;
+        try {
+            interrupted.upload();
+            throw new AssertionError("Expected upload to be interrupted");
+        } catch (IOException expected) {
+            assertThat(interrupted.published, nullValue());
+        }
+
+        InMemoryUpload retry = new InMemoryUpload(interrupted.partial, false);
+        retry.upload();
+
+        assertThat(retry.published, equalTo(contents));
+        assertThat(retry.bytesWritten, equalTo((long) contents.length - interrupted.partial.length));
+    }
+
+    @Test
+    public void shouldResumeWhenChecksumOfPartialFileMatches() throws IOException {
+        InMemoryUpload upload = new InMemoryUpload(Arrays.copyOf(contents, 12345), true);
+
+        assertThat(upload.getResumeOffset(), equalTo(12345L));
+        upload.upload();
+        assertThat(upload.published, equalTo(contents));
+    }
+
+    @Test
+    public void shouldStartOverWhenChecksumOfPartialFileDiffers() throws IOException {
+        byte[] corrupted = Arrays.copyOf(contents, 12345);
+        corrupted[100]++;
+        InMemoryUpload upload = new InMemoryUpload(corrupted, true);
+
+        assertThat(upload.getResumeOffset(), equalTo(0L));
+        upload.upload();
+        assertThat(upload.published, equalTo(contents));
+    }
+
+    @Test
+    public void shouldStartOverWhenPartialFileIsLargerThanSource() throws IOException {
+        InMemoryUpload upload = new InMemoryUpload(new byte[contents.length + 1], false);
+
+        assertThat(upload.getResumeOffset(), equalTo(0L));
+        upload.upload();
+        assertThat(upload.published, equalTo(contents));
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private class InMemoryUpload extends SshSftpResumableUpload {
+
+        private final boolean checksums;
+
+        byte[] partial;
+
+        byte[] published;
+
+        long bytesWritten;
+
+        long failAfter = Long.MAX_VALUE;
+
+        InMemoryUpload(byte[] partial, boolean checksums) {
+            super(source);
+            this.partial = partial;
+            this.checksums = checksums;
+        }
+
+        @Override
+        protected long getPartialLength() {
+            return partial == null ? -1 : partial.length;
+        }
+
+        @Override
+        protected String getPartialChecksum(long prefixLength) {
+            return checksums ? sha256(Arrays.copyOf(partial, (int) prefixLength)).toUpperCase() : null;
+        }
+
+        @Override
+        protected OutputStream openPartial(final long offset) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (offset > 0) {
+                out.write(partial, 0, (int) offset);
+            }
+            partial = out.toByteArray();
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (bytesWritten + len > failAfter) {
+                        throw new IOException("Connection lost");
+                    }
+                    out.write(b, off, len);
+                    bytesWritten += len;
+                    partial = out.toByteArray();
+                }
+            };
+        }
+
+        @Override
+        protected void publish() {
+            published = partial;
+            partial = null;
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.apache.commons.codec.binary.Base64;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SshStreamingCommandTest {
+
+    private static final String REMOTE_PATH = "/etc/secret";
+
+    private SshProcess process;
+    private ByteArrayOutputStream sent;
+    private byte[] contents;
+
+    @BeforeMethod
+    public void setup() {
+        process = mock(SshProcess.class);
+        sent = new ByteArrayOutputStream();
+        when(process.getStdin()).thenReturn(sent);
+        when(process.getStderr()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        contents = new byte[100000];
+        new Random(42).nextBytes(contents);
+    }
+
+    @Test
+    public void shouldReadRawContents() throws IOException {
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream(contents));
+
+        InputStream in = SshStreamingCommandInputStream.open(process, false, REMOTE_PATH);
+        assertThat(readFully(in), equalTo(contents));
+        in.close();
+
+        verify(process).waitFor();
+        verify(process).destroy();
+    }
+
+    @Test
+    public void shouldSkipPasswordPromptAndDecodeContentsReadInPty() throws IOException {
+        String encoded = Base64.encodeBase64String(contents).replaceAll("(.{76})", "$1\r\n");
+        String output = "[sudo] password for overthere: \r\n" + SshStreamingCommandInputStream.MARKER + "\r\n" + encoded + "\r\n"
+                + SshStreamingCommandInputStream.END_MARKER + "\r\n0\r\n";
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream(output.getBytes("US-ASCII")));
+
+        InputStream in = SshStreamingCommandInputStream.open(process, true, REMOTE_PATH);
+        assertThat(readFully(in), equalTo(contents));
+        in.close();
+    }
+
+    @Test
+    public void shouldReportErrorWhenCommandFails() throws IOException {
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(process.getStderr()).thenReturn(new ByteArrayInputStream("cat: /etc/secret: No such file or directory\n".getBytes("US-ASCII")));
+        when(process.waitFor()).thenReturn(1);
+
+        InputStream in = SshStreamingCommandInputStream.open(process, false, REMOTE_PATH);
+        try {
+            in.read();
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException expected) {
+            assertThat(expected.getMessage(), containsString("No such file or directory"));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldReadErrorsWhileReadingRawContents() throws IOException {
+        // Like a command that blocks on a full stderr channel, stdout only sends the contents once stderr has been read
+        final CountDownLatch errorsRead = new CountDownLatch(1);
+        byte[] errors = new byte[100000];
+        when(process.getStderr()).thenReturn(new ByteArrayInputStream(errors) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                int n = super.read(b, off, len);
+                if (n == -1) {
+                    errorsRead.countDown();
+                }
+                return n;
+            }
+        });
+        final InputStream data = new ByteArrayInputStream(contents);
+        when(process.getStdout()).thenReturn(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                awaitErrorsRead();
+                return data.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                awaitErrorsRead();
+                return data.read(b, off, len);
+            }
+
+            private void awaitErrorsRead() throws IOException {
+                try {
+                    if (!errorsRead.await(5, SECONDS)) {
+                        throw new IOException("Command is blocked on its error output");
+                    }
+                } catch (InterruptedException exc) {
+                    throw new InterruptedIOException();
+                }
+            }
+        });
+
+        InputStream in = SshStreamingCommandInputStream.open(process, false, REMOTE_PATH);
+        assertThat(readFully(in), equalTo(contents));
+        in.close();
+    }
+
+    @Test
+    public void shouldReportErrorOfScriptReadInPty() throws IOException {
+        String output = SshStreamingCommandInputStream.MARKER + "\r\n" + SshStreamingCommandInputStream.END_MARKER
+                + "\r\ncat: /tmp/secret: Permission denied\r\n1\r\n";
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream(output.getBytes("US-ASCII")));
+
+        InputStream in = SshStreamingCommandInputStream.open(process, true, REMOTE_PATH);
+        try {
+            readFully(in);
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException expected) {
+            assertThat(expected.getMessage(), containsString("Permission denied"));
+            assertThat(expected.getMessage(), containsString("errno=1"));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void shouldReportOutputWhenCommandExitsBeforeMarker() throws IOException {
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream("Password: \r\nsu: Authentication failure\r\n".getBytes("US-ASCII")));
+
+        try {
+            SshStreamingCommandInputStream.open(process, true, REMOTE_PATH);
+            throw new AssertionError("Expected an EOFException");
+        } catch (EOFException expected) {
+            assertThat(expected.getMessage(), containsString("Authentication failure"));
+        }
+        verify(process).destroy();
+    }
+
+    @Test
+    public void shouldWriteRawContentsAndSignalEndOfFile() throws IOException {
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream(new byte[0]));
+
+        OutputStream out = SshStreamingCommandOutputStream.open(process, false, REMOTE_PATH);
+        out.write(contents, 0, 1000);
+        out.write(contents, 1000, contents.length - 1000);
+        out.close();
+
+        assertThat(sent.toByteArray(), equalTo(contents));
+        verify(process).closeStdin();
+        verify(process).waitFor();
+    }
+
+    @Test
+    public void shouldEncodeContentsWrittenInPtyAfterMarker() throws IOException {
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream((SshStreamingCommandInputStream.MARKER + "\r\n").getBytes("US-ASCII")));
+
+        OutputStream out = SshStreamingCommandOutputStream.open(process, true, REMOTE_PATH);
+        out.write(contents);
+        out.close();
+
+        String written = sent.toString("US-ASCII");
+        assertThat(written, endsWith("\n\u0004"));
+        for (String line : written.split("\n")) {
+            assertThat(line.length() <= 76, equalTo(true));
+        }
+        assertThat(Base64.decodeBase64(written.substring(0, written.length() - 1)), equalTo(contents));
+        verify(process, never()).closeStdin();
+    }
+
+    @Test
+    public void shouldReportErrorWhenWriteFails() throws IOException {
+        when(process.getStdout()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(process.getStderr()).thenReturn(new ByteArrayInputStream("sh: /etc/secret: Read-only file system\n".getBytes("US-ASCII")));
+        when(process.waitFor()).thenReturn(1);
+
+        OutputStream out = SshStreamingCommandOutputStream.open(process, false, REMOTE_PATH);
+        out.write(contents);
+        try {
+            out.close();
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException expected) {
+            assertThat(expected.getMessage(), containsString("Read-only file system"));
+        }
+        verify(process).destroy();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) != -1; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+}
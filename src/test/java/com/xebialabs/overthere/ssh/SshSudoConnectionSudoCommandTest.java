@@ -177,4 +177,15 @@ public class SshSudoConnectionSudoCommandTest {
         assertThat(prefixed.get(3).toString(UNIX, false), equalTo("a\\ \\;\\ b"));
     }
 
+    @Test
+    public void commandWithOrShouldHaveTwoSudoSectionsIfNotQuotingCommand() {
+        connection = new SshSudoConnection(SSH_PROTOCOL, connectionOptions, resolver);
+
+        CmdLine cmdLine = new CmdLine().addArgument("a").addRaw("||").addArgument("b");
+        List<CmdLineArgument> prefixed = connection.prefixWithElevationCommand(cmdLine).getArguments();
+        assertThat(prefixed.size(), equalTo(9));
+        assertThat(prefixed.get(0).toString(UNIX, false), equalTo("sudo"));
+        assertThat(prefixed.get(5).toString(UNIX, false), equalTo("sudo"));
+    }
+
 }
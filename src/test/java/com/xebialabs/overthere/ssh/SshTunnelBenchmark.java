@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.Overthere;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler;
+
+import static com.xebialabs.overthere.ConnectionOptions.*;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.*;
+import static com.xebialabs.overthere.ssh.SshConnectionType.SCP;
+import static com.xebialabs.overthere.util.CapturingOverthereExecutionOutputHandler.capturingHandler;
+import static java.lang.String.format;
+
+/**
+ * Compares the loopback forwarder of {@link SshTunnelConnection} with the sockets carried directly over direct-tcpip
+ * channels, by connecting to a Unix host through a jumpstation and measuring the connect time, the average round trip
+ * of a trivial command and the throughput of a stream of zeroes. Run it with
+ * <code>java -cp ... com.xebialabs.overthere.ssh.SshTunnelBenchmark jumpstation jumpUser jumpPassword target targetUser targetPassword [size in MB]</code>.
+ */
+public class SshTunnelBenchmark {
+
+    private static final int ROUND_TRIPS = 50;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 6) {
+            System.err.println("Usage: SshTunnelBenchmark jumpstation jumpUser jumpPassword target targetUser targetPassword [size in MB]");
+            System.exit(1);
+        }
+        long size = (args.length > 6 ? Long.parseLong(args[6]) : 64) * 1024 * 1024;
+
+        System.out.println(format("%-16s %12s %12s %10s", "forwarder", "connect (ms)", "rtt (ms)", "MB/s"));
+        for (boolean direct : new boolean[] { false, true }) {
+            ConnectionOptions jumpstationOptions = new ConnectionOptions();
+            jumpstationOptions.set(PROTOCOL, SSH_PROTOCOL);
+            jumpstationOptions.set(OPERATING_SYSTEM, UNIX);
+            jumpstationOptions.set(ADDRESS, args[0]);
+            jumpstationOptions.set(USERNAME, args[1]);
+            jumpstationOptions.set(PASSWORD, args[2]);
+            jumpstationOptions.set(TUNNEL_DIRECT_CHANNELS, direct);
+
+            ConnectionOptions options = new ConnectionOptions();
+            options.set(CONNECTION_TYPE, SCP);
+            options.set(OPERATING_SYSTEM, UNIX);
+            options.set(ADDRESS, args[3]);
+            options.set(USERNAME, args[4]);
+            options.set(PASSWORD, args[5]);
+            options.set(JUMPSTATION, jumpstationOptions);
+
+            long start = System.nanoTime();
+            OverthereConnection connection = Overthere.getConnection(SSH_PROTOCOL, options);
+            try {
+                long connectNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < ROUND_TRIPS; i++) {
+                    CapturingOverthereExecutionOutputHandler handler = capturingHandler();
+                    connection.execute(handler, handler, CmdLine.build("true"));
+                }
+                long roundTripNanos = (System.nanoTime() - start) / ROUND_TRIPS;
+
+                start = System.nanoTime();
+                OverthereProcess process = connection.startProcess(CmdLine.build("head", "-c", Long.toString(size), "/dev/zero"));
+                try {
+                    InputStream in = process.getStdout();
+                    byte[] buf = new byte[32768];
+                    while (in.read(buf) != -1) {
+                        // Discard the contents
+                    }
+                    process.waitFor();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(exc);
+                } finally {
+                    process.destroy();
+                }
+                long streamNanos = System.nanoTime() - start;
+
+                System.out.println(format("%-16s %12.1f %12.2f %10.1f", direct ? "direct-tcpip" : "loopback", connectNanos / 1e6,
+                        roundTripNanos / 1e6, size / (streamNanos / 1e9) / (1024 * 1024)));
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+}
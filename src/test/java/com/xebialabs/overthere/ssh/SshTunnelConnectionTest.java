@@ -22,13 +22,41 @@
  */
 package com.xebialabs.overthere.ssh;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.hamcrest.Matchers;
 import org.testng.annotations.Test;
 
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
+
+import static com.xebialabs.overthere.ConnectionOptions.ADDRESS;
+import static com.xebialabs.overthere.ConnectionOptions.OPERATING_SYSTEM;
+import static com.xebialabs.overthere.ConnectionOptions.USERNAME;
+import static com.xebialabs.overthere.OperatingSystemFamily.UNIX;
+import static com.xebialabs.overthere.ssh.SshConnectionBuilder.PORT_ALLOCATION_RANGE_START;
+import static com.xebialabs.overthere.ssh.SshJumpstationConnectionBuilder.SSH_JUMPSTATION_PROTOCOL;
+import static java.net.InetSocketAddress.createUnresolved;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class SshTunnelConnectionTest {
@@ -48,4 +76,132 @@ public class SshTunnelConnectionTest {
         ServerSocket serverSocket2 = tunnelPortManager.bindToNextFreePort(1025);
         assertThat(serverSocket.getLocalPort(), Matchers.not(equalTo(serverSocket2.getLocalPort())));
     }
+
+    @Test
+    public void shouldBindToEphemeralPortWhenNoRangeIsConfigured() throws IOException {
+        ServerSocket serverSocket = new SshTunnelConnection.TunnelPortManager().bindToNextFreePort(0);
+        try {
+            assertThat(serverSocket.isBound(), equalTo(true));
+            assertThat(serverSocket.getLocalPort(), greaterThan(0));
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void shouldSkipPortsThatCannotBeBound() {
+        final AtomicInteger attempts = new AtomicInteger();
+        SshTunnelConnection.TunnelPortManager tunnelPortManager = new SshTunnelConnection.TunnelPortManager() {
+            @Override
+            protected ServerSocket tryBind(int localPort) {
+                attempts.incrementAndGet();
+                return localPort < 65530 ? null : boundTo(localPort);
+            }
+        };
+
+        assertThat(tunnelPortManager.bindToNextFreePort(65520).getLocalPort(), equalTo(65530));
+        assertThat(tunnelPortManager.bindToNextFreePort(65520).getLocalPort(), equalTo(65531));
+        assertThat(attempts.get(), equalTo(12));
+    }
+
+    @Test
+    public void shouldHandOutReleasedPortAgain() {
+        SshTunnelConnection.TunnelPortManager tunnelPortManager = new SshTunnelConnection.TunnelPortManager() {
+            @Override
+            protected ServerSocket tryBind(int localPort) {
+                return boundTo(localPort);
+            }
+        };
+
+        ServerSocket serverSocket = tunnelPortManager.bindToNextFreePort(65534);
+        assertThat(tunnelPortManager.bindToNextFreePort(65534).getLocalPort(), Matchers.not(equalTo(serverSocket.getLocalPort())));
+
+        tunnelPortManager.release(serverSocket.getLocalPort());
+        assertThat(tunnelPortManager.bindToNextFreePort(65534).getLocalPort(), equalTo(serverSocket.getLocalPort()));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldFailWhenAllPortsInRangeAreHandedOut() {
+        SshTunnelConnection.TunnelPortManager tunnelPortManager = new SshTunnelConnection.TunnelPortManager() {
+            @Override
+            protected ServerSocket tryBind(int localPort) {
+                return boundTo(localPort);
+            }
+        };
+
+        tunnelPortManager.bindToNextFreePort(65535);
+        tunnelPortManager.bindToNextFreePort(65535);
+    }
+
+    @Test
+    public void shouldNotHandOutDuplicatePortsToConcurrentTunnels() throws Exception {
+        final SshTunnelConnection.TunnelPortManager tunnelPortManager = new SshTunnelConnection.TunnelPortManager() {
+            @Override
+            protected ServerSocket tryBind(int localPort) {
+                return boundTo(localPort);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final Set<Integer> ports = Collections.synchronizedSet(new HashSet<Integer>());
+            Set<Future<?>> futures = new HashSet<Future<?>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < 100; j++) {
+                            ports.add(tunnelPortManager.bindToNextFreePort(2000).getLocalPort());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertThat(ports.size(), equalTo(800));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldStartLocalPortForwardOnlyForClientsThatDoNotUseTheSocketFactory() throws IOException {
+        ConnectionOptions options = new ConnectionOptions();
+        options.set(ADDRESS, "jumpstation.example.com");
+        options.set(USERNAME, "some-user");
+        options.set(OPERATING_SYSTEM, UNIX);
+        options.set(PORT_ALLOCATION_RANGE_START, 0);
+        SshTunnelConnection tunnel = new SshTunnelConnection(SSH_JUMPSTATION_PROTOCOL, options, DefaultAddressPortMapper.INSTANCE);
+        SSHClient client = mock(SSHClient.class);
+        LocalPortForwarder forwarder = mock(LocalPortForwarder.class);
+        when(client.newLocalPortForwarder(any(LocalPortForwarder.Parameters.class), any(ServerSocket.class))).thenReturn(forwarder);
+        tunnel.sshClient = client;
+
+        InetSocketAddress target = createUnresolved("target.example.com", 22);
+        InetSocketAddress local = tunnel.mapForSocketFactory(target);
+        assertThat(local.getHostString(), equalTo("localhost"));
+        assertThat(tunnel.unmap(local), equalTo(target));
+        assertThat(tunnel.mapForSocketFactory(target), equalTo(local));
+        verify(client, never()).newLocalPortForwarder(any(LocalPortForwarder.Parameters.class), any(ServerSocket.class));
+
+        assertThat(tunnel.map(target), equalTo(local));
+        assertThat(tunnel.map(target), equalTo(local));
+        verify(client, times(1)).newLocalPortForwarder(any(LocalPortForwarder.Parameters.class), any(ServerSocket.class));
+        tunnel.doClose();
+    }
+
+    private static ServerSocket boundTo(final int localPort) {
+        try {
+            return new ServerSocket() {
+                @Override
+                public int getLocalPort() {
+                    return localPort;
+                }
+            };
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
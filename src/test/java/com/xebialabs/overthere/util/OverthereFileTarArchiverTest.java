@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2008-2016, XebiaLabs B.V., All rights reserved.
+ *
+ *
+ * Overthere is licensed under the terms of the GPLv2
+ * <http://www.gnu.org/licenses/old-licenses/gpl-2.0.html>, like most XebiaLabs Libraries.
+ * There are special exceptions to the terms and conditions of the GPLv2 as it is applied to
+ * this software, see the FLOSS License Exception
+ * <http://github.com/xebialabs/overthere/blob/master/LICENSE>.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the Free Software Foundation; version 2
+ * of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth
+ * Floor, Boston, MA 02110-1301  USA
+ */
+package com.xebialabs.overthere.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.TemporaryFolder;
+import com.xebialabs.overthere.local.LocalFile;
+import com.xebialabs.overthere.spi.TarReadable;
+
+import static com.xebialabs.overthere.util.OverthereUtils.read;
+import static com.xebialabs.overthere.util.OverthereUtils.write;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class OverthereFileTarArchiverTest {
+
+    private TemporaryFolder temp = new TemporaryFolder();
+    private byte[] contents;
+
+    @BeforeMethod
+    public void createTree() throws IOException {
+        temp.create();
+        contents = new byte[20000];
+        new Random(7).nextBytes(contents);
+    }
+
+    @AfterMethod
+    public void deleteTree() {
+        temp.delete();
+    }
+
+    @Test
+    public void shouldExtractWhatWasArchived() {
+        OverthereFile src = sourceTree();
+        OverthereFile dst = LocalFile.valueOf(new File(temp.getRoot(), "dst"));
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        OverthereFileTarArchiver.archive(src, archive);
+        OverthereFileTarArchiver.extract(new ByteArrayInputStream(archive.toByteArray()), dst);
+
+        assertTree(dst);
+    }
+
+    @Test
+    public void shouldCopyDirectoryThroughTarArchiveOfSource() {
+        OverthereFile src = sourceTree();
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        OverthereFileTarArchiver.archive(src, archive);
+
+        OverthereFile tarSource = mock(OverthereFile.class, withSettings().extraInterfaces(TarReadable.class));
+        when(tarSource.exists()).thenReturn(true);
+        when(tarSource.isDirectory()).thenReturn(true);
+        when(((TarReadable) tarSource).getTarInputStream()).thenReturn(new ByteArrayInputStream(archive.toByteArray()));
+
+        OverthereFile dst = LocalFile.valueOf(new File(temp.getRoot(), "dst"));
+        OverthereFileCopier.copy(tarSource, dst);
+
+        assertTree(dst);
+    }
+
+    @Test
+    public void shouldExtractRelativeNamesAndHardLinks() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(archive);
+        tar.putArchiveEntry(new TarArchiveEntry("./"));
+        tar.closeArchiveEntry();
+        TarArchiveEntry file = new TarArchiveEntry("./file.bin");
+        file.setSize(contents.length);
+        tar.putArchiveEntry(file);
+        tar.write(contents);
+        tar.closeArchiveEntry();
+        TarArchiveEntry link = new TarArchiveEntry("./link.bin", TarArchiveEntry.LF_LINK);
+        link.setLinkName("./file.bin");
+        tar.putArchiveEntry(link);
+        tar.closeArchiveEntry();
+        tar.close();
+
+        OverthereFile dst = LocalFile.valueOf(new File(temp.getRoot(), "dst"));
+        OverthereFileTarArchiver.extract(new ByteArrayInputStream(archive.toByteArray()), dst);
+
+        assertThat(read(dst.getFile("file.bin")), equalTo(contents));
+        assertThat(read(dst.getFile("link.bin")), equalTo(contents));
+    }
+
+    @Test(expectedExceptions = RuntimeIOException.class)
+    public void shouldRejectEntriesOutsideDestination() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(archive);
+        TarArchiveEntry entry = new TarArchiveEntry("dir/../../evil");
+        entry.setSize(1);
+        tar.putArchiveEntry(entry);
+        tar.write(1);
+        tar.closeArchiveEntry();
+        tar.close();
+
+        OverthereFileTarArchiver.extract(new ByteArrayInputStream(archive.toByteArray()), LocalFile.valueOf(new File(temp.getRoot(), "dst")));
+    }
+
+    @Test
+    public void shouldArchiveEntriesWithoutOwner() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        OverthereFileTarArchiver.archive(sourceTree(), archive);
+
+        TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(archive.toByteArray()));
+        for (TarArchiveEntry entry; (entry = tar.getNextTarEntry()) != null; ) {
+            assertThat(entry.getUserName(), equalTo(""));
+            assertThat(entry.getGroupName(), equalTo(""));
+        }
+    }
+
+    @Test
+    public void shouldArchiveFilesWithoutModificationTime() throws IOException {
+        OverthereFile src = mock(OverthereFile.class);
+        OverthereFile file = mock(OverthereFile.class);
+        when(src.listFiles()).thenReturn(Collections.singletonList(file));
+        when(file.getName()).thenReturn("file.bin");
+        when(file.lastModified()).thenThrow(new UnsupportedOperationException());
+        when(file.length()).thenReturn((long) contents.length);
+        when(file.getInputStream()).thenReturn(new ByteArrayInputStream(contents));
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        OverthereFileTarArchiver.archive(src, archive);
+        OverthereFile dst = LocalFile.valueOf(new File(temp.getRoot(), "dst"));
+        OverthereFileTarArchiver.extract(new ByteArrayInputStream(archive.toByteArray()), dst);
+
+        assertThat(read(dst.getFile("file.bin")), equalTo(contents));
+    }
+
+    @Test(expectedExceptions = RuntimeIOException.class, timeOut = 10000)
+    public void shouldRejectSymbolicLinkToParentDirectory() throws IOException {
+        OverthereFile src = sourceTree();
+        Files.createSymbolicLink(new File(((LocalFile) src).getFile(), "sub/deeper/loop").toPath(), new File("..").toPath());
+
+        OverthereFileTarArchiver.archive(src, new ByteArrayOutputStream());
+    }
+
+    private OverthereFile sourceTree() {
+        OverthereFile src = LocalFile.valueOf(temp.newFolder("src"));
+        src.getFile("empty").mkdir();
+        src.getFile("sub").getFile("deeper").mkdirs();
+        write(contents, src.getFile("file.bin"));
+        write(contents, src.getFile("sub").getFile("deeper").getFile("nested.bin"));
+        write("#!/bin/sh\n".getBytes(), src.getFile("sub").getFile("run.sh"));
+        src.getFile("sub").getFile("run.sh").setExecutable(true);
+        return src;
+    }
+
+    private void assertTree(OverthereFile dst) {
+        assertThat(dst.getFile("empty").isDirectory(), equalTo(true));
+        assertThat(read(dst.getFile("file.bin")), equalTo(contents));
+        assertThat(read(dst.getFile("sub").getFile("deeper").getFile("nested.bin")), equalTo(contents));
+        assertThat(dst.getFile("sub").getFile("run.sh").canExecute(), equalTo(true));
+        assertThat(dst.getFile("file.bin").canExecute(), equalTo(false));
+    }
+
+}